@@ -0,0 +1,99 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares a JMH JSON result (-rf json) with the committed baseline and exits with 1 when a benchmark
+ * got slower, or allocates more per operation, by more than the tolerance (default 0.25 = 25%).
+ *
+ * Usage: BaselineComparison baseline.json result.json [tolerance]
+ *
+ * Time scores only compare meaningfully on the machine that recorded the baseline,
+ * gc.alloc.rate.norm (bytes per operation) compares anywhere. Both change with the JDK (JIT, escape analysis),
+ * so a warning is printed when the baseline was recorded on another JDK version than the result.
+ */
+public class BaselineComparison {
+
+    // Ignore allocation noise below this many bytes per operation
+    private static final double ALLOCATION_SLACK_BYTES = 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison baseline.json result.json [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+        Map<String, JsonNode> baseline = read(new File(args[0]));
+        Map<String, JsonNode> current = read(new File(args[1]));
+
+        Set<String> baselineJdks = jdkVersions(baseline);
+        Set<String> currentJdks = jdkVersions(current);
+        if (!baselineJdks.equals(currentJdks)) {
+            System.out.printf("WARNING: baseline recorded on JDK %s, result on JDK %s; "
+                    + "re-record the baseline on the JDK you compare with%n", baselineJdks, currentJdks);
+        }
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s new, no baseline%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+            boolean throughput = "thrpt".equals(after.path("mode").asText());
+            double scoreBefore = before.path("primaryMetric").path("score").asDouble();
+            double scoreAfter = after.path("primaryMetric").path("score").asDouble();
+            boolean slower = throughput
+                    ? scoreAfter < scoreBefore * (1 - tolerance)
+                    : scoreAfter > scoreBefore * (1 + tolerance);
+
+            double allocBefore = allocation(before);
+            double allocAfter = allocation(after);
+            boolean allocates = !Double.isNaN(allocBefore) && !Double.isNaN(allocAfter)
+                    && allocAfter > allocBefore * (1 + tolerance) + ALLOCATION_SLACK_BYTES;
+
+            System.out.printf("%-70s %12.1f -> %12.1f %s   %8.0f -> %8.0f B/op%s%n",
+                    entry.getKey(), scoreBefore, scoreAfter, after.path("primaryMetric").path("scoreUnit").asText(),
+                    allocBefore, allocAfter, slower || allocates ? "   REGRESSION" : "");
+            if (slower || allocates) {
+                regressions++;
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.printf("%d regression(s) beyond %.0f%%%n", regressions, tolerance * 100);
+            System.exit(1);
+        }
+    }
+
+    private static double allocation(JsonNode result) {
+        JsonNode norm = result.path("secondaryMetrics").path("gc.alloc.rate.norm").path("score");
+        return norm.isMissingNode() ? Double.NaN : norm.asDouble();
+    }
+
+    private static Set<String> jdkVersions(Map<String, JsonNode> results) {
+        Set<String> versions = new TreeSet<>();
+        results.values().forEach(result -> versions.add(result.path("jdkVersion").asText("unknown")));
+        return versions;
+    }
+
+    // Keyed by benchmark name and parameters
+    private static Map<String, JsonNode> read(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            String name = result.path("benchmark").asText().replaceFirst("^.*\\.benchmarks\\.", "");
+            JsonNode params = result.path("params");
+            results.put(params.isMissingNode() ? name : name + params, result);
+        }
+        return results;
+    }
+}
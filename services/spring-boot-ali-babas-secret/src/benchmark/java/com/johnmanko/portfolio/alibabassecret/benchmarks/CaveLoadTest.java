@@ -0,0 +1,358 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.AliBabasSecretApplication;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.THIEVES_TREASURE;
+
+/**
+ * Open-loop HTTP load test of the whole application on one box.
+ *
+ * Starts the application on a random port with a local stand-in issuer. The JWKS snapshot holds a freshly
+ * generated key in offline mode, so tokens are signed locally. Redis is {@link InMemoryRedis} unless
+ * redis=host:port is given. It then sends a weighted mix of /public/config.json, the two treasure GETs and
+ * /take-treasure at a fixed rate, whether or not earlier requests have completed.
+ *
+ * Latency is measured from each request's scheduled send time, not from when it was actually sent, so a
+ * stalled server shows up in the percentiles instead of silently lowering the offered rate (coordinated omission).
+ * Results after the warmup go to HdrHistograms. p50/p99/p99.9 and throughput are printed per endpoint,
+ * and full distributions are written to target/load-test/*.hgrm.
+ *
+ * With connections=N the load is closed-loop instead: N clients each keep one connection busy, sending the next
+ * request as soon as the previous one is answered. Latency is then measured from the actual send time, and the
+ * throughput shows what the server sustains with N concurrent connections.
+ *
+ * Each connection takes a file descriptor on both ends, so for thousands of connections the application and the
+ * clients run in two processes: serve=<file> starts the application, writes its URL and a token to the file and
+ * runs until it is stopped, and target=<file> sends the load to it instead of starting one.
+ *
+ * Options (key=value): rate (requests/s, default 500), connections, warmup and duration (seconds, default 10
+ * and 30), mix (config,thieves,alibaba,take weights, default 10,40,40,10), redis (host:port), serve, target.
+ * Options with a dot are application properties, e.g. spring.threads.virtual.enabled=true.
+ */
+public class CaveLoadTest {
+
+    static final String ISSUER = "https://localhost/";
+    static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // Failures by HTTP status or exception, across all endpoints
+    static final Map<String, LongAdder> FAILURES = new ConcurrentSkipListMap<>();
+
+    record Endpoint(String name, HttpRequest request, ConcurrentHistogram histogram, AtomicLong errors) {
+
+        Endpoint(String name, HttpRequest.Builder request) {
+            this(name, request.timeout(REQUEST_TIMEOUT).build(), new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3), new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        long warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "10"));
+        long durationSeconds = Long.parseLong(options.getOrDefault("duration", "30"));
+        int[] mix = Arrays.stream(options.getOrDefault("mix", "10,40,40,10").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+
+        if (options.containsKey("target")) {
+            Properties server = new Properties();
+            try (Reader reader = Files.newBufferedReader(Path.of(options.get("target")))) {
+                server.load(reader);
+            }
+            load(server.getProperty("url"), server.getProperty("authorization"), options, mix, warmupSeconds,
+                    durationSeconds);
+            return;
+        }
+
+        RSAKey issuerKey = new RSAKeyGenerator(2048).keyID("load-test").generate();
+        try (ConfigurableApplicationContext context = start(options, issuerKey)) {
+            int port = Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+            String base = "http://localhost:" + port;
+            String serve = options.get("serve");
+            // A served application outlives a single run, so its token does too
+            Duration validFor = serve != null ? Duration.ofDays(1)
+                    : Duration.ofSeconds(warmupSeconds + durationSeconds + 600);
+            String bearer = "Bearer " + sign(issuerKey, validFor);
+
+            // Enough treasure that /take-treasure never runs dry during the run
+            @SuppressWarnings("unchecked")
+            RedisTemplate<String, String> redisTemplate = context.getBean("redisTemplate", RedisTemplate.class);
+            redisTemplate.opsForValue().set(THIEVES_TREASURE, "1000000000", validFor.toSeconds(), TimeUnit.SECONDS);
+
+            if (serve != null) {
+                Properties server = new Properties();
+                server.setProperty("url", base);
+                server.setProperty("authorization", bearer);
+                try (Writer writer = Files.newBufferedWriter(Path.of(serve))) {
+                    server.store(writer, "CaveLoadTest target=" + serve);
+                }
+                System.out.printf("Serving %s until stopped, send load with target=%s%n", base, serve);
+                Thread.currentThread().join();
+            }
+            load(base, bearer, options, mix, warmupSeconds, durationSeconds);
+        }
+    }
+
+    private static void load(String base, String bearer, Map<String, String> options, int[] mix,
+                             long warmupSeconds, long durationSeconds) throws Exception {
+        List<Endpoint> endpoints = List.of(
+                new Endpoint("GET /public/config.json",
+                        HttpRequest.newBuilder(URI.create(base + "/public/config.json"))),
+                new Endpoint("GET /api/cave/thieves-treasure",
+                        HttpRequest.newBuilder(URI.create(base + "/api/cave/thieves-treasure"))
+                                .header("Authorization", bearer)),
+                new Endpoint("GET /api/cave/alibaba-treasure",
+                        HttpRequest.newBuilder(URI.create(base + "/api/cave/alibaba-treasure"))
+                                .header("Authorization", bearer)),
+                new Endpoint("POST /api/cave/take-treasure",
+                        HttpRequest.newBuilder(URI.create(base + "/api/cave/take-treasure"))
+                                .header("Authorization", bearer)
+                                .header("Content-Type", "application/json")
+                                .POST(HttpRequest.BodyPublishers.ofString("{\"owner\":\"alibaba-treasure\",\"amount\":1}"))));
+
+        if (options.containsKey("connections")) {
+            int connections = Integer.parseInt(options.get("connections"));
+            System.out.printf("Keeping %d connections busy on %s for %ds (+%ds warmup), mix %s%n",
+                    connections, base, durationSeconds, warmupSeconds, Arrays.toString(mix));
+            runConnections(endpoints, mix, connections, warmupSeconds, durationSeconds);
+        } else {
+            int rate = Integer.parseInt(options.getOrDefault("rate", "500"));
+            System.out.printf("Offering %d requests/s to %s for %ds (+%ds warmup), mix %s%n",
+                    rate, base, durationSeconds, warmupSeconds, Arrays.toString(mix));
+            run(endpoints, mix, rate, warmupSeconds, durationSeconds);
+        }
+        report(endpoints, durationSeconds, System.out);
+        writeDistributions(endpoints, Path.of("target", "load-test"));
+    }
+
+    private static ConfigurableApplicationContext start(Map<String, String> options, RSAKey issuerKey) throws IOException {
+        Path snapshot = Files.createTempFile("jwks", ".json");
+        snapshot.toFile().deleteOnExit();
+        Files.writeString(snapshot, new JWKSet(issuerKey.toPublicJWK()).toString());
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", "0");
+        properties.put("spring.docker.compose.enabled", "false");
+        properties.put("spring.security.oauth2.resourceserver.jwt.issuer-uri", ISSUER);
+        properties.put("app.config.client.auth.auth0.domain", "load-test.us.auth0.com");
+        properties.put("app.config.client.auth.auth0.client-id", "LOADTEST");
+        properties.put("app.config.server.auth.auth0.custom-jwt-namespace", "custom.jwt.namespace/roles");
+        properties.put("app.config.server.auth.jwks.enabled", "true");
+        properties.put("app.config.server.auth.jwks.offline", "true");
+        properties.put("app.config.server.auth.jwks.snapshot", snapshot.toUri().toString());
+
+        String redis = options.get("redis");
+        if (redis != null) {
+            properties.put("spring.data.redis.host", redis.substring(0, redis.indexOf(':')));
+            properties.put("spring.data.redis.port", redis.substring(redis.indexOf(':') + 1));
+        }
+        options.forEach((key, value) -> {
+            if (key.contains(".")) {
+                properties.put(key, value);
+            }
+        });
+
+        // DevTools would restart the application in another class loader, out of reach of the stand-in
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        SpringApplicationBuilder builder = new SpringApplicationBuilder(AliBabasSecretApplication.class);
+        if (redis == null) {
+            InMemoryRedis standIn = new InMemoryRedis();
+            builder.initializers(context -> context.getBeanFactory().addBeanPostProcessor(new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    if (!"redisTemplate".equals(beanName)) {
+                        return bean;
+                    }
+                    // Keeps auto-configuration that asks the template for its (never used) connection factory happy
+                    standIn.setConnectionFactory(((RedisTemplate<?, ?>) bean).getConnectionFactory());
+                    return standIn;
+                }
+            }));
+        }
+        // As command line arguments, so they override application.properties
+        return builder.run(properties.entrySet().stream()
+                .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                .toArray(String[]::new));
+    }
+
+    private static void run(List<Endpoint> endpoints, int[] mix, int rate, long warmupSeconds, long durationSeconds)
+            throws InterruptedException {
+        int totalWeight = Arrays.stream(mix).sum();
+        Random random = new Random(42);
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        // The client's own executor stays open until the senders are done, it completes their responses
+        try (ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+             ExecutorService responses = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder()
+                     .version(HttpClient.Version.HTTP_1_1)
+                     .executor(responses)
+                     .build()) {
+            for (long i = 0; ; i++) {
+                long scheduled = start + i * interval;
+                if (scheduled >= end) {
+                    break;
+                }
+                long now;
+                while ((now = System.nanoTime()) < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                }
+                Endpoint endpoint = endpoints.get(pick(mix, random.nextInt(totalWeight)));
+                senders.execute(() -> send(client, endpoint, scheduled, measureFrom));
+            }
+            senders.shutdown();
+            if (!senders.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Requests still outstanding one minute after the run ended");
+            }
+        }
+    }
+
+    private static void runConnections(List<Endpoint> endpoints, int[] mix, int connections,
+                                       long warmupSeconds, long durationSeconds) throws InterruptedException {
+        int totalWeight = Arrays.stream(mix).sum();
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        // The client's own executor stays open until the clients are done, it completes their responses
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+             ExecutorService responses = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder()
+                     .version(HttpClient.Version.HTTP_1_1)
+                     .executor(responses)
+                     .build()) {
+            for (int connection = 0; connection < connections; connection++) {
+                Random random = new Random(connection);
+                clients.execute(() -> {
+                    long sent;
+                    while ((sent = System.nanoTime()) < end) {
+                        send(client, endpoints.get(pick(mix, random.nextInt(totalWeight))), sent, measureFrom);
+                    }
+                });
+            }
+            clients.shutdown();
+            if (!clients.awaitTermination(end - System.nanoTime() + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS)) {
+                System.out.println("Requests still outstanding one minute after the run ended");
+            }
+        }
+    }
+
+    // Latency is recorded from the scheduled send time, for requests scheduled after the warmup
+    private static void send(HttpClient client, Endpoint endpoint, long scheduled, long measureFrom) {
+        String failure = null;
+        try {
+            HttpResponse<Void> response = client.send(endpoint.request(), HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() >= 300) {
+                failure = "HTTP " + response.statusCode();
+            }
+        } catch (IOException | InterruptedException e) {
+            failure = e.getClass().getSimpleName();
+        }
+        if (scheduled >= measureFrom) {
+            endpoint.histogram().recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+            if (failure != null) {
+                endpoint.errors().incrementAndGet();
+                FAILURES.computeIfAbsent(failure, key -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private static int pick(int[] mix, int roll) {
+        for (int i = 0; i < mix.length; i++) {
+            roll -= mix[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return mix.length - 1;
+    }
+
+    private static void report(List<Endpoint> endpoints, long durationSeconds, PrintStream out) {
+        Histogram all = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+        long allErrors = 0;
+        out.printf("%n%-32s %9s %7s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Endpoint endpoint : endpoints) {
+            row(out, endpoint.name(), endpoint.histogram(), endpoint.errors().get(), durationSeconds);
+            all.add(endpoint.histogram());
+            allErrors += endpoint.errors().get();
+        }
+        row(out, "all", all, allErrors, durationSeconds);
+        FAILURES.forEach((failure, count) -> out.printf("errors: %s x %d%n", failure, count.sum()));
+    }
+
+    private static void row(PrintStream out, String name, Histogram histogram, long errors, long durationSeconds) {
+        out.printf("%-32s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n",
+                name, histogram.getTotalCount(), errors, (double) histogram.getTotalCount() / durationSeconds,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    private static void writeDistributions(List<Endpoint> endpoints, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (Endpoint endpoint : endpoints) {
+            String file = endpoint.name().replaceAll("[^A-Za-z0-9.-]+", "_") + ".hgrm";
+            try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(file)))) {
+                // Values are in microseconds, scaled to milliseconds
+                endpoint.histogram().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        System.out.println("Distributions written to " + directory.toAbsolutePath());
+    }
+
+    private static String sign(RSAKey key, Duration validFor) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+                new JWTClaimsSet.Builder()
+                        .issuer(ISSUER)
+                        .subject("auth0|load-test")
+                        .issueTime(new Date())
+                        .expirationTime(Date.from(Instant.now().plus(validFor)))
+                        .claim("custom.jwt.namespace/roles", List.of("treasure-hunter"))
+                        .claim("permissions", List.of("see:alibaba-treasure", "take:thieves-treasure"))
+                        .build());
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+}
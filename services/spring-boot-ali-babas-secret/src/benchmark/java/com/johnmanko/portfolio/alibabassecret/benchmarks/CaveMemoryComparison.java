@@ -0,0 +1,115 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveHashStore;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.types.Expiration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Redis memory per owner for the multi-cave layout (owners as fields of bucket hashes, see CaveHashStore)
+ * against a key per owner, as the two top-level treasure keys are stored today (SET with an expiry).
+ *
+ * For each layout: FLUSHDB, note used_memory, write every owner with pipelined commands, note used_memory
+ * again, and print the difference per owner. The bucketed run also samples bucket encodings, to check they
+ * stayed listpack (ziplist before Redis 7) rather than falling back to hashtable.
+ *
+ * Options (key=value): owners (default 10000000), buckets (default 131072, as the application),
+ * redis (host:port, default localhost:6379), db (default 15). The database is flushed before, between and after
+ * the runs, so don't point it at one holding data. 10M owners need about 1 GB free in Redis for the naive layout.
+ */
+public class CaveMemoryComparison {
+
+    static final String CAVE = "sesame";
+    static final int BATCH = 10_000;
+    static final int ENCODING_SAMPLES = 1_000;
+
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int owners = Integer.parseInt(options.getOrDefault("owners", "10000000"));
+        int buckets = Integer.parseInt(options.getOrDefault("buckets", "131072"));
+        String[] redis = options.getOrDefault("redis", "localhost:6379").split(":");
+        int db = Integer.parseInt(options.getOrDefault("db", "15"));
+
+        RedisStandaloneConfiguration configuration =
+                new RedisStandaloneConfiguration(redis[0], Integer.parseInt(redis[1]));
+        configuration.setDatabase(db);
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            System.out.printf("%,d owners, %,d buckets (%.1f owners per bucket), Redis %s, %s%n", owners, buckets,
+                    (double) owners / buckets, connection.serverCommands().info("server").getProperty("redis_version"),
+                    connection.serverCommands().getConfig("hash-max-*"));
+
+            long keyPerOwner = measure(connection, owners, (pipeline, owner) ->
+                    pipeline.stringCommands().set(bytes("cave:" + CAVE + ":" + owner), bytes(amount(owner)),
+                            Expiration.seconds(86_400), RedisStringCommands.SetOption.upsert()));
+            System.out.printf("key per owner     %,14d bytes  %6.1f bytes/owner%n",
+                    keyPerOwner, (double) keyPerOwner / owners);
+
+            long bucketed = measure(connection, owners, (pipeline, owner) ->
+                    pipeline.hashCommands().hSet(bytes(CaveHashStore.bucketKey(CAVE, owner, buckets)),
+                            bytes(owner), bytes(amount(owner))));
+            System.out.printf("bucketed hashes   %,14d bytes  %6.1f bytes/owner  (%.1fx smaller)%n",
+                    bucketed, (double) bucketed / owners, (double) keyPerOwner / bucketed);
+            System.out.println("bucket encodings  " + encodings(connection, buckets));
+
+            connection.serverCommands().flushDb();
+        } finally {
+            connectionFactory.destroy();
+        }
+    }
+
+    // used_memory added by writing every owner
+    private static long measure(RedisConnection connection, int owners,
+                                BiConsumer<RedisConnection, String> write) {
+        connection.serverCommands().flushDb();
+        long before = usedMemory(connection);
+        for (int first = 0; first < owners; first += BATCH) {
+            connection.openPipeline();
+            for (int i = first; i < Math.min(first + BATCH, owners); i++) {
+                write.accept(connection, owner(i));
+            }
+            connection.closePipeline();
+        }
+        return usedMemory(connection) - before;
+    }
+
+    private static Map<String, Integer> encodings(RedisConnection connection, int buckets) {
+        Map<String, Integer> encodings = new TreeMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < ENCODING_SAMPLES; i++) {
+            String key = "cave:{" + CAVE + "}:" + random.nextInt(buckets);
+            encodings.merge(connection.keyCommands().encodingOf(bytes(key)).raw(), 1, Integer::sum);
+        }
+        return encodings;
+    }
+
+    private static long usedMemory(RedisConnection connection) {
+        return Long.parseLong(connection.serverCommands().info("memory").getProperty("used_memory"));
+    }
+
+    private static String owner(int i) {
+        return "hunter-" + i;
+    }
+
+    // A balance of up to 7 digits, the same for an owner in both layouts
+    private static String amount(String owner) {
+        return Integer.toString(Math.floorMod(owner.hashCode(), 10_000_000));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
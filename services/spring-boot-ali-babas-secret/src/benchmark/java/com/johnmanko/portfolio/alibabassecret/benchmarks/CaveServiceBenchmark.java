@@ -0,0 +1,61 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.ALIBABA_TREASURE;
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.THIEVES_TREASURE;
+
+/**
+ * RedisService get/set and the full CaveService.takeTreasure flow against {@link InMemoryRedis},
+ * so the numbers are our own code: parsing, formatting, metrics and result building.
+ * The takeTreasure benchmark refills the thieves' treasure before it runs dry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaveServiceBenchmark {
+
+    private InMemoryRedis redis;
+    private RedisService redisService;
+    private CaveService caveService;
+
+    @Setup
+    public void setUp() {
+        redis = new InMemoryRedis();
+        CaveMetrics metrics = new CaveMetrics(new SimpleMeterRegistry());
+        redisService = new RedisService(redis, null, metrics, Optional.empty(), false);
+        caveService = new CaveService(redisService, Optional.empty(), Optional.empty(), metrics);
+        redis.values.put(THIEVES_TREASURE, "980");
+    }
+
+    @Benchmark
+    public OptionalLong redisGet() {
+        return redisService.getFromRedis(THIEVES_TREASURE);
+    }
+
+    // Called directly, without the @Async proxy, so this is the cost of the write itself
+    @Benchmark
+    public void redisSet() {
+        redisService.initializeInRedis(ALIBABA_TREASURE, 20, 60);
+    }
+
+    @Benchmark
+    public Map<String, Long> takeTreasure() {
+        if (Integer.parseInt(redis.values.get(THIEVES_TREASURE)) < 10) {
+            redis.values.put(THIEVES_TREASURE, "1000000");
+        }
+        return caveService.takeTreasure(1);
+    }
+}
@@ -0,0 +1,55 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode cost of each {@link TreasureCodec}, for a small balance, an idempotency record
+ * (amount, alibaba, thieves) and the largest balance the scripts handle.
+ * The bytes on the wire of each value are printed once per fork, they don't depend on the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    static final Map<String, long[]> VALUES = Map.of(
+            "balance", new long[]{980},
+            "record", new long[]{20, 20, 980},
+            "max", new long[]{CaveService.MAX_TREASURE});
+
+    @Param({"decimal", "varint", "fixed64"})
+    public String codecName;
+
+    @Param({"balance", "record", "max"})
+    public String value;
+
+    private TreasureCodec codec;
+    private long[] values;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        codec = TreasureCodec.named(codecName);
+        values = VALUES.get(value);
+        encoded = codec.encode(values);
+        System.out.printf("%n%s %s: %d bytes on the wire%n", codecName, value, encoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(values);
+    }
+
+    @Benchmark
+    public long[] decode() {
+        return codec.decode(encoded);
+    }
+}
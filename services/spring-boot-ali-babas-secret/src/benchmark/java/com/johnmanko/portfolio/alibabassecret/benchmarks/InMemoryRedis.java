@@ -0,0 +1,63 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Redis stand-in for benchmarks that should measure our code rather than the network:
+ * a RedisTemplate whose GET, SET, MGET and DEL work on a map, and whose script execution
+ * emulates redis/transfer.lua (the same way CaveEndpointsTest does).
+ */
+final class InMemoryRedis extends RedisTemplate<String, String> {
+
+    final Map<String, String> values = new ConcurrentHashMap<>();
+    private final ValueOperations<String, String> valueOperations;
+
+    @SuppressWarnings("unchecked")
+    InMemoryRedis() {
+        valueOperations = (ValueOperations<String, String>) Proxy.newProxyInstance(
+                ValueOperations.class.getClassLoader(),
+                new Class<?>[]{ValueOperations.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "get" -> values.get((String) args[0]);
+                    case "set" -> {
+                        values.put((String) args[0], (String) args[1]);
+                        yield null;
+                    }
+                    case "setIfAbsent" -> values.putIfAbsent((String) args[0], (String) args[1]) == null;
+                    case "multiGet" -> ((Collection<String>) args[0]).stream().map(values::get).toList();
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @Override
+    public ValueOperations<String, String> opsForValue() {
+        return valueOperations;
+    }
+
+    @Override
+    public Boolean delete(String key) {
+        return values.remove(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        long amount = Long.parseLong((String) args[0]);
+        long from = Long.parseLong(values.getOrDefault(keys.get(0), (String) args[1]));
+        long to = Long.parseLong(values.getOrDefault(keys.get(1), (String) args[2]));
+        if (from < amount) {
+            return (T) List.of(0L, from, to);
+        }
+        values.put(keys.get(0), Long.toString(from - amount));
+        values.put(keys.get(1), Long.toString(to + amount));
+        return (T) List.of(1L, from - amount, to + amount);
+    }
+}
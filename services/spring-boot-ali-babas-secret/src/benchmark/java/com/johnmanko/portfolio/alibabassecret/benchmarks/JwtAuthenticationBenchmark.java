@@ -0,0 +1,82 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.config.SecurityConfig;
+import com.johnmanko.portfolio.alibabassecret.services.JwtAuthenticationCache;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authentication cost per request for a repeated RS256 bearer token, through the same
+ * JwtAuthenticationProvider the resource server filter uses, with and without JwtAuthenticationCache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtAuthenticationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private JwtAuthenticationProvider provider;
+    private String token;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        SignedJWT jwt = new SignedJWT(new JWSHeader(JWSAlgorithm.RS256), new JWTClaimsSet.Builder()
+                .subject("auth0|benchmark")
+                .issueTime(new Date())
+                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
+                .claim("custom.jwt.namespace/roles", List.of("treasure-hunter"))
+                .claim("permissions", List.of("see:thieves-treasure", "see:alibaba-treasure", "take:thieves-treasure"))
+                .build());
+        jwt.sign(new RSASSASigner(keyPair.getPrivate()));
+        token = jwt.serialize();
+
+        SecurityConfig securityConfig = new SecurityConfig();
+        ReflectionTestUtils.setField(securityConfig, "customJwtNamespace", "custom.jwt.namespace/roles");
+
+        JwtDecoder decoder = NimbusJwtDecoder.withPublicKey((RSAPublicKey) keyPair.getPublic()).build();
+        Optional<JwtAuthenticationCache> cache = cached
+                ? Optional.of(new JwtAuthenticationCache(10_000, Duration.ofMinutes(5), new SimpleMeterRegistry()))
+                : Optional.empty();
+        JwtAuthenticationConverter converter = securityConfig.jwtAuthenticationConverter(cache, new SimpleMeterRegistry());
+
+        provider = new JwtAuthenticationProvider(cache.map(c -> c.decoder(decoder)).orElse(decoder));
+        provider.setJwtAuthenticationConverter(converter);
+    }
+
+    @Benchmark
+    public Authentication authenticate() {
+        return provider.authenticate(new BearerTokenAuthenticationToken(token));
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.services.TreasureLedger;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-JVM part of a ledger replay: folding entries into balances with TreasureLedger.apply, without Redis.
+ * One page of 10000 generated entries (the default page size) is folded again and again up to the entry count,
+ * so millions of entries don't have to be held in memory. LedgerReplayBenchmark measures the whole replay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LedgerFoldBenchmark {
+
+    static final String THIEVES = "thieves-treasure";
+    static final String ALIBABA = "alibaba-treasure";
+    static final int PAGE_SIZE = 10_000;
+
+    @Param({"1000000", "5000000"})
+    public int entries;
+
+    private List<Map<String, String>> page;
+
+    @Setup
+    public void setUp() {
+        page = new ArrayList<>(PAGE_SIZE);
+        long thieves = 1_000_000_000L;
+        long alibaba = 0;
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            // As read from the stream: alternating directions, the resulting balances as decimal strings
+            boolean take = i % 2 == 0;
+            thieves += take ? -7 : 3;
+            alibaba += take ? 7 : -3;
+            page.add(Map.of("from", take ? THIEVES : ALIBABA, "to", take ? ALIBABA : THIEVES,
+                    "amount", take ? "7" : "3", THIEVES, Long.toString(thieves), ALIBABA, Long.toString(alibaba)));
+        }
+    }
+
+    @Benchmark
+    public Map<String, Long> fold() {
+        Map<String, Long> balances = new HashMap<>(Map.of(THIEVES, 1_000L, ALIBABA, 0L));
+        for (int folded = 0; folded < entries; folded += PAGE_SIZE) {
+            for (Map<String, String> entry : page) {
+                TreasureLedger.apply(balances, entry);
+            }
+        }
+        return balances;
+    }
+}
@@ -0,0 +1,116 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureLedger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ledger replay against a real Redis, for a stream of millions of entries and no snapshot (the worst case,
+ * before the first compaction).
+ * replay - TreasureLedger.materialize: XRANGE pages plus the fold
+ * rebuild - both balance keys lost, then TreasureLedger.restore: the replay plus ledger-restore.lua
+ * The stream is written once per parameter set with pipelined XADDs, which takes a while for 5M entries.
+ * Needs a running Redis with a few hundred MB to spare: -jvmArgs "-Dredis.host=localhost -Dredis.port=6379"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LedgerReplayBenchmark {
+
+    static final String THIEVES = "thieves-treasure";
+    static final String ALIBABA = "alibaba-treasure";
+    static final int WRITE_BATCH = 10_000;
+
+    @Param({"1000000", "5000000"})
+    public int entries;
+
+    @Param({"1000", "10000"})
+    public int pageSize;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private TreasureLedger ledger;
+
+    @Setup
+    public void setUp() {
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "localhost"),
+                Integer.getInteger("redis.port", 6379)));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+
+        redisTemplate = new RedisConfig().redisTemplate(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        ledger = new TreasureLedger(redisTemplate, Map.of(THIEVES, 1_000L, ALIBABA, 0L), pageSize,
+                Duration.ofDays(1), Duration.ofDays(1), Clock.systemUTC(),
+                new CaveMetrics(new SimpleMeterRegistry()), new SimpleMeterRegistry());
+        redisTemplate.delete(keys());
+
+        long thieves = 1_000_000_000L;
+        long alibaba = 0;
+        for (int written = 0; written < entries; written += WRITE_BATCH) {
+            long[] balances = {thieves, alibaba};
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < WRITE_BATCH; i++) {
+                    balances[0] -= 1;
+                    balances[1] += 1;
+                    MapRecord<byte[], byte[], byte[]> entry = StreamRecords.newRecord()
+                            .in(bytes(TreasureLedger.STREAM))
+                            .ofMap(Map.of(bytes("from"), bytes(THIEVES), bytes("to"), bytes(ALIBABA),
+                                    bytes("amount"), bytes("1"),
+                                    bytes(THIEVES), bytes(Long.toString(balances[0])),
+                                    bytes(ALIBABA), bytes(Long.toString(balances[1]))));
+                    connection.streamCommands().xAdd(entry);
+                }
+                return null;
+            });
+            thieves = balances[0];
+            alibaba = balances[1];
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        redisTemplate.delete(keys());
+        ledger.close();
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public TreasureLedger.Materialized replay() {
+        return ledger.materialize();
+    }
+
+    @Benchmark
+    public Long rebuild() {
+        redisTemplate.delete(List.of(THIEVES, ALIBABA));
+        ledger.restore();
+        return Long.valueOf(redisTemplate.opsForValue().get(THIEVES));
+    }
+
+    private static List<String> keys() {
+        return List.of(THIEVES, ALIBABA, TreasureLedger.STREAM, TreasureLedger.SNAPSHOT);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.services.LocalRateLimiter;
+import com.johnmanko.portfolio.alibabassecret.services.RateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one LocalRateLimiter decision, the per-request overhead of the rate limit filter.
+ * keys=1 is every request on one bucket, keys=10000 spreads them over many callers.
+ * The limit is high enough that every request is allowed, so each call takes the compare-and-set path.
+ * Add "-t 4" to see contention on a single bucket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    @Param({"1", "10000"})
+    public int keys;
+
+    private LocalRateLimiter limiter;
+    private RateLimiter.Limit limit;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        limiter = new LocalRateLimiter(100_000, Duration.ofMinutes(1));
+        limit = new RateLimiter.Limit(1_000_000_000, 1_000_000);
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "auth0|hunter-" + i + " GET /api/cave/thieves-treasure";
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public long tryAcquire(Cursor cursor) {
+        String key = names[cursor.next];
+        cursor.next = (cursor.next + 1) % names.length;
+        return limiter.tryAcquire(key, limit);
+    }
+}
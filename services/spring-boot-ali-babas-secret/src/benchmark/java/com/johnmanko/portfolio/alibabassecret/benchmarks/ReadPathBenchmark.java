@@ -0,0 +1,85 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.RedisResilience;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading a treasure balance, excluding the network.
+ * Run with "-prof gc" and compare gc.alloc.rate.norm (bytes per operation):
+ * legacyReadPath replays the old nested supplyAsync / Optional&lt;Integer&gt; chain,
+ * readPath is the current single-hop CaveService.getTreasure,
+ * guardedReadPath the same read through RedisResilience (bulkhead hop, timeout and circuit breaker).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadPathBenchmark {
+
+    static final String KEY = "thieves-treasure";
+
+    private InMemoryRedis redis;
+    private CaveService caveService;
+    private CaveService guardedCaveService;
+    private RedisResilience resilience;
+
+    @Setup
+    public void setUp() {
+        redis = new InMemoryRedis();
+        redis.values.put(KEY, "980");
+        CaveMetrics metrics = new CaveMetrics(new SimpleMeterRegistry());
+        RedisService redisService = new RedisService(redis, null, metrics, Optional.empty(), false);
+        caveService = new CaveService(redisService, Optional.empty(), Optional.empty(), metrics);
+        resilience = new RedisResilience(Map.of("get", Duration.ofSeconds(1)), 4, 4,
+                50, 0.5, Duration.ofSeconds(5), 5, Duration.ofMinutes(5), new SimpleMeterRegistry());
+        guardedCaveService = new CaveService(redisService, Optional.empty(), Optional.of(resilience), metrics);
+    }
+
+    @TearDown
+    public void tearDown() {
+        resilience.close();
+    }
+
+    @Benchmark
+    public TreasureModel readPath() {
+        return caveService.getTreasure(KEY, 1000);
+    }
+
+    @Benchmark
+    public TreasureModel guardedReadPath() {
+        return guardedCaveService.getTreasure(KEY, 1000);
+    }
+
+    @Benchmark
+    public TreasureModel legacyReadPath() throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                            String v = redis.opsForValue().get(KEY);
+                            if (v == null) {
+                                return Optional.<Integer>empty();
+                            }
+                            return Optional.of(Integer.valueOf(v));
+                        })
+                        .thenApply(value -> value.orElse(1000))
+                        .thenApply(amount -> new TreasureModel(KEY, amount)).get();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).get();
+    }
+
+}
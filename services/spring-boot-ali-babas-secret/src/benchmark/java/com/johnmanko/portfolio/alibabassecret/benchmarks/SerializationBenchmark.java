@@ -0,0 +1,35 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON cost of the treasure responses, with an ObjectMapper configured like Spring Boot's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private ObjectMapper objectMapper;
+    private TreasureModel treasure;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        treasure = new TreasureModel("thieves-treasure", 980);
+    }
+
+    @Benchmark
+    public byte[] treasureToJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(treasure);
+    }
+}
@@ -0,0 +1,77 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.StripedRedisService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfer throughput against a real Redis as the number of stripes grows.
+ * All threads move treasure between the same two balances, so a single stripe is one hot key.
+ * Each invocation moves 1 and then moves it back, so the balances never run dry.
+ * Needs a running Redis: -jvmArgs "-Dredis.host=localhost -Dredis.port=6379"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class StripedTransferBenchmark {
+
+    static final String FROM = "bench-thieves-treasure";
+    static final String TO = "bench-alibaba-treasure";
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int stripes;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private StripedRedisService service;
+
+    @Setup
+    public void setUp() {
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "localhost"),
+                Integer.getInteger("redis.port", 6379)));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+
+        redisTemplate = new RedisConfig().redisTemplate(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        service = new StripedRedisService(redisTemplate, new RedisConfig().stripeTransferScript(), stripes, false,
+                new CaveMetrics(new SimpleMeterRegistry()));
+        redisTemplate.delete(keys());
+    }
+
+    @TearDown
+    public void tearDown() {
+        redisTemplate.delete(keys());
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public TransferResult transferAndReturn() {
+        service.transfer(FROM, 1_000_000, TO, 0, 1, 300);
+        return service.transfer(TO, 0, FROM, 1_000_000, 1, 300);
+    }
+
+    private List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            keys.add(StripedRedisService.stripeKey(FROM, stripe));
+            keys.add(StripedRedisService.stripeKey(TO, stripe));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,87 @@
+package com.johnmanko.portfolio.alibabassecret.benchmarks;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfer latency against a real Redis, with 64 threads contending on the same two balances:
+ * atomicTransfer is transfer.lua through RedisService, readCheckWrite replays the old path
+ * (GET both balances, check, SET both). Sample time mode, so the p99 is in the results.
+ * Each invocation moves 1 and then moves it back, so the balances never run dry.
+ * Needs a running Redis: -jvmArgs "-Dredis.host=localhost -Dredis.port=6379"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class TransferPathBenchmark {
+
+    static final String FROM = "bench-thieves-treasure";
+    static final String TO = "bench-alibaba-treasure";
+    static final int INITIAL_TREASURE = 1_000_000;
+
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private RedisService service;
+
+    @Setup
+    public void setUp() {
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "localhost"),
+                Integer.getInteger("redis.port", 6379)));
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+
+        redisTemplate = new RedisConfig().redisTemplate(connectionFactory);
+        redisTemplate.afterPropertiesSet();
+        service = new RedisService(redisTemplate, new RedisConfig().transferScript(),
+                new CaveMetrics(new SimpleMeterRegistry()), Optional.empty(), false);
+        redisTemplate.delete(List.of(FROM, TO));
+    }
+
+    @TearDown
+    public void tearDown() {
+        redisTemplate.delete(List.of(FROM, TO));
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public TransferResult atomicTransfer() {
+        service.transfer(FROM, INITIAL_TREASURE, TO, 0, 1, 300);
+        return service.transfer(TO, 0, FROM, INITIAL_TREASURE, 1, 300);
+    }
+
+    @Benchmark
+    public boolean readCheckWrite() {
+        readCheckWrite(FROM, INITIAL_TREASURE, TO, 0);
+        return readCheckWrite(TO, 0, FROM, INITIAL_TREASURE);
+    }
+
+    // Not atomic: concurrent calls lose updates, only the latency is of interest here
+    private boolean readCheckWrite(String from, int fromDefault, String to, int toDefault) {
+        String fromValue = redisTemplate.opsForValue().get(from);
+        String toValue = redisTemplate.opsForValue().get(to);
+        int fromAmount = fromValue == null ? fromDefault : Integer.parseInt(fromValue);
+        int toAmount = toValue == null ? toDefault : Integer.parseInt(toValue);
+        if (fromAmount < 1) {
+            return false;
+        }
+        redisTemplate.opsForValue().set(to, Integer.toString(toAmount + 1), 300, TimeUnit.SECONDS);
+        redisTemplate.opsForValue().set(from, Integer.toString(fromAmount - 1), 300, TimeUnit.SECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named executors for the cave endpoints and RedisService, replacing the shared ForkJoin common pool.
+ *
+ * Property: spring.threads.virtual.enabled
+ * false (default): bounded platform thread pools ("cave-*" and "redis-*").
+ * true: Tomcat handles requests on virtual threads, cave work runs inline on the request's virtual thread,
+ *       and RedisService's @Async methods run on "redis-vt-*" virtual threads.
+ *
+ * The platform pools publish Spring Boot's executor.* gauges (executor.queued{name} is the queue depth)
+ * and executor.queue.wait{name}, the time a task waited in the queue before a thread picked it up.
+ *
+ * References:
+ * https://docs.spring.io/spring-boot/reference/features/spring-application.html#features.spring-application.virtual-threads
+ * https://docs.spring.io/spring-framework/reference/integration/scheduling.html#scheduling-annotation-support-async
+ */
+@Configuration
+// Class proxies: RedisService implements TreasureStore but is also injected by its own type
+@EnableAsync(proxyTargetClass = true)
+public class AsyncConfig {
+
+    public static final String CAVE_EXECUTOR = "caveExecutor";
+    public static final String REDIS_EXECUTOR = "redisExecutor";
+
+    @Configuration
+    @ConditionalOnThreading(Threading.PLATFORM)
+    static class PlatformThreads {
+
+        @Value("${app.config.server.executor.pool-size:64}")
+        private int poolSize;
+        @Value("${app.config.server.executor.queue-capacity:10000}")
+        private int queueCapacity;
+
+        @Bean(name = CAVE_EXECUTOR)
+        public ThreadPoolTaskExecutor caveExecutor(MeterRegistry meterRegistry) {
+            return threadPool("cave-", CAVE_EXECUTOR, meterRegistry);
+        }
+
+        @Bean(name = REDIS_EXECUTOR)
+        public ThreadPoolTaskExecutor redisExecutor(MeterRegistry meterRegistry) {
+            return threadPool("redis-", REDIS_EXECUTOR, meterRegistry);
+        }
+
+        private ThreadPoolTaskExecutor threadPool(String threadNamePrefix, String name, MeterRegistry meterRegistry) {
+            Timer queueWait = Timer.builder("executor.queue.wait")
+                    .description("Time a task waited in the executor queue")
+                    .tag("name", name)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+
+            ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+            executor.setThreadNamePrefix(threadNamePrefix);
+            executor.setCorePoolSize(poolSize);
+            executor.setMaxPoolSize(poolSize);
+            executor.setQueueCapacity(queueCapacity);
+            executor.setTaskDecorator(task -> {
+                long submitted = System.nanoTime();
+                return () -> {
+                    queueWait.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                    task.run();
+                };
+            });
+            return executor;
+        }
+    }
+
+    @Configuration
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    static class VirtualThreads {
+
+        /**
+         * The request already runs on a virtual thread, so hopping to another one only adds a context switch.
+         */
+        @Bean(name = CAVE_EXECUTOR)
+        public TaskExecutor caveExecutor() {
+            return new SyncTaskExecutor();
+        }
+
+        @Bean(name = REDIS_EXECUTOR)
+        public AsyncTaskExecutor redisExecutor() {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("redis-vt-");
+            executor.setVirtualThreads(true);
+            return executor;
+        }
+    }
+
+}
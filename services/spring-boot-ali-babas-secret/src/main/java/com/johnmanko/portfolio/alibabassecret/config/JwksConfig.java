@@ -0,0 +1,70 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.LocalJwksKeySource;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * Replaces Spring Boot's issuer-uri JwtDecoder, which fetches OIDC discovery and the JWKS on the
+ * first request, with one that verifies against {@link LocalJwksKeySource}.
+ * The issuer claim is still validated against spring.security.oauth2.resourceserver.jwt.issuer-uri.
+ *
+ * Properties:
+ * app.config.server.auth.jwks.enabled
+ * app.config.server.auth.jwks.snapshot - file: or classpath: JWKS document loaded at startup
+ * app.config.server.auth.jwks.uri - defaults to {issuer-uri}.well-known/jwks.json (Auth0)
+ * app.config.server.auth.jwks.refresh-interval
+ * app.config.server.auth.jwks.offline - never fetch, use the snapshot only
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.auth.jwks.enabled",
+        havingValue = "true"
+)
+public class JwksConfig {
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public LocalJwksKeySource localJwksKeySource(
+            @Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri}") String issuerUri,
+            @Value("${app.config.server.auth.jwks.snapshot:file:jwks.json}") Resource snapshot,
+            @Value("${app.config.server.auth.jwks.uri:}") String jwksUri,
+            @Value("${app.config.server.auth.jwks.refresh-interval:PT1H}") Duration refreshInterval,
+            @Value("${app.config.server.auth.jwks.offline:false}") boolean offline) throws MalformedURLException {
+        if (offline) {
+            return new LocalJwksKeySource(snapshot, null, refreshInterval, refreshInterval);
+        }
+        String uri = jwksUri.isEmpty()
+                ? (issuerUri.endsWith("/") ? issuerUri : issuerUri + "/") + ".well-known/jwks.json"
+                : jwksUri;
+        // Unknown-kid refreshes are limited to one every 30 seconds
+        return new LocalJwksKeySource(snapshot, URI.create(uri).toURL(), refreshInterval, Duration.ofSeconds(30));
+    }
+
+    @Bean
+    public JwtDecoder jwtDecoder(LocalJwksKeySource keySource,
+                                 @Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri}") String issuerUri) {
+        DefaultJWTProcessor<SecurityContext> processor = new DefaultJWTProcessor<>();
+        processor.setJWSKeySelector(new JWSVerificationKeySelector<>(JWSAlgorithm.RS256, keySource));
+        // Claims are validated by Spring Security below
+        processor.setJWTClaimsSetVerifier((claims, context) -> {
+        });
+
+        NimbusJwtDecoder decoder = new NimbusJwtDecoder(processor);
+        decoder.setJwtValidator(JwtValidators.createDefaultWithIssuer(issuerUri));
+        return decoder;
+    }
+}
@@ -0,0 +1,33 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.JwtAuthenticationCache;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+
+/**
+ * Puts {@link JwtAuthenticationCache} in front of the JwtDecoder that Spring Boot builds from
+ * spring.security.oauth2.resourceserver.jwt.*, keeping its issuer and JWKS setup.
+ * The authorities side is wired in {@link SecurityConfig#jwtAuthenticationConverter}.
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.auth.jwt-cache.enabled",
+        havingValue = "true"
+)
+public class JwtCacheConfig {
+
+    // static: post-processors are created before regular beans
+    @Bean
+    public static BeanPostProcessor cachingJwtDecoderPostProcessor(ObjectProvider<JwtAuthenticationCache> jwtCache) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof JwtDecoder decoder ? jwtCache.getObject().decoder(decoder) : bean;
+            }
+        };
+    }
+}
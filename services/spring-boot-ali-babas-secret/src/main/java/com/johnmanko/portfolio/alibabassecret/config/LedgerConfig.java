@@ -0,0 +1,56 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureLedger;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.INITIAL_TREASURES;
+
+/**
+ * Properties:
+ * app.config.server.cave.ledger.enabled
+ * app.config.server.cave.ledger.page-size - entries per XRANGE while replaying
+ * app.config.server.cave.ledger.retention - how long entries stay in the stream before they're folded into the snapshot
+ * app.config.server.cave.ledger.compaction-interval - how often old entries are folded
+ *
+ * Every other writer of the balance keys would bypass the ledger, so the ledger can't be combined with striping,
+ * versioning, write-behind or the reactive endpoints.
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.cave.ledger.enabled",
+        havingValue = "true"
+)
+public class LedgerConfig {
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public TreasureLedger treasureLedger(
+            RedisTemplate<String, String> redisTemplate,
+            CaveMetrics metrics,
+            MeterRegistry meterRegistry,
+            @Value("${app.config.server.cave.ledger.page-size:10000}") int pageSize,
+            @Value("${app.config.server.cave.ledger.retention:24h}") Duration retention,
+            @Value("${app.config.server.cave.ledger.compaction-interval:5m}") Duration compactionInterval,
+            @Value("${app.config.server.cave.striping.enabled:false}") boolean striping,
+            @Value("${app.config.server.cave.versioning.enabled:false}") boolean versioning,
+            @Value("${app.config.server.cave.write-behind.enabled:false}") boolean writeBehind,
+            @Value("${app.config.server.cave.reactive.enabled:false}") boolean reactive) {
+        if (striping || versioning || writeBehind || reactive) {
+            throw new IllegalStateException("app.config.server.cave.ledger.enabled can't be combined with "
+                    + "striping, versioning, write-behind or reactive");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("app.config.server.cave.ledger.page-size must be at least 1");
+        }
+        return new TreasureLedger(redisTemplate, INITIAL_TREASURES, pageSize, retention, compactionInterval,
+                Clock.systemUTC(), metrics, meterRegistry);
+    }
+}
@@ -0,0 +1,92 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.ClientTrackingInvalidator;
+import com.johnmanko.portfolio.alibabassecret.services.KeyspaceNotificationInvalidator;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureNearCache;
+import io.lettuce.core.RedisURI;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.ALIBABA_TREASURE;
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.THIEVES_TREASURE;
+
+/**
+ * Properties:
+ * app.config.server.cave.near-cache.enabled
+ * app.config.server.cave.near-cache.maximum-size
+ * app.config.server.cave.near-cache.invalidation - tracking (RESP3 CLIENT TRACKING, default) or keyspace
+ * app.config.server.cave.near-cache.keyspace.configure-server - CONFIG SET notify-keyspace-events on startup
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.cave.near-cache.enabled",
+        havingValue = "true"
+)
+public class NearCacheConfig {
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @ConditionalOnProperty(
+            value = "app.config.server.cave.near-cache.invalidation",
+            havingValue = "tracking",
+            matchIfMissing = true
+    )
+    public ClientTrackingInvalidator clientTrackingInvalidator(TreasureNearCache nearCache,
+                                                               RedisConnectionDetails connectionDetails) {
+        return new ClientTrackingInvalidator(nearCache, redisUri(connectionDetails),
+                THIEVES_TREASURE, ALIBABA_TREASURE);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(
+            value = "app.config.server.cave.near-cache.invalidation",
+            havingValue = "keyspace"
+    )
+    public KeyspaceNotificationInvalidator keyspaceNotificationInvalidator(
+            TreasureNearCache nearCache,
+            RedisConnectionDetails connectionDetails,
+            @Value("${app.config.server.cave.near-cache.keyspace.configure-server:false}") boolean configureServer) {
+        KeyspaceNotificationInvalidator invalidator = new KeyspaceNotificationInvalidator(
+                nearCache, redisUri(connectionDetails), THIEVES_TREASURE, ALIBABA_TREASURE);
+        invalidator.start(configureServer);
+        return invalidator;
+    }
+
+    // Both invalidators hold a Lettuce connection of their own, outside the shared connection factory.
+    // With Sentinel it follows the primary, also after a failover. A Cluster connection would only see
+    // the changes of one node, so that combination is refused.
+    private static RedisURI redisUri(RedisConnectionDetails connectionDetails) {
+        if (connectionDetails.getCluster() != null) {
+            throw new IllegalStateException("app.config.server.cave.near-cache.enabled=true can't be combined with "
+                    + "Redis Cluster, invalidations are only received from a single node");
+        }
+        RedisURI.Builder uri;
+        RedisConnectionDetails.Sentinel sentinel = connectionDetails.getSentinel();
+        if (sentinel != null) {
+            uri = RedisURI.builder()
+                    .withSentinelMasterId(sentinel.getMaster())
+                    .withDatabase(sentinel.getDatabase());
+            for (RedisConnectionDetails.Node node : sentinel.getNodes()) {
+                uri.withSentinel(authenticate(RedisURI.Builder.redis(node.host(), node.port()),
+                        sentinel.getUsername(), sentinel.getPassword()).build());
+            }
+        } else {
+            RedisConnectionDetails.Standalone standalone = connectionDetails.getStandalone();
+            uri = RedisURI.Builder.redis(standalone.getHost(), standalone.getPort())
+                    .withDatabase(standalone.getDatabase());
+        }
+        return authenticate(uri, connectionDetails.getUsername(), connectionDetails.getPassword()).build();
+    }
+
+    private static RedisURI.Builder authenticate(RedisURI.Builder uri, String username, String password) {
+        if (username != null) {
+            uri.withAuthentication(username, password);
+        } else if (password != null) {
+            uri.withPassword(password.toCharArray());
+        }
+        return uri;
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.rest.RateLimitFilter;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.LocalRateLimiter;
+import com.johnmanko.portfolio.alibabassecret.services.RateLimiter;
+import com.johnmanko.portfolio.alibabassecret.services.RedisRateLimiter;
+import com.johnmanko.portfolio.alibabassecret.services.RedisResilience;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Properties:
+ * app.config.server.rate-limit.enabled
+ * app.config.server.rate-limit.mode - local (per instance, default) or redis (shared by all instances)
+ * app.config.server.rate-limit.read.rate, read.burst - requests per second and burst for each caller's GET endpoints
+ * app.config.server.rate-limit.write.rate, write.burst - the same for take-treasure
+ * app.config.server.rate-limit.local.maximum-size - buckets kept in memory
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.rate-limit.enabled",
+        havingValue = "true"
+)
+public class RateLimitConfig {
+
+    @Value("${app.config.server.rate-limit.read.rate:20}")
+    private double readRate;
+    @Value("${app.config.server.rate-limit.read.burst:40}")
+    private int readBurst;
+    @Value("${app.config.server.rate-limit.write.rate:2}")
+    private double writeRate;
+    @Value("${app.config.server.rate-limit.write.burst:5}")
+    private int writeBurst;
+
+    @Bean
+    public RateLimiter rateLimiter(
+            RedisTemplate<String, String> redisTemplate,
+            CaveMetrics metrics,
+            Optional<RedisResilience> resilience,
+            @Value("${app.config.server.rate-limit.mode:local}") String mode,
+            @Value("${app.config.server.rate-limit.local.maximum-size:100000}") long maximumSize) {
+        return switch (mode) {
+            case "local" -> {
+                // A bucket idle for this long is full again, forgetting it changes nothing
+                long refill = Math.max(readLimit().intervalNanos() * readBurst, writeLimit().intervalNanos() * writeBurst);
+                yield new LocalRateLimiter(maximumSize, Duration.ofNanos(refill).plusSeconds(1));
+            }
+            case "redis" -> new RedisRateLimiter(redisTemplate,
+                    RedisConfig.script("redis/rate-limit.lua", Long.class), metrics,
+                    resilience.orElse(null));
+            default -> throw new IllegalArgumentException("app.config.server.rate-limit.mode must be local or redis");
+        };
+    }
+
+    @Bean
+    public FilterRegistrationBean<RateLimitFilter> rateLimitFilter(RateLimiter rateLimiter, MeterRegistry meterRegistry) {
+        FilterRegistrationBean<RateLimitFilter> registration = new FilterRegistrationBean<>(
+                new RateLimitFilter(rateLimiter, readLimit(), writeLimit(), meterRegistry));
+        registration.addUrlPatterns("/api/cave/*");
+        return registration;
+    }
+
+    private RateLimiter.Limit readLimit() {
+        return new RateLimiter.Limit(readRate, readBurst);
+    }
+
+    private RateLimiter.Limit writeLimit() {
+        return new RateLimiter.Limit(writeRate, writeBurst);
+    }
+}
@@ -1,15 +1,42 @@
 package com.johnmanko.portfolio.alibabassecret.config;
 
+import io.lettuce.core.ReadFrom;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientConfigurationBuilderCustomizer;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultScriptExecutor;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
 /**
  * Properties:
- * spring.redis.host
- * spring.redis.port
+ * spring.data.redis.host, spring.data.redis.port - a single node, or the primary of a replicated setup
+ * spring.data.redis.cluster.nodes - Redis Cluster seed nodes, needs app.config.server.cave.striping.enabled=true
+ * spring.data.redis.sentinel.master, spring.data.redis.sentinel.nodes - primary and replicas found through Sentinel
+ * spring.data.redis.lettuce.pool.* - pool of dedicated connections (commons-pool2)
+ * app.config.server.redis.read-from - Lettuce ReadFrom for read commands, e.g. replicaPreferred (default: primary)
+ *
+ * All regular commands share one multiplexed Lettuce connection, whatever the pool settings.
+ * The pool only serves dedicated connections: write-behind pipelines, transactions and blocking commands.
+ * With read-from set, reads (GET, MGET) go to replicas, writes and scripts still go to the primary.
+ * A standalone primary finds its replicas with INFO replication.
  * Reference:
  * https://spring.io/projects/spring-data-redis
  * https://docs.spring.io/spring-data/redis/reference/redis.html
@@ -17,13 +44,130 @@ import org.springframework.data.redis.serializer.StringRedisSerializer;
 @Configuration
 public class RedisConfig {
 
+    /**
+     * Routes reads to replicas when app.config.server.redis.read-from is set.
+     * The transfer script moves treasure between two keys, which Redis Cluster only allows in one hash slot:
+     * only the striped store's stripe pairs share a slot, so Cluster needs striping (servlet endpoints).
+     */
+    @Bean
+    public LettuceClientConfigurationBuilderCustomizer redisTopologyCustomizer(
+            Optional<RedisConnectionDetails> connectionDetails,
+            @Value("${app.config.server.redis.read-from:}") String readFrom,
+            @Value("${app.config.server.cave.striping.enabled:false}") boolean striping,
+            @Value("${app.config.server.cave.reactive.enabled:false}") boolean reactive) {
+        if (connectionDetails.map(RedisConnectionDetails::getCluster).isPresent() && (!striping || reactive)) {
+            throw new IllegalStateException("Redis Cluster needs app.config.server.cave.striping.enabled=true "
+                    + "and app.config.server.cave.reactive.enabled=false, plain balances live in different slots");
+        }
+        return builder -> {
+            if (!readFrom.isBlank()) {
+                builder.readFrom(ReadFrom.valueOf(readFrom));
+            }
+        };
+    }
+
     @Bean
     public RedisTemplate<String, String> redisTemplate(RedisConnectionFactory redisConnectionFactory) {
         RedisTemplate<String, String> template = new RedisTemplate<>();
         template.setConnectionFactory(redisConnectionFactory);
         template.setKeySerializer(new StringRedisSerializer());
         template.setValueSerializer(new StringRedisSerializer());
+        // Stream entries and the ledger snapshot are string fields and values (see TreasureLedger)
+        template.setHashKeySerializer(new StringRedisSerializer());
+        template.setHashValueSerializer(new StringRedisSerializer());
+        template.setScriptExecutor(new ConnectionScriptExecutor<>(template));
         return template;
     }
 
+    /**
+     * Raw values, for key families written with a binary TreasureCodec (e.g. idempotency records).
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> binaryRedisTemplate(RedisConnectionFactory redisConnectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(redisConnectionFactory);
+        template.setKeySerializer(new StringRedisSerializer());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setScriptExecutor(new ConnectionScriptExecutor<>(template));
+        return template;
+    }
+
+    /**
+     * Raw values for the reactive endpoints, e.g. Idempotency-Key records (see IdempotencyCache).
+     */
+    @Bean
+    @ConditionalOnProperty(
+            value = "app.config.server.cave.reactive.enabled",
+            havingValue = "true"
+    )
+    public ReactiveRedisTemplate<String, byte[]> reactiveBinaryRedisTemplate(
+            ReactiveRedisConnectionFactory reactiveRedisConnectionFactory) {
+        return new ReactiveRedisTemplate<>(reactiveRedisConnectionFactory,
+                RedisSerializationContext.<String, byte[]>newSerializationContext(new StringRedisSerializer())
+                        .value(RedisSerializer.byteArray())
+                        .build());
+    }
+
+    /**
+     * Check-and-move of treasure between two balances, executed server side in a single round trip.
+     * RedisTemplate runs scripts by EVALSHA and only falls back to EVAL when the script isn't cached yet.
+     * Reference:
+     * https://docs.spring.io/spring-data/redis/reference/redis/scripting.html
+     */
+    @Bean
+    @SuppressWarnings("rawtypes")
+    public RedisScript<List> transferScript() {
+        return script("redis/transfer.lua", List.class);
+    }
+
+    /**
+     * Moves up to an amount between two stripes of a striped counter (see StripedRedisService).
+     */
+    @Bean
+    public RedisScript<Long> stripeTransferScript() {
+        return script("redis/stripe-transfer.lua", Long.class);
+    }
+
+    /**
+     * Reads a Lua script from the classpath once. A script made from a Resource checks the file's last
+     * modification time on every call, under a lock shared by all callers, before sending its SHA.
+     */
+    public static <T> RedisScript<T> script(String path, Class<T> resultType) {
+        try {
+            return RedisScript.of(new ClassPathResource(path).getContentAsString(StandardCharsets.UTF_8), resultType);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + path, e);
+        }
+    }
+
+    /**
+     * DefaultScriptExecutor, except that the callback gets the connection itself. DefaultScriptExecutor asks
+     * RedisTemplate for a close-suppressing JDK proxy of the connection, built with reflection on every script
+     * call, which made a transfer script allocate and cost more than the GETs and SETs it replaces.
+     */
+    private static class ConnectionScriptExecutor<K> extends DefaultScriptExecutor<K> {
+
+        private final RedisTemplate<K, ?> template;
+
+        ConnectionScriptExecutor(RedisTemplate<K, ?> template) {
+            super(template);
+            this.template = template;
+        }
+
+        @Override
+        public <T> T execute(RedisScript<T> script, RedisSerializer<?> argsSerializer,
+                             RedisSerializer<T> resultSerializer, List<K> keys, Object... args) {
+            return template.execute((RedisCallback<T>) connection -> {
+                ReturnType returnType = ReturnType.fromJavaType(script.getResultType());
+                byte[][] keysAndArgs = keysAndArgs(argsSerializer, keys, args);
+                int keySize = keys != null ? keys.size() : 0;
+                if (connection.isPipelined() || connection.isQueueing()) {
+                    // Replies are read when the pipeline or transaction ends, too late to retry on NOSCRIPT
+                    connection.scriptingCommands().eval(scriptBytes(script), returnType, keySize, keysAndArgs);
+                    return null;
+                }
+                return eval(connection, script, returnType, keySize, keysAndArgs, resultSerializer);
+            }, true);
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.RedisResilience;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.protocol.RedisCommand;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.LettuceClientOptionsBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Properties:
+ * app.config.server.cave.resilience.enabled
+ * app.config.server.cave.resilience.timeout.get, .mget, .set, .transfer - per-operation Redis timeouts
+ * app.config.server.cave.resilience.bulkhead.read, .write - concurrent Redis calls per bulkhead (read permits, write threads)
+ * app.config.server.cave.resilience.circuit.window - calls the failure rate is computed over
+ * app.config.server.cave.resilience.circuit.failure-rate - share of failed calls that opens the circuit
+ * app.config.server.cave.resilience.circuit.open-duration - how long an open circuit fails fast
+ * app.config.server.cave.resilience.circuit.half-open-calls - trial calls that must succeed to close it
+ * app.config.server.cave.resilience.stale.max-age - oldest snapshot a failed read may be answered from
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.cave.resilience.enabled",
+        havingValue = "true"
+)
+public class ResilienceConfig {
+
+    @Bean(destroyMethod = "close")
+    public RedisResilience redisResilience(
+            MeterRegistry meterRegistry,
+            @Value("${app.config.server.cave.resilience.timeout.get:250ms}") Duration getTimeout,
+            @Value("${app.config.server.cave.resilience.timeout.mget:250ms}") Duration mgetTimeout,
+            @Value("${app.config.server.cave.resilience.timeout.set:500ms}") Duration setTimeout,
+            @Value("${app.config.server.cave.resilience.timeout.transfer:1s}") Duration transferTimeout,
+            @Value("${app.config.server.cave.resilience.bulkhead.read:32}") int readConcurrency,
+            @Value("${app.config.server.cave.resilience.bulkhead.write:16}") int writeConcurrency,
+            @Value("${app.config.server.cave.resilience.circuit.window:50}") int window,
+            @Value("${app.config.server.cave.resilience.circuit.failure-rate:0.5}") double failureRate,
+            @Value("${app.config.server.cave.resilience.circuit.open-duration:5s}") Duration openDuration,
+            @Value("${app.config.server.cave.resilience.circuit.half-open-calls:5}") int halfOpenCalls,
+            @Value("${app.config.server.cave.resilience.stale.max-age:5m}") Duration maxStaleness) {
+        Map<String, Duration> timeouts = Map.of(
+                "get", getTimeout,
+                "mget", mgetTimeout,
+                "set", setTimeout,
+                "transfer", transferTimeout);
+        return new RedisResilience(timeouts, readConcurrency, writeConcurrency,
+                window, failureRate, openDuration, halfOpenCalls, maxStaleness, meterRegistry);
+    }
+
+    /**
+     * Lettuce times out each command sent inside a guarded call after that call's timeout, so guarded reads can
+     * run on the calling thread. Other commands keep spring.data.redis.timeout.
+     */
+    @Bean
+    public LettuceClientOptionsBuilderCustomizer resilienceCommandTimeouts(
+            @Value("${spring.data.redis.timeout:60s}") Duration commandTimeout) {
+        TimeoutOptions.TimeoutSource timeouts = new TimeoutOptions.TimeoutSource() {
+            @Override
+            public long getTimeout(RedisCommand<?, ?, ?> command) {
+                Duration timeout = RedisResilience.commandTimeout();
+                return (timeout != null ? timeout : commandTimeout).toNanos();
+            }
+
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.NANOSECONDS;
+            }
+        };
+        return builder -> builder.timeoutOptions(TimeoutOptions.builder()
+                .timeoutCommands()
+                .timeoutSource(timeouts)
+                .build());
+    }
+}
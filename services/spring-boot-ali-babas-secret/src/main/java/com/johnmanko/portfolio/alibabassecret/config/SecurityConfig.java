@@ -1,8 +1,12 @@
 package com.johnmanko.portfolio.alibabassecret.config;
 
+import com.johnmanko.portfolio.alibabassecret.services.JwtAuthenticationCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -16,6 +20,7 @@ import org.springframework.security.web.SecurityFilterChain;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -57,11 +62,18 @@ public class SecurityConfig {
     private boolean disableCsrf;
     @Value("${app.config.server.auth.auth0.custom-jwt-namespace}")
     private String customJwtNamespace;
+    // Requests on the management port (management.server.port) only reach actuator endpoints
+    @Value("${management.server.port:-1}")
+    private int managementPort;
 
     @Bean
     public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
         http.authorizeHttpRequests(auth -> auth
                     .requestMatchers("/public/**").permitAll()
+                    .requestMatchers(request -> managementPort > 0 && request.getLocalPort() == managementPort)
+                        .permitAll()
+                    .requestMatchers("/actuator/health").permitAll()
+                    .requestMatchers("/actuator/prometheus").hasAuthority("SCOPE_read:metrics")
                     .anyRequest().authenticated()
             )
             .cors(Customizer.withDefaults())
@@ -75,16 +87,27 @@ public class SecurityConfig {
     }
 
     @Bean
-    public JwtAuthenticationConverter jwtAuthenticationConverter() {
+    public JwtAuthenticationConverter jwtAuthenticationConverter(Optional<JwtAuthenticationCache> jwtCache,
+                                                                 MeterRegistry meterRegistry) {
         JwtGrantedAuthoritiesConverter grantedAuthoritiesConverter = new JwtGrantedAuthoritiesConverter();
         grantedAuthoritiesConverter.setAuthoritiesClaimName("permissions");
 
-        JwtAuthenticationConverter jwtAuthenticationConverter = new JwtAuthenticationConverter();
-        jwtAuthenticationConverter.setJwtGrantedAuthoritiesConverter(jwt -> {
+        Converter<Jwt, Collection<GrantedAuthority>> authoritiesConverter = jwt -> {
             Collection<GrantedAuthority> authorities = extractRoles(jwt);
             authorities.addAll(grantedAuthoritiesConverter.convert(jwt));
             return authorities;
-        });
+        };
+
+        Converter<Jwt, Collection<GrantedAuthority>> convertOrCached = jwtCache
+                .map(cache -> cache.authoritiesConverter(authoritiesConverter))
+                .orElse(authoritiesConverter);
+        Timer conversion = Timer.builder("cave.jwt.conversion")
+                .description("Time to turn a decoded JWT into granted authorities")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+
+        JwtAuthenticationConverter jwtAuthenticationConverter = new JwtAuthenticationConverter();
+        jwtAuthenticationConverter.setJwtGrantedAuthoritiesConverter(jwt -> conversion.record(() -> convertOrCached.convert(jwt)));
         return jwtAuthenticationConverter;
     }
 
@@ -0,0 +1,47 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureStream;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import java.time.Duration;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.ALIBABA_TREASURE;
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.THIEVES_TREASURE;
+
+/**
+ * Properties:
+ * app.config.server.cave.stream.enabled
+ * app.config.server.cave.stream.interval - at most one update per subscriber per interval
+ * app.config.server.cave.stream.heartbeat - comment sent to idle connections, and notify-keyspace-events checked again
+ * app.config.server.cave.stream.timeout - connection lifetime, EventSource clients reconnect
+ * app.config.server.cave.stream.keyspace.configure-server - CONFIG SET notify-keyspace-events on startup
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.cave.stream.enabled",
+        havingValue = "true"
+)
+public class TreasureStreamConfig {
+
+    @Bean(destroyMethod = "close")
+    public TreasureStream treasureStream(
+            CaveService cave,
+            RedisConnectionFactory connectionFactory,
+            MeterRegistry meterRegistry,
+            @Value("${app.config.server.cave.stream.interval:1s}") Duration interval,
+            @Value("${app.config.server.cave.stream.heartbeat:15s}") Duration heartbeat,
+            @Value("${app.config.server.cave.stream.timeout:30m}") Duration timeout,
+            @Value("${app.config.server.cave.stream.keyspace.configure-server:false}") boolean configureServer) {
+        TreasureStream stream = new TreasureStream(cave, connectionFactory, interval, heartbeat, timeout,
+                meterRegistry, THIEVES_TREASURE, ALIBABA_TREASURE);
+        stream.start(configureServer);
+        return stream;
+    }
+
+}
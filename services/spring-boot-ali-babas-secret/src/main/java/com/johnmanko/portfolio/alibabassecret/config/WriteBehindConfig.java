@@ -0,0 +1,49 @@
+package com.johnmanko.portfolio.alibabassecret.config;
+
+import com.johnmanko.portfolio.alibabassecret.services.TreasureWriteBuffer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Properties:
+ * app.config.server.cave.write-behind.enabled
+ * app.config.server.cave.write-behind.queue-capacity - writes waiting to be flushed before callers are pushed back
+ * app.config.server.cave.write-behind.max-batch - writes per pipelined flush
+ * app.config.server.cave.write-behind.window - how long a flush lingers for more writes (0: flush when free)
+ * app.config.server.cave.write-behind.acknowledge - after-flush (default) or on-enqueue, for initializations
+ * app.config.server.cave.write-behind.ack-timeout - how long a caller waits for its flush before answering 503
+ */
+@Configuration
+@ConditionalOnProperty(
+        value = "app.config.server.cave.write-behind.enabled",
+        havingValue = "true"
+)
+public class WriteBehindConfig {
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @SuppressWarnings("rawtypes")
+    public TreasureWriteBuffer treasureWriteBuffer(
+            RedisTemplate<String, String> redisTemplate,
+            RedisScript<List> transferScript,
+            MeterRegistry meterRegistry,
+            @Value("${app.config.server.cave.write-behind.queue-capacity:10000}") int queueCapacity,
+            @Value("${app.config.server.cave.write-behind.max-batch:256}") int maxBatch,
+            @Value("${app.config.server.cave.write-behind.window:0ms}") Duration window,
+            @Value("${app.config.server.cave.write-behind.acknowledge:after-flush}") String acknowledge,
+            @Value("${app.config.server.cave.write-behind.ack-timeout:5s}") Duration ackTimeout) {
+        if (!"after-flush".equals(acknowledge) && !"on-enqueue".equals(acknowledge)) {
+            throw new IllegalArgumentException(
+                    "app.config.server.cave.write-behind.acknowledge must be after-flush or on-enqueue");
+        }
+        return new TreasureWriteBuffer(redisTemplate, transferScript, queueCapacity, maxBatch, window,
+                "after-flush".equals(acknowledge), ackTimeout, meterRegistry);
+    }
+}
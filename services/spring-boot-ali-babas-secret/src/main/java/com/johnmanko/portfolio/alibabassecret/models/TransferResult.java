@@ -0,0 +1,11 @@
+package com.johnmanko.portfolio.alibabassecret.models;
+
+/**
+ * conflict: nothing was moved because the source balance's version wasn't the expected one
+ */
+public record TransferResult(boolean transferred, long fromAmount, long toAmount, boolean conflict) {
+
+    public TransferResult(boolean transferred, long fromAmount, long toAmount) {
+        this(transferred, fromAmount, toAmount, false);
+    }
+}
@@ -1,5 +1,5 @@
 package com.johnmanko.portfolio.alibabassecret.models;
 
-public record TreasureModel(String owner, int amount) {
+public record TreasureModel(String owner, long amount) {
 
 }
@@ -0,0 +1,10 @@
+package com.johnmanko.portfolio.alibabassecret.models;
+
+import java.util.OptionalLong;
+
+/**
+ * A balance and its version, read together. Version 0 means the balance has none yet.
+ */
+public record VersionedBalance(OptionalLong amount, long version) {
+
+}
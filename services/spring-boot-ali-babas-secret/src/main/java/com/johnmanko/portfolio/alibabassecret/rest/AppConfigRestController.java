@@ -1,25 +1,132 @@
 package com.johnmanko.portfolio.alibabassecret.rest;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.johnmanko.portfolio.alibabassecret.models.AppConfigModel;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves /public/config.json from bytes encoded when the context is refreshed, not per request.
+ * Each representation has a strong ETag; a matching If-None-Match is answered 304 by Spring MVC
+ * (HttpEntityMethodProcessor), without a body.
+ *
+ * The gzip variant is only kept when it's smaller than the JSON, which it isn't for the two fields
+ * served today, so the response stays uncompressed until the config grows.
+ *
+ * Properties:
+ * app.config.server.public-config.max-age
+ * app.config.server.public-config.gzip
+ */
 @RestController
 @RequestMapping("/public")
 public class AppConfigRestController {
 
-    @Value("${app.config.client.auth.auth0.domain}")
-    private String authAuth0Domain;
+    private record Representation(byte[] body, String etag) {
+    }
+
+    private record Encoded(Representation json, Representation gzip) {
+    }
+
+    private final Environment environment;
+    private final ObjectMapper objectMapper;
+    private final CacheControl cacheControl;
+    private final boolean gzip;
+    private volatile Encoded encoded;
+
+    public AppConfigRestController(Environment environment, ObjectMapper objectMapper,
+                                   @Value("${app.config.server.public-config.max-age:PT1M}") Duration maxAge,
+                                   @Value("${app.config.server.public-config.gzip:true}") boolean gzip) {
+        this.environment = environment;
+        this.objectMapper = objectMapper;
+        this.cacheControl = CacheControl.maxAge(maxAge).cachePublic();
+        this.gzip = gzip;
+        encode();
+    }
 
-    @Value("${app.config.client.auth.auth0.client-id}")
-    private String authAuth0ClientId;
+    /**
+     * Re-reads the client config from the Environment, so a refreshed context serves the new values.
+     */
+    @EventListener(ContextRefreshedEvent.class)
+    public void encode() {
+        AppConfigModel config = new AppConfigModel(
+                environment.getRequiredProperty("app.config.client.auth.auth0.domain"),
+                environment.getRequiredProperty("app.config.client.auth.auth0.client-id"));
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(config);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        String etag = DigestUtils.md5DigestAsHex(json);
+
+        Representation compressed = null;
+        if (gzip) {
+            byte[] gzipped = gzip(json);
+            if (gzipped.length < json.length) {
+                compressed = new Representation(gzipped, etag + "-gzip");
+            }
+        }
+        encoded = new Encoded(new Representation(json, etag), compressed);
+    }
 
     @GetMapping(value="/config.json", produces = MediaType.APPLICATION_JSON_VALUE)
-    public AppConfigModel getAppConfig() {
-        return new AppConfigModel(authAuth0Domain, authAuth0ClientId);
+    public ResponseEntity<byte[]> getAppConfig(
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        Encoded encoded = this.encoded;
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .cacheControl(cacheControl);
+        if (encoded.gzip() == null) {
+            return response.eTag(encoded.json().etag()).body(encoded.json().body());
+        }
+        response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip(acceptEncoding)) {
+            return response.eTag(encoded.gzip().etag())
+                    .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                    .body(encoded.gzip().body());
+        }
+        return response.eTag(encoded.json().etag()).body(encoded.json().body());
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+                return parameters.length == 1 || !parameters[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
     }
 
 }
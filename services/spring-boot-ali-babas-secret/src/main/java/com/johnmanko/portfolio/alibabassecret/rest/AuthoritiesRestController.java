@@ -0,0 +1,37 @@
+package com.johnmanko.portfolio.alibabassecret.rest;
+
+import org.springframework.http.MediaType;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The caller's name and granted authorities, served next to whichever cave controller is active
+ * ({@link CaveRestController} or {@link ReactiveCaveRestController}).
+ */
+@RestController
+@RequestMapping("/api/cave")
+public class AuthoritiesRestController {
+
+    @GetMapping(value="/authorities", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String,Object> getPrincipalInfo(JwtAuthenticationToken principal) {
+
+        Collection<String> authorities = principal.getAuthorities()
+                .stream()
+                .map(GrantedAuthority::getAuthority)
+                .collect(Collectors.toList());
+
+        Map<String,Object> info = new HashMap<>();
+        info.put("name", principal.getName());
+        info.put("authorities", authorities);
+
+        return info;
+    }
+}
@@ -1,18 +1,27 @@
 package com.johnmanko.portfolio.alibabassecret.rest;
 
+import com.johnmanko.portfolio.alibabassecret.config.AsyncConfig;
 import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
-import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.IdempotencyCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.*;
 
 /**
  *
@@ -21,95 +30,133 @@ import java.util.stream.Collectors;
  * https://docs.spring.io/spring-security/reference/servlet/authorization/authorize-http-requests.html#authorization-expressions
  * https://docs.spring.io/spring-security/reference/servlet/authorization/method-security.html#use-preauthorize
  * https://docs.spring.io/spring-security/reference/servlet/authorization/architecture.html#_the_authorizationmanager
+ *
+ * Each endpoint makes a single hop onto the cave executor and runs the plain blocking {@link CaveService} there.
+ * With virtual threads enabled the cave executor runs inline on the request's own virtual thread.
+ * With versioned balances, single-owner reads carry the balance's version as a strong ETag. If-None-Match is
+ * answered 304 after reading the version alone, and If-Match makes take-treasure a compare-and-set.
+ * Replaced by {@link ReactiveCaveRestController} when app.config.server.cave.reactive.enabled=true.
  */
 @RestController
 @RequestMapping("/api/cave")
+@ConditionalOnProperty(
+        value = "app.config.server.cave.reactive.enabled",
+        havingValue = "false",
+        matchIfMissing = true
+)
 public class CaveRestController {
 
     @Autowired
-    private RedisService redis;
-
-    @GetMapping(value="/authorities", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Map<String,Object> getPrincipalInfo(JwtAuthenticationToken principal) {
+    private CaveService cave;
 
-        Collection<String> authorities = principal.getAuthorities()
-                .stream()
-                .map(GrantedAuthority::getAuthority)
-                .collect(Collectors.toList());
-
-        Map<String,Object> info = new HashMap<>();
-        info.put("name", principal.getName());
-        info.put("authorities", authorities);
+    @Autowired
+    @Qualifier(AsyncConfig.CAVE_EXECUTOR)
+    private Executor caveExecutor;
 
-        return info;
-    }
+    @Autowired
+    private Optional<IdempotencyCache> idempotency;
 
     @GetMapping(value="/thieves-treasure", produces = MediaType.APPLICATION_JSON_VALUE)
     @PreAuthorize("hasRole('treasure-hunter')")
-    public CompletableFuture<TreasureModel> getTreasureCount() {
-        return getTreasure("thieves-treasure", 1000);
+    public CompletableFuture<ResponseEntity<TreasureModel>> getTreasureCount(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return CompletableFuture.supplyAsync(
+                () -> getTreasure(THIEVES_TREASURE, THIEVES_INITIAL_TREASURE, ifNoneMatch), caveExecutor);
     }
 
     @GetMapping(value="/alibaba-treasure", produces = MediaType.APPLICATION_JSON_VALUE)
     @PreAuthorize("hasAuthority('SCOPE_see:alibaba-treasure')")
-    public CompletableFuture<TreasureModel> getAliBabasTreasureCount() {
-        return getTreasure("alibaba-treasure", 0);
+    public CompletableFuture<ResponseEntity<TreasureModel>> getAliBabasTreasureCount(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return CompletableFuture.supplyAsync(
+                () -> getTreasure(ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE, ifNoneMatch), caveExecutor);
+    }
+
+    /**
+     * Reads several treasures in one request, e.g. /api/cave/treasures?owners=thieves-treasure,alibaba-treasure
+     * Each owner needs the same authority as its single-owner endpoint.
+     */
+    @GetMapping(value="/treasures", produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<Map<String, Long>> getTreasures(@RequestParam Set<String> owners,
+                                                                JwtAuthenticationToken principal) {
+        CaveService.requireReadable(owners, principal.getAuthorities());
+        return CompletableFuture.supplyAsync(() -> cave.getTreasures(owners), caveExecutor);
     }
 
     @PostMapping(value="/take-treasure",
             produces = MediaType.APPLICATION_JSON_VALUE,
             consumes = MediaType.APPLICATION_JSON_VALUE)
     @PreAuthorize("hasAuthority('SCOPE_take:thieves-treasure')")
-    public CompletableFuture<Map<String, Integer>> takeTreasure(@RequestBody TreasureModel takeTreasure) {
-        return CompletableFuture.supplyAsync(() -> {
-
-            CompletableFuture<TreasureModel> thievesCountFuture = getTreasureCount();
-            CompletableFuture<TreasureModel> alibabaCountFuture = getAliBabasTreasureCount();
-
-            // Wait for both to complete and retrieve results
-            CompletableFuture<Void> combinedFuture = CompletableFuture.allOf(thievesCountFuture, alibabaCountFuture);
+    public CompletableFuture<Map<String, Long>> takeTreasure(
+            @RequestBody TreasureModel takeTreasure,
+            @RequestHeader(value = IdempotencyCache.HEADER, required = false) String idempotencyKey,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            JwtAuthenticationToken principal) {
+        long amount = takeTreasure.amount();
+        // The thieves' balance version the client last read, the take fails with 412 if it has changed since
+        long expectedVersion = ifMatch == null || !cave.versioned() ? 0 : expectedVersion(ifMatch);
+        if (idempotencyKey == null || idempotency.isEmpty()) {
+            return CompletableFuture.supplyAsync(() -> cave.takeTreasure(amount, expectedVersion), caveExecutor);
+        }
+        // A retry with the same Idempotency-Key gets the first result back instead of taking treasure again
+        return CompletableFuture.supplyAsync(() -> idempotency.get().takeOnce(
+                principal.getName(), idempotencyKey, amount, () -> cave.takeTreasure(amount, expectedVersion)),
+                caveExecutor);
+    }
 
-            // Block until all are done
-            combinedFuture.join();
+    private ResponseEntity<TreasureModel> getTreasure(String owner, long initialValue, String ifNoneMatch) {
+        if (!cave.versioned()) {
+            return ResponseEntity.ok(cave.getTreasure(owner, initialValue));
+        }
+        if (ifNoneMatch != null) {
+            long version = cave.getVersion(owner);
+            if (version != 0 && matches(ifNoneMatch, version)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(Long.toString(version)).build();
+            }
+        }
+        VersionedBalance balance = cave.getVersionedTreasure(owner, initialValue);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (balance.version() != 0) {
+            response.eTag(Long.toString(balance.version()));
+        }
+        return response.body(new TreasureModel(owner, balance.amount().getAsLong()));
+    }
 
-            TreasureModel thievesTreasure = null;
-            TreasureModel alibabaTreasure = null;
-            try {
-                thievesTreasure = thievesCountFuture.get();
-                alibabaTreasure = alibabaCountFuture.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
+    // If-None-Match holds "*" or a list of entity tags, weak ones compare by their value
+    private static boolean matches(String ifNoneMatch, long version) {
+        String expected = Long.toString(version);
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.trim();
+            if (value.equals("*")) {
+                return true;
             }
-            if (thievesTreasure.amount() < takeTreasure.amount()) {
-                throw new IllegalArgumentException("Not enough treasure to take");
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
             }
-
-            alibabaTreasure = new TreasureModel(alibabaTreasure.owner(), alibabaTreasure.amount() + takeTreasure.amount());
-            thievesTreasure = new TreasureModel(thievesTreasure.owner(), thievesTreasure.amount() - takeTreasure.amount());
-
-            redis.saveToRedis(alibabaTreasure.owner(), alibabaTreasure.amount(), 60);
-            redis.saveToRedis(thievesTreasure.owner(), thievesTreasure.amount(), 60);
-            Map<String, Integer> results = new HashMap<>();
-            results.put(alibabaTreasure.owner(), alibabaTreasure.amount());
-            results.put(thievesTreasure.owner(), thievesTreasure.amount());
-            return results;
-        });
+            if (value.equals("\"" + expected + "\"")) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private CompletableFuture<TreasureModel> getTreasure(String key, Integer initialValue) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                return redis.getFromRedis(key)
-                        .thenApply((value) -> {
-                            if (value.isEmpty()) {
-                                redis.saveToRedis(key, initialValue, 60);
-                            }
-                            return value.orElse(initialValue);
-                        }).thenApply(amount -> new TreasureModel(key, amount)).get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
+    // If-Match with one strong entity tag, "*" for any version
+    private static long expectedVersion(String ifMatch) {
+        String value = ifMatch.trim();
+        if (value.equals("*")) {
+            return 0;
+        }
+        try {
+            if (value.length() > 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                long version = Long.parseLong(value.substring(1, value.length() - 1));
+                if (version > 0) {
+                    return version;
+                }
             }
-        });
+        } catch (NumberFormatException e) {
+            // Not one of our versions, can't match
+        }
+        throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, THIEVES_TREASURE + " has changed");
     }
 
 }
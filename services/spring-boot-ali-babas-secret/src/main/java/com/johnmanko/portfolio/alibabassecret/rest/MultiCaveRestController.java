@@ -0,0 +1,120 @@
+package com.johnmanko.portfolio.alibabassecret.rest;
+
+import com.johnmanko.portfolio.alibabassecret.config.AsyncConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveHashStore;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.MAX_TREASURE;
+
+/**
+ * Treasure of any owner in any cave, e.g. /api/cave/sesame/treasure/cassim, kept in bucket hashes by
+ * {@link CaveHashStore}. Cave ids and owners are up to 64 characters of letters, digits and . _ | @ -
+ *
+ * GET reads a balance (404 for an owner the cave doesn't know), and POST .../{owner}/take-treasure moves
+ * the amount from {owner} to the owner in the body, like /take-treasure. With the take scope the owner in the
+ * body must be the caller (the token subject); only SCOPE_admin:treasure moves treasure to anyone else. PUT
+ * creates or overwrites a balance with any amount, so it needs that admin scope too, not the take scope.
+ * Served next to either cave controller, enabled with app.config.server.cave.multi-cave.enabled=true.
+ */
+@RestController
+@RequestMapping("/api/cave/{caveId}/treasure")
+@ConditionalOnProperty(
+        value = "app.config.server.cave.multi-cave.enabled",
+        havingValue = "true"
+)
+public class MultiCaveRestController {
+
+    static final String ADMIN_SCOPE = "SCOPE_admin:treasure";
+
+    @Autowired
+    private CaveHashStore store;
+
+    @Autowired
+    private CaveMetrics metrics;
+
+    @Autowired
+    @Qualifier(AsyncConfig.CAVE_EXECUTOR)
+    private Executor caveExecutor;
+
+    @GetMapping(value="/{owner}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasRole('treasure-hunter')")
+    public CompletableFuture<TreasureModel> getTreasure(@PathVariable String caveId, @PathVariable String owner) {
+        requireNames(caveId, owner);
+        return CompletableFuture.supplyAsync(() -> new TreasureModel(owner, store.get(caveId, owner)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "No treasure owner " + owner + " in cave " + caveId))), caveExecutor);
+    }
+
+    @PutMapping(value="/{owner}",
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            consumes = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasAuthority('" + ADMIN_SCOPE + "')")
+    public CompletableFuture<TreasureModel> putTreasure(@PathVariable String caveId, @PathVariable String owner,
+                                                        @RequestBody TreasureModel treasure) {
+        requireNames(caveId, owner);
+        if (treasure.amount() < 0 || treasure.amount() > MAX_TREASURE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Treasure must be between 0 and " + MAX_TREASURE);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            store.set(caveId, owner, treasure.amount());
+            return new TreasureModel(owner, treasure.amount());
+        }, caveExecutor);
+    }
+
+    @PostMapping(value="/{owner}/take-treasure",
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            consumes = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasAuthority('SCOPE_take:thieves-treasure') or hasAuthority('" + ADMIN_SCOPE + "')")
+    public CompletableFuture<Map<String, Long>> takeTreasure(@PathVariable String caveId, @PathVariable String owner,
+                                                             @RequestBody TreasureModel takeTreasure,
+                                                             JwtAuthenticationToken principal) {
+        String taker = takeTreasure.owner();
+        requireNames(caveId, owner);
+        requireNames(caveId, taker);
+        if (owner.equals(taker)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Can't take treasure from oneself");
+        }
+        if (takeTreasure.amount() <= 0 || takeTreasure.amount() > MAX_TREASURE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Treasure to take must be between 1 and " + MAX_TREASURE);
+        }
+        if (!taker.equals(principal.getName()) && principal.getAuthorities().stream()
+                .noneMatch(authority -> ADMIN_SCOPE.equals(authority.getAuthority()))) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Treasure can only be taken for oneself");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            TransferResult transfer = store.transfer(caveId, owner, taker, takeTreasure.amount());
+            if (!transfer.transferred()) {
+                metrics.insufficientTreasure();
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not enough treasure to take");
+            }
+            Map<String, Long> results = new HashMap<>();
+            results.put(owner, transfer.fromAmount());
+            results.put(taker, transfer.toAmount());
+            return results;
+        }, caveExecutor);
+    }
+
+    private static void requireNames(String caveId, String owner) {
+        if (!CaveHashStore.isValidName(caveId) || !CaveHashStore.isValidName(owner)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cave or owner name");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.johnmanko.portfolio.alibabassecret.rest;
+
+import com.johnmanko.portfolio.alibabassecret.services.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Rate limits authenticated /api/cave requests per caller (the token's subject) and endpoint (method and path),
+ * with the read limit for GETs and the write limit for everything else.
+ * Multi-cave paths count as their endpoint, /api/cave/{caveId}/treasure/{owner}, so varying the cave or owner
+ * doesn't give a caller fresh buckets.
+ *
+ * Runs after the Spring Security filter chain, so unauthenticated requests are already answered 401 and
+ * the principal is known. A rejected request gets 429 with Retry-After and never reaches the controllers or Redis.
+ * Decisions are counted as cave.rate-limit{limit,result}.
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final String READ = "read";
+    private static final String WRITE = "write";
+    private static final Pattern MULTI_CAVE = Pattern.compile("^/api/cave/[^/]+/treasure/[^/]+");
+
+    private final RateLimiter limiter;
+    private final RateLimiter.Limit readLimit;
+    private final RateLimiter.Limit writeLimit;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public RateLimitFilter(RateLimiter limiter, RateLimiter.Limit readLimit, RateLimiter.Limit writeLimit,
+                           MeterRegistry meterRegistry) {
+        this.limiter = limiter;
+        this.readLimit = readLimit;
+        this.writeLimit = writeLimit;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (!(authentication instanceof JwtAuthenticationToken principal)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        boolean read = HttpMethod.GET.matches(request.getMethod());
+        String key = principal.getName() + ' ' + request.getMethod() + ' '
+                + MULTI_CAVE.matcher(request.getRequestURI()).replaceFirst("/api/cave/{caveId}/treasure/{owner}");
+        long wait = limiter.tryAcquire(key, read ? readLimit : writeLimit);
+        String limit = read ? READ : WRITE;
+        if (wait == 0) {
+            count(limit, "allowed");
+            chain.doFilter(request, response);
+            return;
+        }
+
+        count(limit, "rejected");
+        long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write("{\"status\":429,\"error\":\"Too Many Requests\"}");
+    }
+
+    private void count(String limit, String result) {
+        counters.computeIfAbsent(limit + ':' + result, key -> Counter.builder("cave.rate-limit")
+                .description("Rate limit decisions for /api/cave requests")
+                .tag("limit", limit)
+                .tag("result", result)
+                .register(meterRegistry)).increment();
+    }
+}
@@ -0,0 +1,133 @@
+package com.johnmanko.portfolio.alibabassecret.rest;
+
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.IdempotencyCache;
+import com.johnmanko.portfolio.alibabassecret.services.ReactiveRedisService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.*;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.*;
+
+/**
+ * Reactive variant of {@link CaveRestController}, enabled with app.config.server.cave.reactive.enabled=true.
+ * Every endpoint returns a {@link Mono} composed on {@link ReactiveRedisService}, so no thread blocks while
+ * waiting on Redis; Spring MVC subscribes to the Mono and completes the request asynchronously.
+ * Redis calls and refused transfers are recorded in {@link CaveMetrics} like the servlet path, and take-treasure
+ * honours Idempotency-Key through {@link IdempotencyCache}. The modes this path doesn't implement fail the startup
+ * instead, see {@link ReactiveRedisService}.
+ * Reference:
+ * https://docs.spring.io/spring-framework/reference/web/webmvc/mvc-ann-async.html#mvc-ann-async-reactive-types
+ */
+@RestController
+@RequestMapping("/api/cave")
+@ConditionalOnProperty(
+        value = "app.config.server.cave.reactive.enabled",
+        havingValue = "true"
+)
+public class ReactiveCaveRestController {
+
+    @Autowired
+    private ReactiveRedisService redis;
+
+    @Autowired
+    private CaveMetrics metrics;
+
+    @Autowired
+    private Optional<IdempotencyCache> idempotency;
+
+    @GetMapping(value="/thieves-treasure", produces = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasRole('treasure-hunter')")
+    public Mono<TreasureModel> getTreasureCount() {
+        return getTreasure(THIEVES_TREASURE, THIEVES_INITIAL_TREASURE);
+    }
+
+    @GetMapping(value="/alibaba-treasure", produces = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasAuthority('SCOPE_see:alibaba-treasure')")
+    public Mono<TreasureModel> getAliBabasTreasureCount() {
+        return getTreasure(ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE);
+    }
+
+    @GetMapping(value="/treasures", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<Map<String, Long>> getTreasures(@RequestParam Set<String> owners,
+                                                   JwtAuthenticationToken principal) {
+        CaveService.requireReadable(owners, principal.getAuthorities());
+        List<String> keys = List.copyOf(owners);
+        return redis.getFromRedis(keys).flatMap(values -> {
+            Map<String, Long> results = new LinkedHashMap<>();
+            List<Mono<Boolean>> initialisations = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                String value = values.get(i);
+                if (value == null) {
+                    long initialValue = INITIAL_TREASURES.get(key);
+                    metrics.treasureInitialized(key);
+                    initialisations.add(redis.initializeInRedis(key, initialValue, TREASURE_TIMEOUT_SECONDS));
+                    results.put(key, initialValue);
+                } else {
+                    results.put(key, Long.valueOf(value));
+                }
+            }
+            return Flux.merge(initialisations).then(Mono.just(results));
+        });
+    }
+
+    @PostMapping(value="/take-treasure",
+            produces = MediaType.APPLICATION_JSON_VALUE,
+            consumes = MediaType.APPLICATION_JSON_VALUE)
+    @PreAuthorize("hasAuthority('SCOPE_take:thieves-treasure')")
+    public Mono<Map<String, Long>> takeTreasure(
+            @RequestBody TreasureModel takeTreasure,
+            @RequestHeader(value = IdempotencyCache.HEADER, required = false) String idempotencyKey,
+            JwtAuthenticationToken principal) {
+        long amount = takeTreasure.amount();
+        if (amount <= 0) {
+            return Mono.error(new IllegalArgumentException("Treasure to take must be positive"));
+        }
+        if (amount > MAX_TREASURE) {
+            return Mono.error(new IllegalArgumentException("Treasure to take must not exceed " + MAX_TREASURE));
+        }
+        if (idempotencyKey == null || idempotency.isEmpty()) {
+            return take(amount);
+        }
+        // A retry with the same Idempotency-Key gets the first result back instead of taking treasure again
+        return idempotency.get().takeOnce(principal.getName(), idempotencyKey, amount, Mono.defer(() -> take(amount)));
+    }
+
+    private Mono<Map<String, Long>> take(long amount) {
+        return redis.transfer(
+                        THIEVES_TREASURE, THIEVES_INITIAL_TREASURE,
+                        ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE,
+                        amount, TREASURE_TIMEOUT_SECONDS)
+                .map(transfer -> {
+                    if (!transfer.transferred()) {
+                        metrics.insufficientTreasure();
+                        throw new IllegalArgumentException("Not enough treasure to take");
+                    }
+                    Map<String, Long> results = new HashMap<>();
+                    results.put(ALIBABA_TREASURE, transfer.toAmount());
+                    results.put(THIEVES_TREASURE, transfer.fromAmount());
+                    return results;
+                });
+    }
+
+    private Mono<TreasureModel> getTreasure(String key, long initialValue) {
+        return redis.getFromRedis(key)
+                .switchIfEmpty(Mono.defer(() -> {
+                    metrics.treasureInitialized(key);
+                    return redis.initializeInRedis(key, initialValue, TREASURE_TIMEOUT_SECONDS)
+                            .thenReturn(initialValue);
+                }))
+                .map(amount -> new TreasureModel(key, amount));
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.johnmanko.portfolio.alibabassecret.rest;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Set;
+
+/**
+ * Server-Sent Events replacement for polling the balance endpoints, e.g.
+ * /api/cave/treasure-stream?owners=thieves-treasure,alibaba-treasure
+ * Each owner needs the same authority as its single-owner endpoint, as for /api/cave/treasures.
+ * Served next to either cave controller, enabled with app.config.server.cave.stream.enabled=true.
+ */
+@RestController
+@RequestMapping("/api/cave")
+@ConditionalOnProperty(
+        value = "app.config.server.cave.stream.enabled",
+        havingValue = "true"
+)
+public class TreasureStreamController {
+
+    @Autowired
+    private TreasureStream stream;
+
+    @GetMapping(value="/treasure-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamTreasures(@RequestParam Set<String> owners, JwtAuthenticationToken principal) {
+        CaveService.requireReadable(owners, principal.getAuthorities());
+        return stream.subscribe(owners);
+    }
+
+}
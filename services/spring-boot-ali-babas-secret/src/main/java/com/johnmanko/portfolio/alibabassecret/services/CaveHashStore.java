@@ -0,0 +1,119 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Balances of any number of owners in any number of caves, for /api/cave/{caveId}/treasure/{owner}.
+ *
+ * A key per owner costs a whole Redis key (dict entry, key object, expiry entry) for a few bytes of balance.
+ * Here owners share bucket hashes instead: owner o of cave c is field o of "cave:{c}:<crc32(o) mod buckets>".
+ * A hash with at most hash-max-listpack-entries fields (128) of at most hash-max-listpack-value bytes (64)
+ * keeps Redis' compact encoding (listpack, ziplist before Redis 7), where each field and value costs a few
+ * bytes of header. Names are limited to 64 bytes, and buckets should be sized so a cave's owners average
+ * well under 128 per bucket, e.g. 131072 buckets for 10M owners. A lookup is a HGET on one bucket: a
+ * hash and a scan of at most a few hundred bytes.
+ *
+ * The hash tag puts all of a cave's buckets in one Redis Cluster slot, so a transfer between two owners is one
+ * script (cave-transfer.lua). A cave is therefore limited to one shard.
+ * Balances don't expire: hash fields have no TTL of their own before Redis 7.4.
+ * With app.config.server.cave.resilience.enabled, calls go through {@link RedisResilience} and a stalled Redis
+ * answers 503 after the timeout. There is no stale fallback for these balances.
+ *
+ * Properties:
+ * app.config.server.cave.multi-cave.enabled
+ * app.config.server.cave.multi-cave.buckets
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.cave.multi-cave.enabled",
+        havingValue = "true"
+)
+public class CaveHashStore {
+
+    public static final int MAX_NAME_BYTES = 64;
+    // Names can't hold the hash tag's braces or the key separator
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._|@-]{1," + MAX_NAME_BYTES + "}");
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final int buckets;
+    private final CaveMetrics metrics;
+    private final RedisResilience resilience;
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> caveTransferScript =
+            RedisConfig.script("redis/cave-transfer.lua", List.class);
+
+    public CaveHashStore(RedisTemplate<String, String> redisTemplate,
+                         @Value("${app.config.server.cave.multi-cave.buckets:131072}") int buckets,
+                         CaveMetrics metrics, Optional<RedisResilience> resilience) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("app.config.server.cave.multi-cave.buckets must be at least 1");
+        }
+        this.redisTemplate = redisTemplate;
+        this.buckets = buckets;
+        this.metrics = metrics;
+        this.resilience = resilience.orElse(null);
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    public static String bucketKey(String caveId, String owner, int buckets) {
+        CRC32 crc = new CRC32();
+        crc.update(owner.getBytes(StandardCharsets.UTF_8));
+        return "cave:{" + caveId + "}:" + crc.getValue() % buckets;
+    }
+
+    // Balance of an owner, empty when the cave has no such owner
+    public OptionalLong get(String caveId, String owner) {
+        String v = read("hget",
+                () -> redisTemplate.<String, String>opsForHash().get(bucketKey(caveId, owner, buckets), owner));
+        return v == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(v));
+    }
+
+    public void set(String caveId, String owner, long amount) {
+        write("hset", () -> {
+            redisTemplate.<String, String>opsForHash()
+                    .put(bucketKey(caveId, owner, buckets), owner, Long.toString(amount));
+            return null;
+        });
+    }
+
+    // Atomically move an amount between two owners of a cave, an owner without a balance has 0
+    public TransferResult transfer(String caveId, String fromOwner, String toOwner, long amount) {
+        List<?> result = write("transfer", () -> redisTemplate.execute(caveTransferScript,
+                List.of(bucketKey(caveId, fromOwner, buckets), bucketKey(caveId, toOwner, buckets)),
+                fromOwner, toOwner, Long.toString(amount)));
+        if (result == null || result.size() != 3) {
+            throw new IllegalStateException("Unexpected transfer result: " + result);
+        }
+        return new TransferResult(
+                ((Number) result.get(0)).intValue() == 1,
+                ((Number) result.get(1)).longValue(),
+                ((Number) result.get(2)).longValue());
+    }
+
+    private <T> T read(String operation, Supplier<T> call) {
+        Supplier<T> timed = () -> metrics.redis(operation, call);
+        return resilience == null ? timed.get() : resilience.read(operation, timed);
+    }
+
+    private <T> T write(String operation, Supplier<T> call) {
+        Supplier<T> timed = () -> metrics.redis(operation, call);
+        return resilience == null ? timed.get() : resilience.write(operation, timed);
+    }
+}
@@ -0,0 +1,92 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Meters for the cave and its Redis calls, published at /actuator/prometheus.
+ *
+ * cave.redis{operation}            - latency histogram of each Redis operation (get, mget, set, delete, transfer)
+ * cave.treasure.initialized{owner} - balances lazily created because the Redis key was missing or expired
+ * cave.transfer.failed{reason}     - transfers refused: "insufficient" for "Not enough treasure to take",
+ *                                    "conflict" when an If-Match version was outdated (the client re-reads and retries)
+ * cave.read.coalesced              - balance misses that shared a concurrent re-read and initialization (single-flight)
+ *
+ * Endpoint latencies are Spring MVC's http.server.requests, executor queue depth is executor.queued{name}
+ * and queue wait is executor.queue.wait{name} (see AsyncConfig).
+ */
+@Service
+public class CaveMetrics {
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> redisTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> initializedCounters = new ConcurrentHashMap<>();
+    private final Counter insufficientTreasure;
+    private final Counter transferConflict;
+    private final Counter readCoalesced;
+
+    public CaveMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.insufficientTreasure = Counter.builder("cave.transfer.failed")
+                .description("Transfers refused by the cave")
+                .tag("reason", "insufficient")
+                .register(registry);
+        this.transferConflict = Counter.builder("cave.transfer.failed")
+                .description("Transfers refused by the cave")
+                .tag("reason", "conflict")
+                .register(registry);
+        this.readCoalesced = Counter.builder("cave.read.coalesced")
+                .description("Balance misses served by a concurrent re-read and initialization of the same keys")
+                .register(registry);
+    }
+
+    public <T> T redis(String operation, Supplier<T> call) {
+        return redisTimer(operation).record(call);
+    }
+
+    public void redis(String operation, Runnable call) {
+        redisTimer(operation).record(call);
+    }
+
+    // Times a reactive call from subscription to completion, error or cancellation
+    public <T> Mono<T> redis(String operation, Mono<T> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return call.doFinally(signal -> sample.stop(redisTimer(operation)));
+        });
+    }
+
+    public void treasureInitialized(String owner) {
+        initializedCounters.computeIfAbsent(owner, key -> Counter.builder("cave.treasure.initialized")
+                .description("Treasure balances created because the Redis key was missing")
+                .tag("owner", key)
+                .register(registry)).increment();
+    }
+
+    public void insufficientTreasure() {
+        insufficientTreasure.increment();
+    }
+
+    public void transferConflict() {
+        transferConflict.increment();
+    }
+
+    public void readCoalesced() {
+        readCoalesced.increment();
+    }
+
+    private Timer redisTimer(String operation) {
+        return redisTimers.computeIfAbsent(operation, key -> Timer.builder("cave.redis")
+                .description("Redis call latency")
+                .tag("operation", key)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+}
@@ -0,0 +1,268 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Plain blocking cave logic shared by the servlet endpoints.
+ * Callers decide which thread it runs on (see AsyncConfig).
+ */
+@Service
+public class CaveService {
+
+    public static final String THIEVES_TREASURE = "thieves-treasure";
+    public static final String ALIBABA_TREASURE = "alibaba-treasure";
+    public static final long THIEVES_INITIAL_TREASURE = 1000;
+    public static final long ALIBABA_INITIAL_TREASURE = 0;
+    public static final long TREASURE_TIMEOUT_SECONDS = 60;
+    // Largest balance the transfer scripts handle exactly, Lua numbers are doubles
+    public static final long MAX_TREASURE = (1L << 53) - 1;
+
+    public static final Map<String, Long> INITIAL_TREASURES = Map.of(
+            THIEVES_TREASURE, THIEVES_INITIAL_TREASURE,
+            ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE);
+
+    // Authority needed to read each treasure, matching the @PreAuthorize rules of the single-owner endpoints
+    public static final Map<String, String> READ_AUTHORITIES = Map.of(
+            THIEVES_TREASURE, "ROLE_treasure-hunter",
+            ALIBABA_TREASURE, "SCOPE_see:alibaba-treasure");
+
+    private final TreasureStore redis;
+    private final TreasureNearCache nearCache;
+    private final CaveMetrics metrics;
+    // Concurrent Redis misses of the same balances share one re-read and at most one initialization.
+    // Hits don't go through them, so a read allocates nothing for coalescing.
+    private final SingleFlight<String, Long> treasureMisses;
+    private final SingleFlight<List<String>, List<Long>> treasuresMisses;
+    private final SingleFlight<String, VersionedBalance> versionedMisses;
+
+    public CaveService(TreasureStore redis, Optional<TreasureNearCache> nearCache,
+                       Optional<RedisResilience> resilience, CaveMetrics metrics) {
+        // Timeouts, bulkheads, circuit breaker and stale reads when Redis is slow, see RedisResilience
+        this.redis = resilience.map(guard -> guard.guard(redis)).orElse(redis);
+        this.nearCache = nearCache.orElse(null);
+        this.metrics = metrics;
+        this.treasureMisses = new SingleFlight<>(metrics::readCoalesced);
+        this.treasuresMisses = new SingleFlight<>(metrics::readCoalesced);
+        this.versionedMisses = new SingleFlight<>(metrics::readCoalesced);
+    }
+
+    public TreasureModel getTreasure(String key, long initialValue) {
+        Long cached = nearCache == null ? null : nearCache.getIfPresent(key);
+        if (cached != null) {
+            return new TreasureModel(key, cached);
+        }
+        // Stamped before the read, so an invalidation during it keeps the result out of the cache
+        long stamp = nearCache == null ? 0 : nearCache.stamp();
+        OptionalLong value = redis.getFromRedis(key);
+        if (value.isPresent()) {
+            cache(key, value.getAsLong(), stamp);
+            return new TreasureModel(key, value.getAsLong());
+        }
+        return new TreasureModel(key, treasureMisses.load(key, () -> {
+            // Stamped again by the caller doing the load, whose result the others share
+            long loadStamp = nearCache == null ? 0 : nearCache.stamp();
+            long amount = readTreasure(key, initialValue);
+            cache(key, amount, loadStamp);
+            return amount;
+        }));
+    }
+
+    // Whether balances carry versions (app.config.server.cave.versioning.enabled), see RedisService
+    public boolean versioned() {
+        return redis.versioned();
+    }
+
+    /**
+     * Current version of a balance without reading it, 0 when it has none. Enough to answer If-None-Match.
+     */
+    public long getVersion(String key) {
+        return redis.getVersion(key);
+    }
+
+    /**
+     * A balance with the version it was read with. Skips the near-cache, which keeps no versions.
+     * A missing balance reads as its initial value with version 0, creating it bumps the version.
+     */
+    public VersionedBalance getVersionedTreasure(String key, long initialValue) {
+        VersionedBalance read = redis.getVersioned(key);
+        if (read.amount().isPresent()) {
+            return read;
+        }
+        return versionedMisses.load(key, () -> {
+            VersionedBalance balance = redis.getVersioned(key);
+            if (balance.amount().isPresent()) {
+                return balance;
+            }
+            return new VersionedBalance(OptionalLong.of(initializeIfMissing(key, balance.amount(), initialValue)), 0);
+        });
+    }
+
+    /**
+     * Reads several treasures, serving what it can from the near-cache and fetching the rest with one MGET.
+     * Owners must be known keys of {@link #INITIAL_TREASURES}.
+     */
+    public Map<String, Long> getTreasures(Collection<String> owners) {
+        Map<String, Long> results = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>(owners.size());
+        for (String owner : owners) {
+            Long cached = nearCache == null ? null : nearCache.getIfPresent(owner);
+            if (cached != null) {
+                results.put(owner, cached);
+            } else {
+                misses.add(owner);
+            }
+        }
+        if (misses.isEmpty()) {
+            return results;
+        }
+
+        long stamp = nearCache == null ? 0 : nearCache.stamp();
+        List<OptionalLong> values = redis.getFromRedis(misses);
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < misses.size(); i++) {
+            String owner = misses.get(i);
+            if (values.get(i).isPresent()) {
+                cache(owner, values.get(i).getAsLong(), stamp);
+                results.put(owner, values.get(i).getAsLong());
+            } else {
+                missing.add(owner);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        List<String> keys = List.copyOf(missing);
+        List<Long> amounts = treasuresMisses.load(keys, () -> {
+            long loadStamp = nearCache == null ? 0 : nearCache.stamp();
+            List<OptionalLong> reread = redis.getFromRedis(keys);
+            List<Long> loaded = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                String owner = keys.get(i);
+                long amount = initializeIfMissing(owner, reread.get(i), INITIAL_TREASURES.get(owner));
+                cache(owner, amount, loadStamp);
+                loaded.add(amount);
+            }
+            return loaded;
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            results.put(keys.get(i), amounts.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Reads owners straight from the store, skipping the near-cache, for callers that must not push a stale
+     * balance (see {@link TreasureStream}). A missing balance reads as its initial value and isn't created.
+     */
+    public Map<String, Long> readTreasures(Collection<String> owners) {
+        List<String> keys = List.copyOf(owners);
+        List<OptionalLong> values = redis.getFromRedis(keys);
+        Map<String, Long> results = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            results.put(keys.get(i), values.get(i).orElse(INITIAL_TREASURES.get(keys.get(i))));
+        }
+        return results;
+    }
+
+    private void cache(String key, long amount, long stamp) {
+        if (nearCache != null) {
+            nearCache.put(key, amount, stamp);
+        }
+    }
+
+    /**
+     * Throws unless every owner is a known treasure the caller is allowed to read.
+     */
+    public static void requireReadable(Collection<String> owners, Collection<? extends GrantedAuthority> authorities) {
+        Set<String> granted = authorities.stream().map(GrantedAuthority::getAuthority).collect(Collectors.toSet());
+        for (String owner : owners) {
+            String authority = READ_AUTHORITIES.get(owner);
+            if (authority == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown treasure owner: " + owner);
+            }
+            if (!granted.contains(authority)) {
+                throw new AccessDeniedException("Not allowed to see " + owner);
+            }
+        }
+    }
+
+    private long readTreasure(String key, long initialValue) {
+        return initializeIfMissing(key, redis.getFromRedis(key), initialValue);
+    }
+
+    /**
+     * A missing balance reads as its initial value, and is created with SET NX in the background:
+     * if a transfer created it in the meantime, the transfer's balance is kept.
+     */
+    private long initializeIfMissing(String key, OptionalLong value, long initialValue) {
+        if (value.isPresent()) {
+            return value.getAsLong();
+        }
+        metrics.treasureInitialized(key);
+        redis.initializeInRedis(key, initialValue, TREASURE_TIMEOUT_SECONDS);
+        return initialValue;
+    }
+
+    /**
+     * The balance check and both writes happen in a single Redis script, so concurrent hunters
+     * can never overdraw the thieves' treasure.
+     */
+    public Map<String, Long> takeTreasure(long amount) {
+        return takeTreasure(amount, 0);
+    }
+
+    /**
+     * Compare-and-set take: only applied while the thieves' balance is at expectedVersion (its ETag),
+     * otherwise answered 412 so the client re-reads and retries. 0 takes from whatever version is current.
+     */
+    public Map<String, Long> takeTreasure(long amount, long expectedVersion) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Treasure to take must be positive");
+        }
+        if (amount > MAX_TREASURE) {
+            throw new IllegalArgumentException("Treasure to take must not exceed " + MAX_TREASURE);
+        }
+
+        TransferResult transfer = expectedVersion == 0
+                ? redis.transfer(
+                        THIEVES_TREASURE, THIEVES_INITIAL_TREASURE,
+                        ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE,
+                        amount, TREASURE_TIMEOUT_SECONDS)
+                : redis.transferIfVersion(
+                        THIEVES_TREASURE, THIEVES_INITIAL_TREASURE,
+                        ALIBABA_TREASURE, ALIBABA_INITIAL_TREASURE,
+                        amount, TREASURE_TIMEOUT_SECONDS, expectedVersion);
+
+        if (transfer.conflict()) {
+            metrics.transferConflict();
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, THIEVES_TREASURE + " has changed");
+        }
+
+        if (!transfer.transferred()) {
+            metrics.insufficientTreasure();
+            throw new IllegalArgumentException("Not enough treasure to take");
+        }
+
+        if (nearCache != null) {
+            nearCache.invalidate(THIEVES_TREASURE);
+            nearCache.invalidate(ALIBABA_TREASURE);
+        }
+
+        Map<String, Long> results = new HashMap<>();
+        results.put(ALIBABA_TREASURE, transfer.toAmount());
+        results.put(THIEVES_TREASURE, transfer.fromAmount());
+        return results;
+    }
+
+}
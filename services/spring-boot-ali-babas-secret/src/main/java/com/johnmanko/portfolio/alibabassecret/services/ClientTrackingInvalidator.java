@@ -0,0 +1,90 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import io.lettuce.core.*;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.push.PushListener;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.protocol.ProtocolVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Keeps {@link TreasureNearCache} correct with RESP3 client-side caching invalidation messages.
+ * A dedicated connection subscribes in broadcasting mode (CLIENT TRACKING ON BCAST PREFIX ...), so Redis
+ * pushes an "invalidate" message whenever any client modifies a key with one of the tracked prefixes.
+ * Tracking is re-enabled after every reconnect, and the cache is inactive while the connection is down.
+ * Reference:
+ * https://redis.io/docs/latest/develop/reference/client-side-caching/
+ */
+public class ClientTrackingInvalidator implements PushListener, RedisConnectionStateListener, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientTrackingInvalidator.class);
+
+    private final TreasureNearCache nearCache;
+    private final RedisClient client;
+    private final TrackingArgs trackingArgs;
+    private StatefulRedisConnection<String, String> connection;
+
+    public ClientTrackingInvalidator(TreasureNearCache nearCache, RedisURI redisUri, String... prefixes) {
+        this.nearCache = nearCache;
+        this.trackingArgs = TrackingArgs.Builder.enabled().bcast().prefixes(prefixes);
+        this.client = RedisClient.create(redisUri);
+        this.client.setOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP3).build());
+    }
+
+    public void start() {
+        try {
+            connection = client.connect();
+            connection.addListener((PushListener) this);
+            connection.addListener((RedisConnectionStateListener) this);
+            connection.sync().clientTracking(trackingArgs);
+            nearCache.setActive(true);
+        } catch (RedisException e) {
+            log.warn("Client tracking unavailable, treasure near-cache stays inactive", e);
+        }
+    }
+
+    @Override
+    public void onPushMessage(PushMessage message) {
+        if (!"invalidate".equals(message.getType())) {
+            return;
+        }
+        List<Object> content = message.getContent(buffer -> StandardCharsets.UTF_8.decode(buffer).toString());
+        // A null key list means the server flushed its tracking table (FLUSHALL, FLUSHDB, ...)
+        if (content.size() < 2 || !(content.get(1) instanceof List<?> keys)) {
+            nearCache.invalidateAll();
+            return;
+        }
+        for (Object key : keys) {
+            nearCache.invalidate(key.toString());
+        }
+    }
+
+    @Override
+    public void onRedisConnected(RedisChannelHandler<?, ?> connection, SocketAddress socketAddress) {
+        StatefulRedisConnection<String, String> current = this.connection;
+        if (current == null) {
+            return;
+        }
+        // Tracking state doesn't survive a reconnect, so enable it again before trusting the cache
+        current.async().clientTracking(trackingArgs).thenRun(() -> nearCache.setActive(true));
+    }
+
+    @Override
+    public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+        nearCache.setActive(false);
+    }
+
+    @Override
+    public void close() {
+        nearCache.setActive(false);
+        if (connection != null) {
+            connection.close();
+        }
+        client.shutdown();
+    }
+}
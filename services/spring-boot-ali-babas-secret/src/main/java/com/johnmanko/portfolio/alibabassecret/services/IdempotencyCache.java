@@ -0,0 +1,285 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.ALIBABA_TREASURE;
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.THIEVES_TREASURE;
+
+/**
+ * Remembers the result of each take-treasure request sent with an Idempotency-Key header, so a client
+ * retrying after a timeout gets the first result back instead of moving treasure a second time.
+ *
+ * Keys are scoped to the caller: the record lives at "idempotency:" + SHA-256(subject, key) in Redis,
+ * and a small local LRU in front of it answers repeated replays without a round trip.
+ *
+ * The first request claims the key with SET NX (amount) before transferring, then replaces it with
+ * (amount, alibaba, thieves), written with the idempotency family's codec ("20:980:20" when decimal).
+ * The claim only lives for pending-ttl (30s, Tomcat's default async request timeout), the stored result
+ * for ttl (24h). While the claim is pending, a concurrent retry is answered 409; reusing a key for a different
+ * amount is answered 422. A request that fails releases its claim so it can be retried.
+ * If the process dies before storing its result, the key can be claimed again once pending-ttl has passed.
+ *
+ * With app.config.server.cave.resilience.enabled, the Redis calls go through {@link RedisResilience}: a stalled
+ * Redis answers 503 after the timeout instead of holding the request thread. If only storing the result fails,
+ * the take has happened, so its result is still returned and kept in the local LRU; other instances answer a
+ * retry 409 until pending-ttl has passed.
+ *
+ * The reactive endpoints (app.config.server.cave.reactive.enabled) use the same records through the reactive
+ * Lettuce template, without resilience, which the reactive mode doesn't support.
+ *
+ * Replays are counted as cave.idempotency.replayed, local hits as cache.gets{cache="idempotency"}.
+ *
+ * Properties:
+ * app.config.server.cave.idempotency.enabled
+ * app.config.server.cave.idempotency.ttl
+ * app.config.server.cave.idempotency.pending-ttl - keep it under ttl and at least as long as a take can run
+ * app.config.server.cave.idempotency.local-maximum-size
+ * app.config.server.cave.codec.idempotency - decimal (default), varint or fixed64, see {@link TreasureCodec}
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.cave.idempotency.enabled",
+        havingValue = "true"
+)
+public class IdempotencyCache {
+
+    public static final String HEADER = "Idempotency-Key";
+    static final String KEY_PREFIX = "idempotency:";
+    static final int MAX_KEY_LENGTH = 255;
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyCache.class);
+
+    private record Stored(long amount, long alibaba, long thieves) {
+
+        Map<String, Long> result() {
+            Map<String, Long> results = new HashMap<>();
+            results.put(ALIBABA_TREASURE, alibaba);
+            results.put(THIEVES_TREASURE, thieves);
+            return results;
+        }
+    }
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+    private final ReactiveRedisTemplate<String, byte[]> reactiveRedisTemplate;
+    private final TreasureCodec codec;
+    private final CaveMetrics metrics;
+    private final RedisResilience resilience;
+    private final Duration ttl;
+    private final Duration pendingTtl;
+    private final Cache<String, Stored> local;
+    private final Counter replayed;
+
+    public IdempotencyCache(RedisTemplate<String, byte[]> binaryRedisTemplate, CaveMetrics metrics,
+                            @Value("${app.config.server.cave.idempotency.ttl:PT24H}") Duration ttl,
+                            @Value("${app.config.server.cave.idempotency.pending-ttl:PT30S}") Duration pendingTtl,
+                            @Value("${app.config.server.cave.idempotency.local-maximum-size:10000}") long localMaximumSize,
+                            @Value("${app.config.server.cave.codec.idempotency:decimal}") String codec,
+                            Optional<RedisResilience> resilience, MeterRegistry meterRegistry,
+                            Optional<ReactiveRedisTemplate<String, byte[]>> reactiveBinaryRedisTemplate) {
+        this.redisTemplate = binaryRedisTemplate;
+        this.reactiveRedisTemplate = reactiveBinaryRedisTemplate.orElse(null);
+        this.codec = TreasureCodec.named(codec);
+        this.metrics = metrics;
+        this.resilience = resilience.orElse(null);
+        this.ttl = ttl;
+        this.pendingTtl = pendingTtl;
+        this.local = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, local, "idempotency");
+        this.replayed = Counter.builder("cave.idempotency.replayed")
+                .description("Take-treasure retries answered from a stored result")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs take once per (subject, idempotencyKey) and returns its result, or the stored result of an earlier run.
+     */
+    public Map<String, Long> takeOnce(String subject, String idempotencyKey, long amount,
+                                      Supplier<Map<String, Long>> take) {
+        String key = key(subject, checked(idempotencyKey));
+
+        Stored stored = local.getIfPresent(key);
+        if (stored != null) {
+            return replay(stored, amount);
+        }
+        byte[] pending = codec.encode(amount);
+        Boolean claimed = write("idempotency-claim",
+                () -> redisTemplate.opsForValue().setIfAbsent(key, pending, pendingTtl));
+        if (Boolean.TRUE.equals(claimed)) {
+            return take(key, amount, take);
+        }
+        byte[] value = read("idempotency-get", () -> redisTemplate.opsForValue().get(key));
+        if (value == null) {
+            // Expired between the claim and the read, nothing was stored
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Retry the request");
+        }
+        return replay(key, value, amount);
+    }
+
+    /**
+     * Reactive variant for ReactiveCaveRestController. It keeps the same records, so a retry is answered the same
+     * way by either endpoint.
+     */
+    public Mono<Map<String, Long>> takeOnce(String subject, String idempotencyKey, long amount,
+                                            Mono<Map<String, Long>> take) {
+        if (reactiveRedisTemplate == null) {
+            return Mono.error(new IllegalStateException("The reactive cave mode isn't enabled"));
+        }
+        return Mono.defer(() -> {
+            String key = key(subject, checked(idempotencyKey));
+
+            Stored stored = local.getIfPresent(key);
+            if (stored != null) {
+                return Mono.just(replay(stored, amount));
+            }
+            ReactiveValueOperations<String, byte[]> values = reactiveRedisTemplate.opsForValue();
+            return metrics.redis("idempotency-claim", values.setIfAbsent(key, codec.encode(amount), pendingTtl))
+                    .flatMap(claimed -> Boolean.TRUE.equals(claimed)
+                            ? take(key, amount, take)
+                            : metrics.redis("idempotency-get", values.get(key))
+                                    .switchIfEmpty(Mono.error(() ->
+                                            new ResponseStatusException(HttpStatus.CONFLICT, "Retry the request")))
+                                    .map(value -> replay(key, value, amount)));
+        });
+    }
+
+    private Map<String, Long> take(String key, long amount, Supplier<Map<String, Long>> take) {
+        Map<String, Long> result;
+        try {
+            result = take.get();
+        } catch (RuntimeException e) {
+            try {
+                write("idempotency-delete", () -> redisTemplate.delete(key));
+            } catch (RedisResilience.RedisUnavailableException released) {
+                log.warn("Unable to release {}, it stays claimed until it expires", HEADER, released);
+            }
+            throw e;
+        }
+        Stored stored = stored(key, amount, result);
+        try {
+            write("idempotency-set", () -> {
+                redisTemplate.opsForValue().set(key,
+                        codec.encode(stored.amount(), stored.alibaba(), stored.thieves()), ttl);
+                return null;
+            });
+        } catch (RedisResilience.RedisUnavailableException e) {
+            // The treasure has moved: answer with it rather than invite a retry
+            log.warn("Unable to store the result for an {}, only this instance can replay it", HEADER, e);
+        }
+        return result;
+    }
+
+    private Mono<Map<String, Long>> take(String key, long amount, Mono<Map<String, Long>> take) {
+        return take
+                .onErrorResume(e -> metrics.redis("idempotency-delete", reactiveRedisTemplate.delete(key))
+                        .onErrorResume(released -> {
+                            log.warn("Unable to release {}, it stays claimed until it expires", HEADER, released);
+                            return Mono.empty();
+                        })
+                        .then(Mono.error(e)))
+                .flatMap(result -> {
+                    Stored stored = stored(key, amount, result);
+                    return metrics.redis("idempotency-set", reactiveRedisTemplate.opsForValue().set(key,
+                                    codec.encode(stored.amount(), stored.alibaba(), stored.thieves()), ttl))
+                            .onErrorResume(e -> {
+                                // The treasure has moved: answer with it rather than invite a retry
+                                log.warn("Unable to store the result for an {}, only this instance can replay it",
+                                        HEADER, e);
+                                return Mono.just(false);
+                            })
+                            .thenReturn(result);
+                });
+    }
+
+    private Stored stored(String key, long amount, Map<String, Long> result) {
+        Stored stored = new Stored(amount, result.get(ALIBABA_TREASURE), result.get(THIEVES_TREASURE));
+        local.put(key, stored);
+        return stored;
+    }
+
+    // A record read from Redis: the claim of a request still in progress, or the result of a finished one
+    private Map<String, Long> replay(String key, byte[] value, long amount) {
+        long[] values = codec.decode(value);
+        if (values.length == 1) {
+            if (values[0] != amount) {
+                throw mismatch();
+            }
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "A request with this " + HEADER + " is still in progress");
+        }
+        Stored stored = new Stored(values[0], values[1], values[2]);
+        local.put(key, stored);
+        return replay(stored, amount);
+    }
+
+    private Map<String, Long> replay(Stored stored, long amount) {
+        if (stored.amount() != amount) {
+            throw mismatch();
+        }
+        replayed.increment();
+        return stored.result();
+    }
+
+    private static String checked(String idempotencyKey) {
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    HEADER + " must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+        return idempotencyKey;
+    }
+
+    private <T> T read(String operation, Supplier<T> call) {
+        Supplier<T> timed = () -> metrics.redis(operation, call);
+        return resilience == null ? timed.get() : resilience.read(operation, timed);
+    }
+
+    private <T> T write(String operation, Supplier<T> call) {
+        Supplier<T> timed = () -> metrics.redis(operation, call);
+        return resilience == null ? timed.get() : resilience.write(operation, timed);
+    }
+
+    private static ResponseStatusException mismatch() {
+        return new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+                HEADER + " was already used for a different amount");
+    }
+
+    static String key(String subject, String idempotencyKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(subject.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(idempotencyKey.getBytes(StandardCharsets.UTF_8));
+            return KEY_PREFIX + HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
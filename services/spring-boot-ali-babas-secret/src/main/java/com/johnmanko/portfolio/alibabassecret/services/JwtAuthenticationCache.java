@@ -0,0 +1,123 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Remembers decoded bearer tokens and their granted authorities, so a token the SPA sends again
+ * isn't re-parsed, re-verified (RS256) and re-converted on every request.
+ *
+ * Entries are keyed by the SHA-256 of the token and expire at the token's "exp" at the latest
+ * (sooner when maximum-ttl is shorter). Tokens that fail to decode are never cached.
+ * Only the authorities are cached, not the JwtAuthenticationToken, because Spring Security
+ * sets request details on the token it returns.
+ *
+ * Hit/miss counts are published as cache.gets{cache="jwt"}.
+ *
+ * Properties:
+ * app.config.server.auth.jwt-cache.enabled
+ * app.config.server.auth.jwt-cache.maximum-size
+ * app.config.server.auth.jwt-cache.maximum-ttl
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.auth.jwt-cache.enabled",
+        havingValue = "true"
+)
+public class JwtAuthenticationCache {
+
+    private final Cache<String, Entry> cache;
+
+    public JwtAuthenticationCache(@Value("${app.config.server.auth.jwt-cache.maximum-size:10000}") long maximumSize,
+                                  @Value("${app.config.server.auth.jwt-cache.maximum-ttl:PT5M}") Duration maximumTtl,
+                                  MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilExpiresAt(maximumTtl))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "jwt");
+    }
+
+    public JwtDecoder decoder(JwtDecoder delegate) {
+        return token -> cache.get(key(token), key -> new Entry(delegate.decode(token))).jwt;
+    }
+
+    public Converter<Jwt, Collection<GrantedAuthority>> authoritiesConverter(
+            Converter<Jwt, Collection<GrantedAuthority>> delegate) {
+        return jwt -> {
+            // asMap().get doesn't count towards cache.gets, the decoder lookup already did
+            Entry entry = cache.asMap().get(key(jwt.getTokenValue()));
+            if (entry == null) {
+                return delegate.convert(jwt);
+            }
+            Collection<GrantedAuthority> authorities = entry.authorities;
+            if (authorities == null) {
+                authorities = List.copyOf(delegate.convert(jwt));
+                entry.authorities = authorities;
+            }
+            return authorities;
+        };
+    }
+
+    static String key(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final Jwt jwt;
+        // Filled by the first conversion, the same token always converts to the same authorities
+        private volatile Collection<GrantedAuthority> authorities;
+
+        private Entry(Jwt jwt) {
+            this.jwt = jwt;
+        }
+    }
+
+    private record UntilExpiresAt(Duration maximumTtl) implements Expiry<String, Entry> {
+
+        @Override
+        public long expireAfterCreate(String key, Entry entry, long currentTime) {
+            Instant expiresAt = entry.jwt.getExpiresAt();
+            if (expiresAt == null) {
+                return maximumTtl.toNanos();
+            }
+            Duration remaining = Duration.between(Instant.now(), expiresAt);
+            return Math.max(0, Math.min(remaining.toNanos(), maximumTtl.toNanos()));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+        @Override
+        public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
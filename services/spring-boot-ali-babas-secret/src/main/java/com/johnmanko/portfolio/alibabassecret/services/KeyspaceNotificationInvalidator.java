@@ -0,0 +1,119 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import io.lettuce.core.*;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.RedisPubSubListener;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fallback invalidation source for {@link TreasureNearCache}, for servers without RESP3 client tracking.
+ * Subscribes to the keyspace channels of the tracked keys; Redis only publishes them when
+ * notify-keyspace-events includes K, $ (string commands), g (DEL, EXPIRE, ...) and x (expiry).
+ * The setting is read with CONFIG GET before the cache is trusted, so a server that doesn't publish these events
+ * (or refuses CONFIG) leaves the cache inactive. Like {@link ClientTrackingInvalidator}, the cache is inactive
+ * while the subscription is down, and the setting is checked again after a reconnect, as a restarted server
+ * has lost a CONFIG SET.
+ * Reference:
+ * https://redis.io/docs/latest/develop/use/keyspace-notifications/
+ */
+public class KeyspaceNotificationInvalidator extends RedisPubSubAdapter<String, String>
+        implements RedisConnectionStateListener, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyspaceNotificationInvalidator.class);
+    private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+    private static final String KEYSPACE_EVENTS = "K$gx";
+
+    private final TreasureNearCache nearCache;
+    private final RedisClient client;
+    private final String[] patterns;
+    private boolean configureServer;
+    private StatefulRedisPubSubConnection<String, String> connection;
+
+    public KeyspaceNotificationInvalidator(TreasureNearCache nearCache, RedisURI redisUri, String... keys) {
+        this.nearCache = nearCache;
+        this.client = RedisClient.create(redisUri);
+        this.patterns = Arrays.stream(keys).map(key -> "__keyspace@*__:" + key + "*").toArray(String[]::new);
+    }
+
+    // configureServer: set notify-keyspace-events, for servers that allow CONFIG SET
+    public void start(boolean configureServer) {
+        this.configureServer = configureServer;
+        try {
+            connection = client.connectPubSub();
+            connection.addListener((RedisPubSubListener<String, String>) this);
+            connection.addListener((RedisConnectionStateListener) this);
+            activate();
+        } catch (RedisException e) {
+            log.warn("Keyspace notifications unavailable, treasure near-cache stays inactive", e);
+        }
+    }
+
+    // Whether a notify-keyspace-events value publishes every event the cache relies on (A is g$lshzxet...)
+    static boolean publishesKeyspaceEvents(String events) {
+        if (events == null || events.indexOf('K') < 0) {
+            return false;
+        }
+        boolean all = events.indexOf('A') >= 0;
+        return all || (events.indexOf('$') >= 0 && events.indexOf('g') >= 0 && events.indexOf('x') >= 0);
+    }
+
+    @Override
+    public void message(String pattern, String channel, String message) {
+        nearCache.invalidate(channel.substring(channel.indexOf("__:") + 3));
+    }
+
+    @Override
+    public void onRedisConnected(RedisChannelHandler<?, ?> connection, SocketAddress socketAddress) {
+        if (this.connection == null) {
+            return;
+        }
+        // Off the event loop: the check makes blocking calls on a connection of its own
+        CompletableFuture.runAsync(() -> {
+            try {
+                activate();
+            } catch (RedisException e) {
+                log.warn("Keyspace notifications unavailable after reconnect, treasure near-cache stays inactive", e);
+            }
+        });
+    }
+
+    @Override
+    public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+        nearCache.setActive(false);
+    }
+
+    @Override
+    public void close() {
+        nearCache.setActive(false);
+        if (connection != null) {
+            connection.close();
+        }
+        client.shutdown();
+    }
+
+    private void activate() {
+        String events;
+        // Subscribed connections only take (P)SUBSCRIBE and PING, so CONFIG goes through a short-lived one
+        try (StatefulRedisConnection<String, String> config = client.connect()) {
+            if (configureServer) {
+                config.sync().configSet(NOTIFY_KEYSPACE_EVENTS, KEYSPACE_EVENTS);
+            }
+            events = config.sync().configGet(NOTIFY_KEYSPACE_EVENTS).get(NOTIFY_KEYSPACE_EVENTS);
+        }
+        if (!publishesKeyspaceEvents(events)) {
+            log.warn("notify-keyspace-events is \"{}\", needs at least {}; treasure near-cache stays inactive",
+                    events, KEYSPACE_EVENTS);
+            nearCache.setActive(false);
+            return;
+        }
+        connection.sync().psubscribe(patterns);
+        nearCache.setActive(true);
+    }
+}
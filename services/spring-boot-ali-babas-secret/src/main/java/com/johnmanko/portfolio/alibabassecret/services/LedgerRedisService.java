@@ -0,0 +1,106 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * One key per balance, each transfer recorded in the {@link TreasureLedger} by the same script
+ * (ledger-transfer.lua).
+ *
+ * Balance keys don't expire, so the timeouts passed in are ignored. A missing key is restored from the ledger
+ * instead of starting over at its initial value: reads re-read after the restore, and a transfer that finds a
+ * key missing restores it and runs again. Initializing restores too, so it never resets a balance the ledger
+ * knows about.
+ *
+ * Property: app.config.server.cave.ledger.enabled
+ */
+@Service
+@Primary
+@ConditionalOnProperty(
+        value = "app.config.server.cave.ledger.enabled",
+        havingValue = "true"
+)
+public class LedgerRedisService implements TreasureStore {
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final TreasureLedger ledger;
+    private final CaveMetrics metrics;
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> ledgerTransferScript =
+            RedisConfig.script("redis/ledger-transfer.lua", List.class);
+
+    public LedgerRedisService(RedisTemplate<String, String> redisTemplate, TreasureLedger ledger,
+                              CaveMetrics metrics) {
+        this.redisTemplate = redisTemplate;
+        this.ledger = ledger;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public OptionalLong getFromRedis(String key) {
+        return getFromRedis(List.of(key)).get(0);
+    }
+
+    // One MGET, and a second one after restoring when a key is missing
+    @Override
+    public List<OptionalLong> getFromRedis(List<String> keys) {
+        List<OptionalLong> balances = multiGet(keys);
+        if (balances.stream().anyMatch(OptionalLong::isEmpty)) {
+            ledger.restore();
+            balances = multiGet(keys);
+        }
+        return balances;
+    }
+
+    @Override
+    public void initializeInRedis(String key, long value, long timeoutInSeconds) {
+        ledger.restore();
+    }
+
+    @Override
+    public TransferResult transfer(String fromKey, long fromInitialValue,
+                                   String toKey, long toInitialValue,
+                                   long amount, long timeoutInSeconds) {
+        List<?> result = runTransfer(fromKey, toKey, amount);
+        if (((Number) result.get(0)).intValue() == -1) {
+            ledger.restore();
+            result = runTransfer(fromKey, toKey, amount);
+        }
+        int outcome = ((Number) result.get(0)).intValue();
+        if (outcome == -1) {
+            throw new IllegalStateException("Unable to restore " + fromKey + " and " + toKey + " from the ledger");
+        }
+        return new TransferResult(
+                outcome == 1,
+                ((Number) result.get(1)).longValue(),
+                ((Number) result.get(2)).longValue());
+    }
+
+    private List<?> runTransfer(String fromKey, String toKey, long amount) {
+        List<?> result = metrics.redis("transfer", () -> redisTemplate.execute(ledgerTransferScript,
+                List.of(fromKey, toKey, TreasureLedger.STREAM), Long.toString(amount)));
+        if (result == null || result.size() != 3) {
+            throw new IllegalStateException("Unexpected transfer result: " + result);
+        }
+        return result;
+    }
+
+    private List<OptionalLong> multiGet(List<String> keys) {
+        List<String> values = metrics.redis("mget", () -> redisTemplate.opsForValue().multiGet(keys));
+        List<OptionalLong> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String v = values == null ? null : values.get(i);
+            result.add(v == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(v)));
+        }
+        return result;
+    }
+}
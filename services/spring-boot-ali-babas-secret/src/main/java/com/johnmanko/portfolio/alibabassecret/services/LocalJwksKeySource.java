@@ -0,0 +1,150 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JWKS for token verification, served from memory so a request never waits on the issuer.
+ *
+ * Keys start from a local snapshot (file: or classpath: resource) and are refreshed from the issuer's
+ * JWKS URI on a background thread. A token with an unknown "kid" (key rotation) triggers an early
+ * refresh, but the request itself is rejected rather than held. A refreshed key set is written back
+ * to a file: snapshot, so the next start begins with current keys.
+ *
+ * In offline mode (tests, local stand-in issuer) the snapshot is the only source and nothing is fetched.
+ */
+public class LocalJwksKeySource implements JWKSource<SecurityContext>, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalJwksKeySource.class);
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final int SIZE_LIMIT_BYTES = 512 * 1024;
+
+    private final Resource snapshot;
+    private final URL jwksUri;
+    private final Duration refreshInterval;
+    private final Duration minimumRefreshInterval;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private ScheduledExecutorService scheduler;
+    private volatile JWKSet keys = new JWKSet();
+    private volatile long lastRefreshNanos;
+
+    // jwksUri: null for offline mode
+    public LocalJwksKeySource(Resource snapshot, URL jwksUri, Duration refreshInterval, Duration minimumRefreshInterval) {
+        this.snapshot = snapshot;
+        this.jwksUri = jwksUri;
+        this.refreshInterval = refreshInterval;
+        this.minimumRefreshInterval = minimumRefreshInterval;
+        // As if last refreshed one minimum interval ago, so an unknown "kid" right after start refreshes at once
+        this.lastRefreshNanos = System.nanoTime() - minimumRefreshInterval.toNanos();
+    }
+
+    public void start() {
+        loadSnapshot();
+        if (jwksUri == null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("jwks-refresh").daemon().factory());
+        // Without a snapshot the first refresh runs right away, still off the request path
+        long initialDelay = keys.getKeys().isEmpty() ? 0 : refreshInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::refresh, initialDelay, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) {
+        List<JWK> matches = jwkSelector.select(keys);
+        if (matches.isEmpty()) {
+            requestRefresh();
+        }
+        return matches;
+    }
+
+    public JWKSet getKeys() {
+        return keys;
+    }
+
+    private void requestRefresh() {
+        if (scheduler == null || System.nanoTime() - lastRefreshNanos < minimumRefreshInterval.toNanos()) {
+            return;
+        }
+        if (refreshing.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private void loadSnapshot() {
+        if (snapshot == null || !snapshot.exists()) {
+            log.info("No JWKS snapshot at {}, waiting for the first refresh", snapshot);
+            return;
+        }
+        try (InputStream in = snapshot.getInputStream()) {
+            keys = JWKSet.load(in);
+            log.info("Loaded {} JWKS keys from {}", keys.getKeys().size(), snapshot);
+        } catch (IOException | ParseException e) {
+            log.warn("Unreadable JWKS snapshot at {}", snapshot, e);
+        }
+    }
+
+    private void refresh() {
+        lastRefreshNanos = System.nanoTime();
+        try {
+            JWKSet fetched = JWKSet.load(jwksUri, TIMEOUT_MILLIS, TIMEOUT_MILLIS, SIZE_LIMIT_BYTES).toPublicJWKSet();
+            if (fetched.getKeys().isEmpty()) {
+                log.warn("Empty JWKS from {}, keeping the current keys", jwksUri);
+                return;
+            }
+            keys = fetched;
+            writeSnapshot(fetched);
+        } catch (IOException | ParseException e) {
+            // Keep verifying with the keys we have, the next refresh tries again
+            log.warn("JWKS refresh from {} failed", jwksUri, e);
+        }
+    }
+
+    private void writeSnapshot(JWKSet fetched) {
+        if (snapshot == null || !snapshot.isFile()) {
+            return;
+        }
+        try {
+            Path target = snapshot.getFile().toPath();
+            Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "jwks", ".tmp");
+            Files.writeString(temp, fetched.toString(true), StandardCharsets.UTF_8);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not write the JWKS snapshot to {}", snapshot, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory buckets: each is one AtomicLong holding the bucket's theoretical arrival time, updated with a
+ * compare-and-set loop, so admission takes no lock and contention is limited to requests for the same key.
+ * The buckets live in a Caffeine map (itself striped), bounded by maximum-size and dropped once idle long
+ * enough to be full again.
+ */
+public class LocalRateLimiter implements RateLimiter {
+
+    private final Cache<String, AtomicLong> buckets;
+
+    public LocalRateLimiter(long maximumSize, Duration idleTimeout) {
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(idleTimeout)
+                .build();
+    }
+
+    @Override
+    public long tryAcquire(String key, Limit limit) {
+        AtomicLong bucket = buckets.get(key, k -> new AtomicLong(Long.MIN_VALUE));
+        long interval = limit.intervalNanos();
+        long capacity = interval * limit.burst();
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = bucket.get();
+            // nanoTime may be negative, compare by difference
+            long next = (arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival) + interval;
+            long wait = next - now - capacity;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+}
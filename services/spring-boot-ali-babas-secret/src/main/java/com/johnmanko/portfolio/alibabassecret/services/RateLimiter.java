@@ -0,0 +1,28 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+/**
+ * Admission control for the cave endpoints: one token bucket per key (the caller and the endpoint).
+ *
+ * Buckets are kept as GCRA (generic cell rate algorithm) state, a single "theoretical arrival time" per key,
+ * which is equivalent to a token bucket of burst tokens refilled at rate per second, without a refill timer.
+ * {@link LocalRateLimiter} keeps buckets in this JVM, {@link RedisRateLimiter} shares them between instances.
+ */
+public interface RateLimiter {
+
+    record Limit(double ratePerSecond, int burst) {
+
+        public Limit {
+            if (ratePerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("A rate limit needs rate > 0 and burst >= 1");
+            }
+        }
+
+        // Time one token takes to refill
+        public long intervalNanos() {
+            return (long) (1_000_000_000L / ratePerSecond);
+        }
+    }
+
+    // 0 when the request may go ahead, otherwise how long until a retry can succeed, in nanoseconds
+    long tryAcquire(String key, Limit limit);
+}
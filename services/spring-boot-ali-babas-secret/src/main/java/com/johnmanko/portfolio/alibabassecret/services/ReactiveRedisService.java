@@ -0,0 +1,113 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-blocking counterpart of {@link RedisService}, backed by Lettuce through {@link ReactiveStringRedisTemplate}.
+ * Only created when the reactive cave mode is enabled. It reads and writes the plain balance keys only, so it
+ * refuses to start next to the modes that change how balances are stored or guarded (versioning, striping,
+ * write-behind, near-cache, resilience) rather than silently bypassing them. Idempotency-Key records are kept by
+ * {@link IdempotencyCache}, which has a reactive variant.
+ * Reference:
+ * https://docs.spring.io/spring-data/redis/reference/redis/template.html
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.cave.reactive.enabled",
+        havingValue = "true"
+)
+public class ReactiveRedisService {
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> transferScript;
+    private final CaveMetrics metrics;
+
+    @SuppressWarnings("rawtypes")
+    public ReactiveRedisService(ReactiveStringRedisTemplate redisTemplate, RedisScript<List> transferScript,
+                                CaveMetrics metrics,
+                                @Value("${app.config.server.cave.versioning.enabled:false}") boolean versioning,
+                                @Value("${app.config.server.cave.striping.enabled:false}") boolean striping,
+                                @Value("${app.config.server.cave.write-behind.enabled:false}") boolean writeBehind,
+                                @Value("${app.config.server.cave.near-cache.enabled:false}") boolean nearCache,
+                                @Value("${app.config.server.cave.resilience.enabled:false}") boolean resilience) {
+        List<String> unsupported = new ArrayList<>();
+        if (versioning) {
+            unsupported.add("versioning");
+        }
+        if (striping) {
+            unsupported.add("striping");
+        }
+        if (writeBehind) {
+            unsupported.add("write-behind");
+        }
+        if (nearCache) {
+            unsupported.add("near-cache");
+        }
+        if (resilience) {
+            unsupported.add("resilience");
+        }
+        if (!unsupported.isEmpty()) {
+            throw new IllegalStateException("app.config.server.cave.reactive.enabled can't be combined with "
+                    + String.join(", ", unsupported) + ": set app.config.server.cave.<mode>.enabled=false");
+        }
+        this.redisTemplate = redisTemplate;
+        this.transferScript = transferScript;
+        this.metrics = metrics;
+    }
+
+    // Create the key unless it exists (SET NX)
+    public Mono<Boolean> initializeInRedis(String key, long value, long timeoutInSeconds) {
+        return metrics.redis("set", redisTemplate.opsForValue()
+                .setIfAbsent(key, Long.toString(value), Duration.ofSeconds(timeoutInSeconds)));
+    }
+
+    // Read from Redis, empty when the key is missing
+    public Mono<Long> getFromRedis(String key) {
+        return metrics.redis("get", redisTemplate.opsForValue().get(key)).map(Long::valueOf);
+    }
+
+    // Read many keys in one round trip (MGET), null entries for missing keys
+    public Mono<List<String>> getFromRedis(List<String> keys) {
+        return metrics.redis("mget", redisTemplate.opsForValue().multiGet(keys));
+    }
+
+    // Delete from Redis
+    public Mono<Long> deleteFromRedis(String key) {
+        return metrics.redis("delete", redisTemplate.delete(key));
+    }
+
+    // Atomically move an amount between two keys, missing keys start at their initial value
+    public Mono<TransferResult> transfer(String fromKey, long fromInitialValue,
+                                         String toKey, long toInitialValue,
+                                         long amount, long timeoutInSeconds) {
+        Flux<?> reply = redisTemplate.execute(transferScript, List.of(fromKey, toKey),
+                List.of(Long.toString(amount), Long.toString(fromInitialValue),
+                        Long.toString(toInitialValue), Long.toString(timeoutInSeconds)));
+        // The driver may emit the script's reply as one list or as its individual elements
+        Mono<List<Object>> values = reply
+                .flatMapIterable(value -> value instanceof List<?> list ? list : List.of(value))
+                .collectList();
+        return metrics.redis("transfer", values)
+                .map(result -> {
+                    if (result.size() != 3) {
+                        throw new IllegalStateException("Unexpected transfer result: " + result);
+                    }
+                    return new TransferResult(
+                            ((Number) result.get(0)).intValue() == 1,
+                            ((Number) result.get(1)).longValue(),
+                            ((Number) result.get(2)).longValue());
+                });
+    }
+}
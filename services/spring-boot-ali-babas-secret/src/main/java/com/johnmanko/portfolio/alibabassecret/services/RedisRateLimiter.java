@@ -0,0 +1,54 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Buckets shared by every instance, kept in Redis under "rate-limit:" + key and updated by one script call
+ * (redis/rate-limit.lua) per request, using the Redis server clock.
+ * When Redis can't be reached the request is let through: the limiter protects Redis, it shouldn't add
+ * an outage of its own. With resilience enabled, the script runs on its read bulkhead with the get timeout
+ * (it is one quick call per request), so a stalled Redis lets requests through after the timeout rather than
+ * holding them.
+ */
+public class RedisRateLimiter implements RateLimiter {
+
+    static final String KEY_PREFIX = "rate-limit:";
+
+    private static final Logger log = LoggerFactory.getLogger(RedisRateLimiter.class);
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final RedisScript<Long> rateLimitScript;
+    private final CaveMetrics metrics;
+    private final RedisResilience resilience;
+
+    // resilience: null to call Redis directly
+    public RedisRateLimiter(RedisTemplate<String, String> redisTemplate, RedisScript<Long> rateLimitScript,
+                            CaveMetrics metrics, RedisResilience resilience) {
+        this.redisTemplate = redisTemplate;
+        this.rateLimitScript = rateLimitScript;
+        this.metrics = metrics;
+        this.resilience = resilience;
+    }
+
+    @Override
+    public long tryAcquire(String key, Limit limit) {
+        try {
+            Supplier<Long> call = () -> metrics.redis("rate-limit", () -> redisTemplate.execute(rateLimitScript,
+                    List.of(KEY_PREFIX + key),
+                    Long.toString(TimeUnit.NANOSECONDS.toMicros(limit.intervalNanos())),
+                    Integer.toString(limit.burst())));
+            Long waitMicros = resilience == null ? call.get() : resilience.read("rate-limit", call);
+            return waitMicros == null ? 0 : TimeUnit.MICROSECONDS.toNanos(waitMicros);
+        } catch (RuntimeException e) {
+            log.debug("Rate limit check failed, letting the request through", e);
+            return 0;
+        }
+    }
+}
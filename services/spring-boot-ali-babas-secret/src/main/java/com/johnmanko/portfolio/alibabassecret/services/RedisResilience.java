@@ -0,0 +1,469 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.lettuce.core.RedisCommandTimeoutException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the cave answering when Redis stalls, instead of letting every request thread wait on it.
+ *
+ * {@link #guard(TreasureStore)} wraps the treasure store so that each call:
+ * - takes a permit of its bulkhead, one for reads and another for writes, so stuck transfers can't starve reads.
+ *   A full bulkhead rejects the call;
+ * - is given up after its operation's timeout (get, mget, set, transfer);
+ * - goes through a circuit breaker. When at least failure-rate of the last window calls failed or timed out,
+ *   the circuit opens and calls fail at once for open-duration. Then a few half-open trial calls decide
+ *   whether it closes again or stays open.
+ *
+ * Reads run on the calling thread, and their timeout is Lettuce's command timeout: {@link #commandTimeout()}
+ * hands each command sent inside a guarded call the timeout of that call (see ResilienceConfig), and Lettuce
+ * fails it with a RedisCommandTimeoutException. A ledger restore reads several pages, each within that timeout.
+ * Writes still run on a small bounded pool and are interrupted at their timeout, because a transfer may wait for
+ * more than one command: a write-behind flush, the moves and rollback of striped balances or a ledger restore.
+ *
+ * {@link #read} and {@link #write} guard the other Redis calls made on request threads the same way: idempotency
+ * records, the shared rate limiter and the multi-cave hashes. An operation without a timeout of its own gets the
+ * get timeout on the read bulkhead and the set timeout on the write bulkhead. They have no stale fallback.
+ * Calls made off request threads aren't guarded: ledger compaction, the treasure-stream subscription and the
+ * near-cache invalidators. Ledger restores on the request path run inside the guarded store.
+ *
+ * Reads that fail are answered from a local snapshot of the last balances read from Redis, if it is
+ * younger than max-staleness, so balances keep being served within SLO while Redis is slow or down.
+ * A stale balance has no version, so it is never sent with an ETag.
+ * Anything else gets 503. Writes never fall back: a transfer that times out may still have been applied,
+ * so it is answered 503 like any other failure.
+ *
+ * Metrics:
+ * cave.redis.resilience.calls{operation,outcome} - success, failure, timeout, rejected (bulkhead full) or short-circuited
+ * cave.redis.resilience.fallback{operation,result} - failed reads answered "stale" or "unavailable"
+ * cave.redis.resilience.circuit.state - 0 closed, 1 half-open, 2 open
+ * cave.redis.resilience.bulkhead.active{bulkhead} - calls running on the read and write bulkheads
+ */
+public class RedisResilience implements AutoCloseable {
+
+    public enum State {CLOSED, HALF_OPEN, OPEN}
+
+    /**
+     * A Redis call that failed, timed out or was not attempted, answered 503 unless a read can fall back.
+     */
+    public static class RedisUnavailableException extends ResponseStatusException {
+
+        RedisUnavailableException(String reason, Throwable cause) {
+            super(HttpStatus.SERVICE_UNAVAILABLE, reason, cause);
+        }
+    }
+
+    private record Snapshot(long amount, long readAt) {
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(RedisResilience.class);
+
+    private static final ThreadLocal<Duration> COMMAND_TIMEOUT = new ThreadLocal<>();
+
+    private final Map<String, Duration> timeouts;
+    private final Semaphore readBulkhead;
+    private final ThreadPoolExecutor writeBulkhead;
+    private final long maxStalenessNanos;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Snapshot> snapshot = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    // Circuit breaker, guarded by this
+    private final boolean[] window;
+    private final double failureRate;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+    private State state = State.CLOSED;
+    private int windowIndex;
+    private int windowCalls;
+    private int windowFailures;
+    private long openUntil;
+    private int probesRunning;
+    private int probesSucceeded;
+
+    public RedisResilience(Map<String, Duration> timeouts, int readConcurrency, int writeConcurrency,
+                           int windowSize, double failureRate, Duration openDuration, int halfOpenCalls,
+                           Duration maxStaleness, MeterRegistry meterRegistry) {
+        if (windowSize < 1 || halfOpenCalls < 1 || failureRate <= 0 || failureRate > 1) {
+            throw new IllegalArgumentException(
+                    "Circuit breaker needs window >= 1, half-open-calls >= 1 and 0 < failure-rate <= 1");
+        }
+        this.timeouts = Map.copyOf(timeouts);
+        this.readBulkhead = new Semaphore(readConcurrency);
+        this.writeBulkhead = bulkhead("redis-write-", writeConcurrency);
+        this.window = new boolean[windowSize];
+        this.failureRate = failureRate;
+        this.openDurationNanos = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.maxStalenessNanos = maxStaleness.toNanos();
+        this.meterRegistry = meterRegistry;
+
+        Gauge.builder("cave.redis.resilience.circuit.state", this, resilience -> resilience.state().ordinal())
+                .description("Redis circuit breaker: 0 closed, 1 half-open, 2 open")
+                .register(meterRegistry);
+        Gauge.builder("cave.redis.resilience.bulkhead.active", readBulkhead,
+                        permits -> readConcurrency - permits.availablePermits())
+                .description("Redis calls running on the bulkhead")
+                .tag("bulkhead", "read")
+                .register(meterRegistry);
+        Gauge.builder("cave.redis.resilience.bulkhead.active", writeBulkhead, ThreadPoolExecutor::getActiveCount)
+                .description("Redis calls running on the bulkhead")
+                .tag("bulkhead", "write")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Wraps store so its reads and writes go through the bulkheads, timeouts and circuit breaker.
+     */
+    public TreasureStore guard(TreasureStore store) {
+        return new TreasureStore() {
+
+            @Override
+            public OptionalLong getFromRedis(String key) {
+                try {
+                    OptionalLong value = read("get", () -> store.getFromRedis(key));
+                    remember(key, value);
+                    return value;
+                } catch (RedisUnavailableException e) {
+                    return OptionalLong.of(stale("get", List.of(key), e).get(0));
+                }
+            }
+
+            @Override
+            public List<OptionalLong> getFromRedis(List<String> keys) {
+                try {
+                    List<OptionalLong> values = read("mget", () -> store.getFromRedis(keys));
+                    for (int i = 0; i < keys.size(); i++) {
+                        remember(keys.get(i), values.get(i));
+                    }
+                    return values;
+                } catch (RedisUnavailableException e) {
+                    return stale("mget", keys, e).stream().map(OptionalLong::of).toList();
+                }
+            }
+
+            // Only lazy initialization writes go through here, a missed one is retried on the next read
+            @Override
+            public void initializeInRedis(String key, long value, long timeoutInSeconds) {
+                try {
+                    write("set", () -> {
+                        store.initializeInRedis(key, value, timeoutInSeconds);
+                        return null;
+                    });
+                } catch (RedisUnavailableException e) {
+                    log.debug("Skipped initializing {}: {}", key, e.getReason());
+                }
+            }
+
+            @Override
+            public TransferResult transfer(String fromKey, long fromInitialValue,
+                                           String toKey, long toInitialValue,
+                                           long amount, long timeoutInSeconds) {
+                TransferResult result = write("transfer", () -> store.transfer(
+                        fromKey, fromInitialValue, toKey, toInitialValue, amount, timeoutInSeconds));
+                long now = System.nanoTime();
+                snapshot.put(fromKey, new Snapshot(result.fromAmount(), now));
+                snapshot.put(toKey, new Snapshot(result.toAmount(), now));
+                return result;
+            }
+
+            @Override
+            public boolean versioned() {
+                return store.versioned();
+            }
+
+            // A failed lookup reads as no version, the full read that follows decides the answer
+            @Override
+            public long getVersion(String key) {
+                try {
+                    return read("get", () -> store.getVersion(key));
+                } catch (RedisUnavailableException e) {
+                    return 0;
+                }
+            }
+
+            @Override
+            public VersionedBalance getVersioned(String key) {
+                try {
+                    VersionedBalance balance = read("mget", () -> store.getVersioned(key));
+                    remember(key, balance.amount());
+                    return balance;
+                } catch (RedisUnavailableException e) {
+                    return new VersionedBalance(OptionalLong.of(stale("mget", List.of(key), e).get(0)), 0);
+                }
+            }
+
+            @Override
+            public TransferResult transferIfVersion(String fromKey, long fromInitialValue,
+                                                    String toKey, long toInitialValue,
+                                                    long amount, long timeoutInSeconds, long expectedFromVersion) {
+                TransferResult result = write("transfer", () -> store.transferIfVersion(
+                        fromKey, fromInitialValue, toKey, toInitialValue, amount, timeoutInSeconds,
+                        expectedFromVersion));
+                long now = System.nanoTime();
+                snapshot.put(fromKey, new Snapshot(result.fromAmount(), now));
+                snapshot.put(toKey, new Snapshot(result.toAmount(), now));
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Guards a read outside the treasure store. A failure is a {@link RedisUnavailableException}.
+     */
+    public <T> T read(String operation, Supplier<T> call) {
+        State acquired = acquire(operation);
+        if (!readBulkhead.tryAcquire()) {
+            throw reject(operation, acquired, null);
+        }
+        try {
+            T result = withCommandTimeout(timeout(operation, "get"), call);
+            onSuccess(acquired);
+            count(operation, "success");
+            return result;
+        } catch (QueryTimeoutException | RedisCommandTimeoutException e) {
+            onFailure(acquired);
+            count(operation, "timeout");
+            throw new RedisUnavailableException("Redis " + operation + " timed out", e);
+        } catch (RuntimeException e) {
+            onFailure(acquired);
+            count(operation, "failure");
+            throw new RedisUnavailableException("Redis " + operation + " failed", e);
+        } finally {
+            readBulkhead.release();
+        }
+    }
+
+    /**
+     * Guards a write outside the treasure store. A failure is a {@link RedisUnavailableException}, and a write
+     * that timed out may still have been applied.
+     */
+    public <T> T write(String operation, Supplier<T> call) {
+        State acquired = acquire(operation);
+        Duration timeout = timeout(operation, "set");
+        Future<T> future;
+        try {
+            future = writeBulkhead.submit(() -> withCommandTimeout(timeout, call));
+        } catch (RejectedExecutionException e) {
+            throw reject(operation, acquired, e);
+        }
+
+        try {
+            T result = future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            onSuccess(acquired);
+            count(operation, "success");
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            onFailure(acquired);
+            count(operation, "timeout");
+            throw new RedisUnavailableException("Redis " + operation + " timed out", e);
+        } catch (ExecutionException e) {
+            onFailure(acquired);
+            count(operation, "failure");
+            throw new RedisUnavailableException("Redis " + operation + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            release(acquired);
+            Thread.currentThread().interrupt();
+            throw new RedisUnavailableException("Interrupted while waiting for Redis", e);
+        }
+    }
+
+    /**
+     * The timeout of the guarded call running on this thread, for each Redis command it sends, or null outside
+     * guarded calls. ResilienceConfig hands it to Lettuce as the command timeout.
+     */
+    public static Duration commandTimeout() {
+        return COMMAND_TIMEOUT.get();
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    private State acquire(String operation) {
+        State acquired = tryAcquire();
+        if (acquired == null) {
+            count(operation, "short-circuited");
+            throw new RedisUnavailableException("Redis circuit is open", null);
+        }
+        return acquired;
+    }
+
+    // A full bulkhead says nothing about Redis itself, so it doesn't count towards the circuit
+    private RedisUnavailableException reject(String operation, State acquired, RejectedExecutionException cause) {
+        release(acquired);
+        count(operation, "rejected");
+        return new RedisUnavailableException("Too many Redis calls in flight", cause);
+    }
+
+    private static <T> T withCommandTimeout(Duration timeout, Supplier<T> call) {
+        Duration outer = COMMAND_TIMEOUT.get();
+        COMMAND_TIMEOUT.set(timeout);
+        try {
+            return call.get();
+        } finally {
+            if (outer == null) {
+                COMMAND_TIMEOUT.remove();
+            } else {
+                COMMAND_TIMEOUT.set(outer);
+            }
+        }
+    }
+
+    private Duration timeout(String operation, String bulkheadDefault) {
+        Duration timeout = timeouts.get(operation);
+        return timeout != null ? timeout : timeouts.get(bulkheadDefault);
+    }
+
+    private void remember(String key, OptionalLong value) {
+        if (value.isPresent()) {
+            snapshot.put(key, new Snapshot(value.getAsLong(), System.nanoTime()));
+        } else {
+            snapshot.remove(key);
+        }
+    }
+
+    private List<Long> stale(String operation, List<String> keys, RedisUnavailableException failure) {
+        long now = System.nanoTime();
+        List<Long> values = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            Snapshot known = snapshot.get(key);
+            if (known == null || now - known.readAt() > maxStalenessNanos) {
+                fallback(operation, "unavailable");
+                throw failure;
+            }
+            values.add(known.amount());
+        }
+        fallback(operation, "stale");
+        return values;
+    }
+
+    private synchronized State tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openUntil < 0) {
+                return null;
+            }
+            state = State.HALF_OPEN;
+            probesRunning = 0;
+            probesSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesRunning + probesSucceeded >= halfOpenCalls) {
+                return null;
+            }
+            probesRunning++;
+        }
+        return state;
+    }
+
+    private synchronized void onSuccess(State acquired) {
+        if (acquired == State.HALF_OPEN) {
+            if (state == State.HALF_OPEN) {
+                probesRunning--;
+                if (++probesSucceeded >= halfOpenCalls) {
+                    closeCircuit();
+                }
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    private synchronized void onFailure(State acquired) {
+        if (acquired == State.HALF_OPEN) {
+            if (state == State.HALF_OPEN) {
+                openCircuit();
+            }
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (windowCalls == window.length && windowFailures >= failureRate * windowCalls) {
+                openCircuit();
+            }
+        }
+    }
+
+    private synchronized void release(State acquired) {
+        if (acquired == State.HALF_OPEN && state == State.HALF_OPEN) {
+            probesRunning--;
+        }
+    }
+
+    private void record(boolean failed) {
+        if (windowCalls == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCalls++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    private void openCircuit() {
+        log.warn("Redis circuit opened, retrying in {} ms", TimeUnit.NANOSECONDS.toMillis(openDurationNanos));
+        state = State.OPEN;
+        openUntil = System.nanoTime() + openDurationNanos;
+    }
+
+    private void closeCircuit() {
+        log.info("Redis circuit closed");
+        state = State.CLOSED;
+        windowIndex = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    private void count(String operation, String outcome) {
+        counters.computeIfAbsent("calls:" + operation + ":" + outcome, key ->
+                Counter.builder("cave.redis.resilience.calls")
+                        .description("Guarded Redis calls by outcome")
+                        .tag("operation", operation)
+                        .tag("outcome", outcome)
+                        .register(meterRegistry)).increment();
+    }
+
+    private void fallback(String operation, String result) {
+        counters.computeIfAbsent("fallback:" + operation + ":" + result, key ->
+                Counter.builder("cave.redis.resilience.fallback")
+                        .description("Failed Redis reads answered from the local snapshot, or not")
+                        .tag("operation", operation)
+                        .tag("result", result)
+                        .register(meterRegistry)).increment();
+    }
+
+    private static ThreadPoolExecutor bulkhead(String threadNamePrefix, int concurrency) {
+        // No queue: a call starts right away on an idle thread or is rejected
+        return new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(),
+                Thread.ofPlatform().name(threadNamePrefix, 0).daemon().factory());
+    }
+
+    @Override
+    public void close() {
+        writeBulkhead.shutdownNow();
+    }
+}
@@ -1,43 +1,186 @@
 package com.johnmanko.portfolio.alibabassecret.services;
 
+import com.johnmanko.portfolio.alibabassecret.config.AsyncConfig;
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.OptionalLong;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * One key per balance.
+ *
+ * With versioning, each balance also has a version key, e.g. "thieves-treasure:version". Every write of the balance bumps it in the same
+ * script (versioned-transfer.lua, versioned-initialize.lua), it expires with the balance, and it keeps increasing
+ * when an expired balance starts over. Reads get both keys with one MGET, so a version always matches the value
+ * read with it. Write-behind batches plain writes, so it can't be combined with versioning.
+ *
+ * Properties:
+ * app.config.server.cave.versioning.enabled
+ */
 @Service
-public class RedisService {
+public class RedisService implements TreasureStore {
+
+    static final String VERSION_SUFFIX = ":version";
 
     private final RedisTemplate<String, String> redisTemplate;
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> transferScript;
+    private final CaveMetrics metrics;
+    private final TreasureWriteBuffer writeBuffer;
+    private final boolean versioning;
+    @SuppressWarnings("rawtypes")
+    private final RedisScript<List> versionedTransferScript =
+            RedisConfig.script("redis/versioned-transfer.lua", List.class);
+    private final RedisScript<Long> versionedInitializeScript =
+            RedisConfig.script("redis/versioned-initialize.lua", Long.class);
 
-    public RedisService(RedisTemplate<String, String> redisTemplate) {
+    @SuppressWarnings("rawtypes")
+    public RedisService(RedisTemplate<String, String> redisTemplate, RedisScript<List> transferScript,
+                        CaveMetrics metrics, Optional<TreasureWriteBuffer> writeBuffer,
+                        @Value("${app.config.server.cave.versioning.enabled:false}") boolean versioning) {
+        if (versioning && writeBuffer.isPresent()) {
+            throw new IllegalStateException("app.config.server.cave.versioning.enabled can't be combined with "
+                    + "app.config.server.cave.write-behind.enabled");
+        }
         this.redisTemplate = redisTemplate;
+        this.transferScript = transferScript;
+        this.metrics = metrics;
+        this.writeBuffer = writeBuffer.orElse(null);
+        this.versioning = versioning;
+    }
+
+    public static String versionKey(String key) {
+        return key + VERSION_SUFFIX;
+    }
+
+    // Create the key unless it exists (SET NX), so a late initialization never overwrites a transfer
+    @Override
+    @Async(AsyncConfig.REDIS_EXECUTOR)
+    public void initializeInRedis(String key, long value, long timeoutInSeconds) {
+        if (writeBuffer != null) {
+            writeBuffer.initialize(key, value, timeoutInSeconds);
+            return;
+        }
+        if (versioning) {
+            metrics.redis("set", () -> redisTemplate.execute(versionedInitializeScript,
+                    List.of(key, versionKey(key)), Long.toString(value), Long.toString(timeoutInSeconds)));
+            return;
+        }
+        metrics.redis("set", () ->
+                redisTemplate.opsForValue().setIfAbsent(key, Long.toString(value), timeoutInSeconds, TimeUnit.SECONDS));
+    }
+
+    // Read from Redis on the calling thread, empty when the key is missing
+    @Override
+    public OptionalLong getFromRedis(String key) {
+        String v = metrics.redis("get", () -> redisTemplate.opsForValue().get(key));
+        if (v == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Long.parseLong(v));
     }
 
-    // Write to Redis
-    @Async
-    public void saveToRedis(String key, Integer value, long timeoutInSeconds) {
-        redisTemplate.opsForValue().set(key, value.toString(), timeoutInSeconds, TimeUnit.SECONDS);
+    // Read many keys in one round trip (MGET), empty entries for missing keys
+    @Override
+    public List<OptionalLong> getFromRedis(List<String> keys) {
+        List<String> values = metrics.redis("mget", () -> redisTemplate.opsForValue().multiGet(keys));
+        List<OptionalLong> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String v = values == null ? null : values.get(i);
+            result.add(v == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(v)));
+        }
+        return result;
     }
 
-    // Read from Redis
-    @Async
-    public CompletableFuture<Optional<Integer>> getFromRedis(String key) {
-        return CompletableFuture.supplyAsync(() -> {
-            String v = redisTemplate.opsForValue().get(key);
-            if (v == null) {
-                return Optional.empty();
-            }
-            return Optional.of(Integer.valueOf(v));
-        });
+    @Override
+    public boolean versioned() {
+        return versioning;
+    }
+
+    // Only the version key, for conditional reads
+    @Override
+    public long getVersion(String key) {
+        if (!versioning) {
+            return 0;
+        }
+        String v = metrics.redis("get", () -> redisTemplate.opsForValue().get(versionKey(key)));
+        return v == null ? 0 : Long.parseLong(v);
+    }
+
+    // Value and version in one MGET, so they belong together
+    @Override
+    public VersionedBalance getVersioned(String key) {
+        if (!versioning) {
+            return new VersionedBalance(getFromRedis(key), 0);
+        }
+        List<String> values = metrics.redis("mget",
+                () -> redisTemplate.opsForValue().multiGet(List.of(key, versionKey(key))));
+        String value = values == null ? null : values.get(0);
+        String version = values == null ? null : values.get(1);
+        return new VersionedBalance(value == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(value)),
+                version == null ? 0 : Long.parseLong(version));
     }
 
     // Delete from Redis
-    @Async
+    @Async(AsyncConfig.REDIS_EXECUTOR)
     public void deleteFromRedis(String key) {
-        redisTemplate.delete(key);
+        metrics.redis("delete", () -> redisTemplate.delete(key));
+    }
+
+    // Atomically move an amount between two keys, missing keys start at their initial value
+    @Override
+    public TransferResult transfer(String fromKey, long fromInitialValue,
+                                   String toKey, long toInitialValue,
+                                   long amount, long timeoutInSeconds) {
+        if (writeBuffer != null) {
+            return writeBuffer.transfer(fromKey, fromInitialValue, toKey, toInitialValue, amount, timeoutInSeconds);
+        }
+        if (versioning) {
+            return transferIfVersion(fromKey, fromInitialValue, toKey, toInitialValue, amount, timeoutInSeconds, 0);
+        }
+        List<?> result = metrics.redis("transfer", () -> redisTemplate.execute(transferScript, List.of(fromKey, toKey),
+                Long.toString(amount), Long.toString(fromInitialValue), Long.toString(toInitialValue),
+                Long.toString(timeoutInSeconds)));
+        if (result == null || result.size() != 3) {
+            throw new IllegalStateException("Unexpected transfer result: " + result);
+        }
+        return new TransferResult(
+                ((Number) result.get(0)).intValue() == 1,
+                ((Number) result.get(1)).longValue(),
+                ((Number) result.get(2)).longValue());
+    }
+
+    // Versioned transfer, a conflict when expectedFromVersion isn't 0 and fromKey's version is another one
+    @Override
+    public TransferResult transferIfVersion(String fromKey, long fromInitialValue,
+                                            String toKey, long toInitialValue,
+                                            long amount, long timeoutInSeconds, long expectedFromVersion) {
+        if (!versioning) {
+            return TreasureStore.super.transferIfVersion(fromKey, fromInitialValue, toKey, toInitialValue,
+                    amount, timeoutInSeconds, expectedFromVersion);
+        }
+        List<?> result = metrics.redis("transfer", () -> redisTemplate.execute(versionedTransferScript,
+                List.of(fromKey, toKey, versionKey(fromKey), versionKey(toKey)),
+                Long.toString(amount), Long.toString(fromInitialValue), Long.toString(toInitialValue),
+                Long.toString(timeoutInSeconds), Long.toString(expectedFromVersion)));
+        if (result == null || result.size() != 3) {
+            throw new IllegalStateException("Unexpected transfer result: " + result);
+        }
+        int outcome = ((Number) result.get(0)).intValue();
+        return new TransferResult(
+                outcome == 1,
+                ((Number) result.get(1)).longValue(),
+                ((Number) result.get(2)).longValue(),
+                outcome == -1);
     }
-}
\ No newline at end of file
+}
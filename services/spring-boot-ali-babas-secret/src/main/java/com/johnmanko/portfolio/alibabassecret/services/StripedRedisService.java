@@ -0,0 +1,267 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.config.AsyncConfig;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads each balance over N stripe keys, so a hot balance isn't pinned to a single Redis Cluster shard.
+ *
+ * Stripe i of a balance is "<key>:{s<i>}", e.g. "thieves-treasure:{s3}". The hash tag {s<i>} puts stripe i of
+ * every balance in the same slot, so moving treasure between two balances within one stripe is an atomic
+ * script on one stripe pair. Stripes live in different slots, so the load spreads across shards.
+ *
+ * A missing balance starts with its initial value split evenly across the stripes. Reads sum all stripes with
+ * one MGET. A transfer moves what it can within the calling thread's home stripe, so the destination is credited
+ * there and a thread taking treasure back finds it in the same stripe. Only when that stripe runs short does it
+ * read the source's stripes and continue on those that hold treasure. If all stripes together don't hold enough,
+ * the partial moves are undone. No stripe ever goes negative, so neither can the total.
+ *
+ * Each stripe has its own expiry, refreshed by the moves that touch it, and the other stripes of both balances
+ * are refreshed every quarter of the expiry, so the stripes of a balance expire together. A balance only starts
+ * over from its initial value once none of its stripes is left. A stripe that expired on its own comes back
+ * empty, so an expiry never adds treasure to a balance.
+ *
+ * A transfer that spans several stripes is not atomic. Each stripe move is its own script, so concurrent
+ * readers can see a partly moved amount, and a refused transfer's moves and their undo. The balances it
+ * returns come from a separate MGET after the moves, so they may already include other transfers.
+ *
+ * Properties:
+ * app.config.server.cave.striping.enabled
+ * app.config.server.cave.striping.stripes
+ */
+@Service
+@Primary
+@ConditionalOnProperty(
+        value = "app.config.server.cave.striping.enabled",
+        havingValue = "true"
+)
+public class StripedRedisService implements TreasureStore {
+
+    // stripe-transfer.lua's answer when a stripe is missing
+    private static final long MISSING_STRIPE = -1;
+    private static final int MISSING_STRIPE_ATTEMPTS = 3;
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final RedisScript<Long> stripeTransferScript;
+    private final int stripes;
+    private final CaveMetrics metrics;
+    // When the stripes of each balance were last refreshed together, see refreshExpiry
+    private final ConcurrentMap<String, Long> refreshedAt = new ConcurrentHashMap<>();
+
+    public StripedRedisService(RedisTemplate<String, String> redisTemplate,
+                               RedisScript<Long> stripeTransferScript,
+                               @Value("${app.config.server.cave.striping.stripes:8}") int stripes,
+                               @Value("${app.config.server.cave.versioning.enabled:false}") boolean versioning,
+                               CaveMetrics metrics) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("app.config.server.cave.striping.stripes must be at least 1");
+        }
+        // A transfer spans several stripe scripts, none of which could bump the balance's version atomically
+        if (versioning) {
+            throw new IllegalStateException("app.config.server.cave.versioning.enabled can't be combined with "
+                    + "app.config.server.cave.striping.enabled");
+        }
+        this.redisTemplate = redisTemplate;
+        this.stripeTransferScript = stripeTransferScript;
+        this.stripes = stripes;
+        this.metrics = metrics;
+    }
+
+    public static String stripeKey(String key, int stripe) {
+        return key + ":{s" + stripe + "}";
+    }
+
+    @Override
+    public OptionalLong getFromRedis(String key) {
+        return getFromRedis(List.of(key)).get(0);
+    }
+
+    @Override
+    public List<OptionalLong> getFromRedis(List<String> keys) {
+        List<String> stripeKeys = new ArrayList<>(keys.size() * stripes);
+        for (String key : keys) {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                stripeKeys.add(stripeKey(key, stripe));
+            }
+        }
+        List<String> values = metrics.redis("mget", () -> redisTemplate.opsForValue().multiGet(stripeKeys));
+
+        List<OptionalLong> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            boolean found = false;
+            long sum = 0;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                String v = values == null ? null : values.get(i * stripes + stripe);
+                if (v != null) {
+                    found = true;
+                    sum += Long.parseLong(v);
+                }
+            }
+            result.add(found ? OptionalLong.of(sum) : OptionalLong.empty());
+        }
+        return result;
+    }
+
+    @Override
+    @Async(AsyncConfig.REDIS_EXECUTOR)
+    public void initializeInRedis(String key, long value, long timeoutInSeconds) {
+        createMissingStripes(key, value, timeoutInSeconds);
+    }
+
+    @Override
+    public TransferResult transfer(String fromKey, long fromInitialValue,
+                                   String toKey, long toInitialValue,
+                                   long amount, long timeoutInSeconds) {
+        int home = homeStripe();
+        long[] moved = new long[stripes];
+        moved[home] = moveWithinStripe(home, fromKey, fromInitialValue, toKey, toInitialValue, amount,
+                timeoutInSeconds);
+        long remaining = amount - moved[home];
+
+        if (remaining > 0 && stripes > 1) {
+            // The home stripe ran short, so only visit the stripes that hold treasure instead of trying each one
+            List<String> held = stripeValues(fromKey);
+            for (int i = 1; i < stripes && remaining > 0; i++) {
+                int stripe = (home + i) % stripes;
+                String value = held.get(stripe);
+                if (value != null && Long.parseLong(value) > 0) {
+                    moved[stripe] = moveWithinStripe(stripe, fromKey, fromInitialValue, toKey, toInitialValue,
+                            remaining, timeoutInSeconds);
+                    remaining -= moved[stripe];
+                }
+            }
+        }
+
+        if (remaining > 0) {
+            // Not enough treasure across all stripes, hand back what was already moved
+            refund(fromKey, fromInitialValue, toKey, toInitialValue, moved, timeoutInSeconds);
+        }
+        refreshExpiry(fromKey, timeoutInSeconds);
+        refreshExpiry(toKey, timeoutInSeconds);
+
+        List<OptionalLong> balances = getFromRedis(List.of(fromKey, toKey));
+        return new TransferResult(remaining == 0,
+                balances.get(0).orElse(fromInitialValue),
+                balances.get(1).orElse(toInitialValue));
+    }
+
+    // Each stripe first gives back what it received. If the destination has since spent some of it, or the stripe
+    // expired, the rest comes from its other stripes. A refund that can't be completed is an error, not a refusal,
+    // because the transfer has then been partly applied.
+    private void refund(String fromKey, long fromInitialValue, String toKey, long toInitialValue,
+                        long[] moved, long timeoutInSeconds) {
+        long owed = 0;
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (moved[stripe] > 0) {
+                owed += moved[stripe] - moveWithinStripe(stripe, toKey, toInitialValue, fromKey, fromInitialValue,
+                        moved[stripe], timeoutInSeconds);
+            }
+        }
+        for (int stripe = 0; stripe < stripes && owed > 0; stripe++) {
+            owed -= moveWithinStripe(stripe, toKey, toInitialValue, fromKey, fromInitialValue, owed,
+                    timeoutInSeconds);
+        }
+        if (owed > 0) {
+            throw new IllegalStateException("Refused transfer from " + fromKey + " to " + toKey
+                    + " could not be undone, " + owed + " treasure is left in " + toKey);
+        }
+    }
+
+    private long moveWithinStripe(int stripe, String fromKey, long fromInitialValue,
+                                  String toKey, long toInitialValue, long amount, long timeoutInSeconds) {
+        for (int attempt = 0; attempt < MISSING_STRIPE_ATTEMPTS; attempt++) {
+            Long moved = metrics.redis("transfer", () -> redisTemplate.execute(stripeTransferScript,
+                    List.of(stripeKey(fromKey, stripe), stripeKey(toKey, stripe)),
+                    Long.toString(amount), Long.toString(timeoutInSeconds)));
+            if (moved == null || moved != MISSING_STRIPE) {
+                return moved == null ? 0 : moved;
+            }
+            createMissingStripes(fromKey, fromInitialValue, timeoutInSeconds);
+            createMissingStripes(toKey, toInitialValue, timeoutInSeconds);
+        }
+        throw new IllegalStateException("Stripe " + stripe + " of " + fromKey + " or " + toKey + " keeps expiring");
+    }
+
+    // SET NX, so concurrent callers can't create a stripe twice. A balance with no stripe left starts over from
+    // its initial value, otherwise the missing stripes come back empty.
+    private void createMissingStripes(String key, long initialValue, long timeoutInSeconds) {
+        List<String> values = stripeValues(key);
+        boolean startOver = values.stream().allMatch(Objects::isNull);
+        metrics.redis("set", () -> redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                if (values.get(stripe) == null) {
+                    connection.stringCommands().set(
+                            stripeKey(key, stripe).getBytes(StandardCharsets.UTF_8),
+                            Long.toString(startOver ? share(initialValue, stripe) : 0)
+                                    .getBytes(StandardCharsets.UTF_8),
+                            Expiration.seconds(timeoutInSeconds),
+                            RedisStringCommands.SetOption.ifAbsent());
+                }
+            }
+            return null;
+        }));
+        if (startOver) {
+            refreshedAt.put(key, System.nanoTime());
+        }
+    }
+
+    // The script only refreshes the two stripes it touches, so the others are refreshed here, in one pipeline,
+    // at most every quarter of the expiry
+    private void refreshExpiry(String key, long timeoutInSeconds) {
+        if (stripes == 1) {
+            return;
+        }
+        long now = System.nanoTime();
+        Long refreshed = refreshedAt.get(key);
+        if (refreshed != null && now - refreshed < TimeUnit.SECONDS.toNanos(timeoutInSeconds) / 4) {
+            return;
+        }
+        refreshedAt.put(key, now);
+        metrics.redis("expire", () -> redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                connection.keyCommands().expire(stripeKey(key, stripe).getBytes(StandardCharsets.UTF_8),
+                        timeoutInSeconds);
+            }
+            return null;
+        }));
+    }
+
+    private List<String> stripeValues(String key) {
+        List<String> stripeKeys = new ArrayList<>(stripes);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            stripeKeys.add(stripeKey(key, stripe));
+        }
+        List<String> values = metrics.redis("mget", () -> redisTemplate.opsForValue().multiGet(stripeKeys));
+        return values == null ? Collections.nCopies(stripes, null) : values;
+    }
+
+    // Threads keep to one stripe, so concurrent transfers spread over the stripes
+    private int homeStripe() {
+        return Math.floorMod(Long.hashCode(Thread.currentThread().threadId()), stripes);
+    }
+
+    // Stripe i of an initial value, the remainder going to the first stripes
+    private long share(long initialValue, int stripe) {
+        return Math.floorDiv(initialValue, stripes) + (stripe < Math.floorMod(initialValue, stripes) ? 1 : 0);
+    }
+}
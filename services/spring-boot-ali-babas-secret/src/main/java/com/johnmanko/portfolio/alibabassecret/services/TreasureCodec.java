@@ -0,0 +1,127 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * How a Redis value holding one or more longs is written, chosen per key family.
+ *
+ * - decimal: "20" or "20:980:20". Redis can INCRBY it and the Lua scripts can tonumber it, and Redis
+ *   already keeps integer strings as 8-byte integers internally. Treasure balances always use it.
+ * - varint: a tag byte, then each value as a zigzag varint (1 byte up to 63, 10 bytes at most).
+ * - fixed64: a tag byte, then each value as 8 big-endian bytes.
+ *
+ * Every codec reads all three formats, told apart by the first byte (decimal never starts with a tag),
+ * so switching a family's codec needs no migration: old values stay readable until they expire.
+ */
+public interface TreasureCodec {
+
+    TreasureCodec DECIMAL = new Decimal();
+    TreasureCodec VARINT = new Varint();
+    TreasureCodec FIXED64 = new Fixed64();
+
+    byte VARINT_TAG = 1;
+    byte FIXED64_TAG = 2;
+
+    byte[] encode(long... values);
+
+    default long[] decode(byte[] bytes) {
+        if (bytes.length > 0 && bytes[0] == VARINT_TAG) {
+            return Varint.read(bytes);
+        }
+        if (bytes.length > 0 && bytes[0] == FIXED64_TAG) {
+            return Fixed64.read(bytes);
+        }
+        return Decimal.read(bytes);
+    }
+
+    // app.config.server.cave.codec.* values
+    static TreasureCodec named(String name) {
+        return switch (name) {
+            case "decimal" -> DECIMAL;
+            case "varint" -> VARINT;
+            case "fixed64" -> FIXED64;
+            default -> throw new IllegalArgumentException("Unknown codec " + name + ", use decimal, varint or fixed64");
+        };
+    }
+
+    final class Decimal implements TreasureCodec {
+
+        @Override
+        public byte[] encode(long... values) {
+            StringBuilder text = new StringBuilder(values.length * 8);
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    text.append(':');
+                }
+                text.append(values[i]);
+            }
+            return text.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        static long[] read(byte[] bytes) {
+            return Arrays.stream(new String(bytes, StandardCharsets.US_ASCII).split(":"))
+                    .mapToLong(Long::parseLong)
+                    .toArray();
+        }
+    }
+
+    final class Varint implements TreasureCodec {
+
+        @Override
+        public byte[] encode(long... values) {
+            byte[] buffer = new byte[1 + values.length * 10];
+            buffer[0] = VARINT_TAG;
+            int position = 1;
+            for (long value : values) {
+                long zigzag = (value << 1) ^ (value >> 63);
+                while ((zigzag & ~0x7FL) != 0) {
+                    buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                    zigzag >>>= 7;
+                }
+                buffer[position++] = (byte) zigzag;
+            }
+            return Arrays.copyOf(buffer, position);
+        }
+
+        static long[] read(byte[] bytes) {
+            long[] values = new long[bytes.length - 1];
+            int count = 0;
+            int position = 1;
+            while (position < bytes.length) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                values[count++] = (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            return Arrays.copyOf(values, count);
+        }
+    }
+
+    final class Fixed64 implements TreasureCodec {
+
+        @Override
+        public byte[] encode(long... values) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 + values.length * Long.BYTES).put(FIXED64_TAG);
+            for (long value : values) {
+                buffer.putLong(value);
+            }
+            return buffer.array();
+        }
+
+        static long[] read(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+            long[] values = new long[(bytes.length - 1) / Long.BYTES];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = buffer.getLong();
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only ledger of transfers in a Redis Stream ({@link #STREAM}), from which the balances are rebuilt.
+ *
+ * ledger-transfer.lua moves treasure and appends its entry in the same script: from, to, amount, and the
+ * resulting balance of both owners under their key names. The balance keys are only a materialized view of
+ * the ledger, and no longer expire.
+ *
+ * Materializing starts from the snapshot hash ({@link #SNAPSHOT}: "id", the last entry folded into it, and a
+ * balance per owner), then reads the entries after it in pages (XRANGE with an exclusive start). An owner's
+ * last entry gives its balance, an owner without entries has its initial value. The snapshot and the entries
+ * are separate reads, so ledger-restore.lua only writes the missing balance keys if neither the last entry nor
+ * the snapshot changed since the replay started; otherwise the replay runs again.
+ *
+ * Every compaction-interval, the entries older than retention are folded into the snapshot and trimmed
+ * (ledger-compact.lua, XTRIM MINID). Another instance compacting at the same time makes the script a no-op.
+ * A replay reads at most the retention's worth of entries after the snapshot.
+ *
+ * cave.ledger.replayed  - entries read by replays (restores and compactions)
+ * cave.ledger.compacted - entries folded into the snapshot
+ */
+public class TreasureLedger implements AutoCloseable {
+
+    public static final String STREAM = "treasure-ledger";
+    public static final String SNAPSHOT = "treasure-ledger:snapshot";
+    static final String SNAPSHOT_ID = "id";
+    static final String NO_ENTRY = "0-0";
+
+    private static final Logger log = LoggerFactory.getLogger(TreasureLedger.class);
+    private static final int RESTORE_ATTEMPTS = 5;
+
+    /**
+     * Balances folded from the snapshot with id snapshotId and the replayed entries after it, up to lastId.
+     */
+    public record Materialized(Map<String, Long> balances, String snapshotId, String lastId, long replayed) {
+    }
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final Map<String, Long> initialBalances;
+    private final int pageSize;
+    private final Duration retention;
+    private final Duration compactionInterval;
+    private final Clock clock;
+    private final CaveMetrics metrics;
+    private final Counter replayed;
+    private final Counter compacted;
+    private final RedisScript<Long> restoreScript =
+            RedisConfig.script("redis/ledger-restore.lua", Long.class);
+    private final RedisScript<Long> compactScript =
+            RedisConfig.script("redis/ledger-compact.lua", Long.class);
+    private ScheduledExecutorService scheduler;
+
+    public TreasureLedger(RedisTemplate<String, String> redisTemplate, Map<String, Long> initialBalances,
+                          int pageSize, Duration retention, Duration compactionInterval, Clock clock,
+                          CaveMetrics metrics, MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.initialBalances = Map.copyOf(initialBalances);
+        this.pageSize = pageSize;
+        this.retention = retention;
+        this.compactionInterval = compactionInterval;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.replayed = Counter.builder("cave.ledger.replayed")
+                .description("Ledger entries read to materialize balances")
+                .register(meterRegistry);
+        this.compacted = Counter.builder("cave.ledger.compacted")
+                .description("Ledger entries folded into the snapshot")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("treasure-ledger").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::compactQuietly,
+                compactionInterval.toMillis(), compactionInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Folds one entry into balances: the entry holds the resulting balance of both owners,
+     * so the last entry of an owner wins, whatever came before it.
+     */
+    public static void apply(Map<String, Long> balances, Map<String, String> entry) {
+        String from = entry.get("from");
+        String to = entry.get("to");
+        balances.put(from, Long.parseLong(entry.get(from)));
+        balances.put(to, Long.parseLong(entry.get(to)));
+    }
+
+    /**
+     * Balances from the snapshot and every entry after it.
+     * Only consistent if no compaction moved the snapshot meanwhile, which restore and compact check.
+     */
+    public Materialized materialize() {
+        return materialize(Range.Bound.unbounded());
+    }
+
+    // upTo: last entry id to fold in, inclusive
+    private Materialized materialize(Range.Bound<String> upTo) {
+        Map<Object, Object> snapshot = metrics.redis("hgetall", () -> redisTemplate.opsForHash().entries(SNAPSHOT));
+        Map<String, Long> balances = new HashMap<>(initialBalances);
+        String snapshotId = NO_ENTRY;
+        for (Map.Entry<Object, Object> field : snapshot.entrySet()) {
+            if (SNAPSHOT_ID.equals(field.getKey())) {
+                snapshotId = (String) field.getValue();
+            } else {
+                balances.put((String) field.getKey(), Long.parseLong((String) field.getValue()));
+            }
+        }
+
+        String lastId = snapshotId;
+        long count = 0;
+        List<MapRecord<String, String, String>> page;
+        do {
+            Range<String> range = Range.of(Range.Bound.exclusive(lastId), upTo);
+            page = metrics.redis("xrange", () -> redisTemplate.<String, String>opsForStream()
+                    .range(STREAM, range, Limit.limit().count(pageSize)));
+            if (page == null) {
+                break;
+            }
+            for (MapRecord<String, String, String> entry : page) {
+                apply(balances, entry.getValue());
+            }
+            if (!page.isEmpty()) {
+                lastId = page.get(page.size() - 1).getId().getValue();
+            }
+            count += page.size();
+        } while (page.size() == pageSize);
+
+        replayed.increment(count);
+        return new Materialized(balances, snapshotId, lastId, count);
+    }
+
+    /**
+     * Writes the balance keys that are missing from a replay of the ledger, the ones that exist are left alone.
+     */
+    public void restore() {
+        List<String> owners = List.copyOf(initialBalances.keySet());
+        List<String> keys = new ArrayList<>(owners.size() + 2);
+        keys.add(STREAM);
+        keys.add(SNAPSHOT);
+        keys.addAll(owners);
+
+        for (int attempt = 0; attempt < RESTORE_ATTEMPTS; attempt++) {
+            Materialized materialized = materialize();
+            Object[] args = new Object[owners.size() + 2];
+            args[0] = materialized.snapshotId();
+            args[1] = materialized.lastId();
+            for (int i = 0; i < owners.size(); i++) {
+                args[i + 2] = Long.toString(materialized.balances().get(owners.get(i)));
+            }
+            Long restored = metrics.redis("restore", () -> redisTemplate.execute(restoreScript, keys, args));
+            if (restored != null && restored == 1) {
+                return;
+            }
+            // A transfer was appended or a compaction trimmed entries during the replay
+        }
+        throw new IllegalStateException("The treasure ledger kept changing while restoring balances");
+    }
+
+    /**
+     * Folds the entries older than retention into the snapshot and trims them from the stream.
+     * Returns the number of entries folded, 0 when there were none or another compaction got there first.
+     */
+    public long compact() {
+        // Entry ids start with the time they were appended, in milliseconds
+        long upTo = clock.millis() - retention.toMillis();
+        if (upTo < 0) {
+            return 0;
+        }
+        Materialized materialized = materialize(Range.Bound.inclusive(Long.toString(upTo)));
+        if (materialized.replayed() == 0) {
+            return 0;
+        }
+
+        List<String> args = new ArrayList<>();
+        args.add(materialized.snapshotId());
+        args.add(materialized.lastId());
+        materialized.balances().forEach((owner, balance) -> {
+            args.add(owner);
+            args.add(Long.toString(balance));
+        });
+        Long trimmed = metrics.redis("compact", () -> redisTemplate.execute(compactScript,
+                List.of(SNAPSHOT, STREAM), args.toArray()));
+        if (trimmed == null || trimmed < 0) {
+            return 0;
+        }
+        compacted.increment(materialized.replayed());
+        return materialized.replayed();
+    }
+
+    private void compactQuietly() {
+        try {
+            long folded = compact();
+            if (folded > 0) {
+                log.debug("Folded {} ledger entries into the snapshot", folded);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to compact the treasure ledger, retrying in {}", compactionInterval, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process copy of treasure balances, kept correct by Redis invalidation messages
+ * (see {@link ClientTrackingInvalidator} and {@link KeyspaceNotificationInvalidator}).
+ *
+ * Entries expire after the same 60 seconds as the Redis keys. While no invalidation source is connected
+ * the cache is inactive and every read goes to Redis.
+ *
+ * A value read from Redis is only stored when no invalidation arrived while it was being read, which
+ * closes the race between a read and a concurrent write.
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.cave.near-cache.enabled",
+        havingValue = "true"
+)
+public class TreasureNearCache {
+
+    private final Cache<String, Long> cache;
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile boolean active;
+
+    public TreasureNearCache(@Value("${app.config.server.cave.near-cache.maximum-size:1000}") long maximumSize,
+                             MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(CaveService.TREASURE_TIMEOUT_SECONDS))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "treasure.near-cache");
+    }
+
+    // Cached value, or null when the caller must read from Redis
+    public Long getIfPresent(String key) {
+        return active ? cache.getIfPresent(key) : null;
+    }
+
+    // Taken before reading from Redis and handed back to put(...)
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    public void put(String key, long value, long stamp) {
+        if (!active) {
+            return;
+        }
+        cache.put(key, value);
+        // An invalidation raced with the read, drop what may be a stale value
+        if (invalidations.get() != stamp) {
+            cache.invalidate(key);
+        }
+    }
+
+    // Striped balances (StripedRedisService) are invalidated through their stripe keys, "<key>:{s<i>}"
+    public void invalidate(String key) {
+        invalidations.incrementAndGet();
+        int stripe = key.indexOf(':');
+        cache.invalidate(stripe < 0 ? key : key.substring(0, stripe));
+    }
+
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    // Called by the invalidation source when it (re)connects or loses its connection
+    public void setActive(boolean active) {
+        invalidateAll();
+        this.active = active;
+    }
+
+}
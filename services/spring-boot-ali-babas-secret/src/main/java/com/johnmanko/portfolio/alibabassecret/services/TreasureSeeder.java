@@ -0,0 +1,47 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.INITIAL_TREASURES;
+
+/**
+ * Seeds the treasure balances when the application is ready, before the first request:
+ * one MGET, a SET NX for each balance that is missing, and the near-cache (when enabled) filled with the result.
+ * Balances that already exist are left alone, so restarting instances never resets them.
+ *
+ * Seeding is best effort: if Redis isn't reachable yet, balances are initialized by the first read as usual.
+ *
+ * Property: app.config.server.cave.seed.enabled
+ */
+@Service
+@ConditionalOnProperty(
+        value = "app.config.server.cave.seed.enabled",
+        havingValue = "true"
+)
+public class TreasureSeeder {
+
+    private static final Logger log = LoggerFactory.getLogger(TreasureSeeder.class);
+
+    private final CaveService cave;
+
+    public TreasureSeeder(CaveService cave) {
+        this.cave = cave;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        try {
+            Map<String, Long> balances = cave.getTreasures(INITIAL_TREASURES.keySet());
+            log.info("Seeded treasure balances {}", balances);
+        } catch (RuntimeException e) {
+            log.warn("Unable to seed treasure balances, the first read initializes them", e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * Where CaveService keeps treasure balances.
+ * {@link RedisService} stores each balance in a single key; {@link StripedRedisService} spreads it over stripes;
+ * {@link LedgerRedisService} records each transfer in a ledger and restores missing balances from it.
+ * Only {@link RedisService} keeps versions, with app.config.server.cave.versioning.enabled=true.
+ */
+public interface TreasureStore {
+
+    // Balance of a key, empty when the key is missing
+    OptionalLong getFromRedis(String key);
+
+    // Balances of many keys in one round trip, empty entries for missing keys
+    List<OptionalLong> getFromRedis(List<String> keys);
+
+    // Create a missing balance with its initial value (SET NX), a balance that exists is left alone
+    void initializeInRedis(String key, long value, long timeoutInSeconds);
+
+    // Atomically move an amount between two keys, missing keys start at their initial value
+    TransferResult transfer(String fromKey, long fromInitialValue,
+                            String toKey, long toInitialValue,
+                            long amount, long timeoutInSeconds);
+
+    // Whether writes bump a version per balance, see the versioned methods below
+    default boolean versioned() {
+        return false;
+    }
+
+    // Version of a balance without its value, 0 when it has none
+    default long getVersion(String key) {
+        return 0;
+    }
+
+    // Balance and version of a key, read together
+    default VersionedBalance getVersioned(String key) {
+        return new VersionedBalance(getFromRedis(key), 0);
+    }
+
+    // transfer, applied only while fromKey's version is expectedFromVersion, otherwise a conflict.
+    // Balances without versions are always at version 0, so any other expected version is outdated
+    default TransferResult transferIfVersion(String fromKey, long fromInitialValue,
+                                             String toKey, long toInitialValue,
+                                             long amount, long timeoutInSeconds, long expectedFromVersion) {
+        if (expectedFromVersion != 0) {
+            return new TransferResult(false, 0, 0, true);
+        }
+        return transfer(fromKey, fromInitialValue, toKey, toInitialValue, amount, timeoutInSeconds);
+    }
+}
@@ -0,0 +1,221 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes treasure balance changes to Server-Sent Event subscribers, so the UI keeps one connection open
+ * instead of polling the balance endpoints.
+ *
+ * Changes come from the keyspace notifications of the treasure keys, so every write is seen, whichever
+ * instance or store mode (plain, striped, write-behind) made it, and so are expiries. Notifications only
+ * mark an owner as changed. Every interval, the changed owners are read from the store with one MGET,
+ * skipping the near-cache (see {@link CaveService#readTreasures}), and each subscriber gets at most one
+ * "treasure" event with the owners it follows whose balance differs from the last one it was sent.
+ * A burst of transfers costs one read and one event per interval.
+ *
+ * Redis only publishes the notifications when notify-keyspace-events includes K, $, g and x
+ * (see {@link KeyspaceNotificationInvalidator}). The setting is read with CONFIG GET on start and every heartbeat,
+ * since a restarted server has lost a CONFIG SET. While it is missing, or the subscription couldn't be made,
+ * every owner someone follows is polled each interval instead (cave.stream.polling is 1).
+ *
+ * A subscriber gets its current balances as the first event, and a comment every heartbeat so idle
+ * proxies keep the connection open.
+ */
+public class TreasureStream implements MessageListener, AutoCloseable {
+
+    public static final String EVENT = "treasure";
+
+    private static final Logger log = LoggerFactory.getLogger(TreasureStream.class);
+    private static final String NOTIFY_KEYSPACE_EVENTS = "notify-keyspace-events";
+    private static final String KEYSPACE_EVENTS = "K$gx";
+
+    // pushed: the balances this subscriber was last sent
+    private record Subscriber(SseEmitter emitter, Set<String> owners, Map<String, Long> pushed) {
+    }
+
+    private final CaveService cave;
+    private final RedisConnectionFactory connectionFactory;
+    private final Duration interval;
+    private final Duration heartbeat;
+    private final Duration timeout;
+    private final RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private boolean configureServer;
+    private volatile boolean subscribed;
+    private volatile boolean polling;
+    private ScheduledExecutorService scheduler;
+
+    public TreasureStream(CaveService cave, RedisConnectionFactory connectionFactory,
+                          Duration interval, Duration heartbeat, Duration timeout,
+                          MeterRegistry meterRegistry, String... owners) {
+        this.cave = cave;
+        this.connectionFactory = connectionFactory;
+        this.interval = interval;
+        this.heartbeat = heartbeat;
+        this.timeout = timeout;
+        this.container.setConnectionFactory(connectionFactory);
+        this.container.addMessageListener(this,
+                Arrays.stream(owners).map(owner -> new PatternTopic("__keyspace@*__:" + owner + "*")).toList());
+        Gauge.builder("cave.stream.subscribers", subscribers, List::size)
+                .description("Open treasure-stream connections")
+                .register(meterRegistry);
+        Gauge.builder("cave.stream.polling", this, stream -> stream.polling ? 1 : 0)
+                .description("1 while balances are polled because keyspace notifications aren't published")
+                .register(meterRegistry);
+    }
+
+    // configureServer: set notify-keyspace-events, for servers that allow CONFIG SET
+    public void start(boolean configureServer) {
+        this.configureServer = configureServer;
+        container.afterPropertiesSet();
+        checkKeyspaceEvents();
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("treasure-stream").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::pushChanges, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::sendHeartbeat, heartbeat.toMillis(), heartbeat.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a stream of balance changes for owners, which the caller must be allowed to read.
+     */
+    public SseEmitter subscribe(Set<String> owners) {
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        Subscriber subscriber = new Subscriber(emitter, Set.copyOf(owners), new ConcurrentHashMap<>());
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        // After registering, so a change made while reading the initial balances is still pushed
+        send(subscriber, cave.getTreasures(subscriber.owners()));
+        return emitter;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = channel.substring(channel.indexOf("__:") + 3);
+        // Striped balances live in "owner:{sN}" keys
+        int stripe = key.indexOf(':');
+        changed.add(stripe < 0 ? key : key.substring(0, stripe));
+    }
+
+    private void pushChanges() {
+        List<String> owners;
+        if (polling) {
+            Set<String> followed = new HashSet<>();
+            subscribers.forEach(subscriber -> followed.addAll(subscriber.owners()));
+            owners = new ArrayList<>(followed);
+        } else {
+            owners = new ArrayList<>(changed);
+            changed.removeAll(owners);
+        }
+        if (owners.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, Long> balances;
+            try {
+                balances = cave.readTreasures(owners);
+            } catch (RuntimeException e) {
+                // Read again next interval
+                changed.addAll(owners);
+                throw e;
+            }
+
+            for (Subscriber subscriber : subscribers) {
+                Map<String, Long> event = new HashMap<>();
+                for (String owner : subscriber.owners()) {
+                    Long amount = balances.get(owner);
+                    if (amount != null && !amount.equals(subscriber.pushed().get(owner))) {
+                        event.put(owner, amount);
+                    }
+                }
+                if (!event.isEmpty()) {
+                    send(subscriber, event);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to push treasure changes", e);
+        }
+    }
+
+    private void sendHeartbeat() {
+        checkKeyspaceEvents();
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.emitter().send(SseEmitter.event().comment("heartbeat"));
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    // Polls while the server doesn't publish the notifications or they can't be subscribed to,
+    // setting them again if configureServer and retrying the subscription
+    private void checkKeyspaceEvents() {
+        if (!subscribed) {
+            try {
+                container.start();
+                subscribed = true;
+            } catch (RuntimeException e) {
+                log.debug("Unable to subscribe to keyspace notifications", e);
+            }
+        }
+        String events = null;
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            events = notifyKeyspaceEvents(connection);
+            if (configureServer && !KeyspaceNotificationInvalidator.publishesKeyspaceEvents(events)) {
+                connection.serverCommands().setConfig(NOTIFY_KEYSPACE_EVENTS, KEYSPACE_EVENTS);
+                events = notifyKeyspaceEvents(connection);
+            }
+        } catch (RuntimeException e) {
+            log.debug("Unable to read notify-keyspace-events", e);
+        }
+        boolean poll = !subscribed || !KeyspaceNotificationInvalidator.publishesKeyspaceEvents(events);
+        if (poll && !polling) {
+            log.warn("notify-keyspace-events is \"{}\" (needs at least {}), subscribed: {}; "
+                    + "treasure-stream polls balances every interval", events, KEYSPACE_EVENTS, subscribed);
+        }
+        polling = poll;
+    }
+
+    private static String notifyKeyspaceEvents(RedisConnection connection) {
+        Properties config = connection.serverCommands().getConfig(NOTIFY_KEYSPACE_EVENTS);
+        return config == null ? null : config.getProperty(NOTIFY_KEYSPACE_EVENTS);
+    }
+
+    private void send(Subscriber subscriber, Map<String, Long> balances) {
+        try {
+            subscriber.pushed().putAll(balances);
+            subscriber.emitter().send(SseEmitter.event().name(EVENT).data(balances));
+        } catch (IOException | IllegalStateException e) {
+            // The client went away; the emitter's error callback finishes the clean-up
+            subscribers.remove(subscriber);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        subscribers.forEach(subscriber -> subscriber.emitter().complete());
+        container.destroy();
+    }
+}
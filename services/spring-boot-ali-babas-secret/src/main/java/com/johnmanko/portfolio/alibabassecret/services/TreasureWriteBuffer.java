@@ -0,0 +1,389 @@
+package com.johnmanko.portfolio.alibabassecret.services;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind buffer for RedisService: collects treasure writes from many request threads and sends them to
+ * Redis as one pipelined batch, instead of one round trip per write.
+ *
+ * A single flusher thread takes whatever is queued (up to max-batch) and flushes it at once, so batches grow
+ * on their own under load and a lone write isn't delayed. window > 0 additionally lingers for more writes.
+ *
+ * Within a batch:
+ * - Initializations (SET NX) of the same key are coalesced.
+ * - Transfers between the same two balances are merged into one script call for the summed amount (their net
+ *   delta). If the merged amount is refused, the transfers are retried one by one, so each still gets the
+ *   all-or-nothing answer it would have had alone.
+ * - The script is sent with EVALSHA. Calls answered NOSCRIPT (script cache flushed, server restarted) didn't
+ *   run and are sent again with EVAL, which also loads the script for the next batches.
+ * - Each command's reply is mapped on its own: an error reply (e.g. a balance past 2^53 - 1) fails that write
+ *   only. A merged transfer that errors is retried one by one, like a refused one.
+ *
+ * The queue is bounded. A full queue blocks the caller for up to a second and then answers 503. A caller waits
+ * for its flush for at most ack-timeout and then answers 503 too; the write may still be applied afterwards.
+ * Writes still queued, or taken into a batch, when the flusher stops or close() gives up waiting are failed
+ * with 503 rather than left pending.
+ *
+ * A transfer always waits for its batch: its response is Redis's answer, and the balance check has to stay
+ * in the script. Initializations wait for their flush with acknowledge=after-flush (default) and return right
+ * away with acknowledge=on-enqueue, where up to one batch of them is lost if the process dies.
+ */
+public class TreasureWriteBuffer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TreasureWriteBuffer.class);
+    private static final long ENQUEUE_TIMEOUT_MILLIS = 1000;
+
+    private sealed interface Write permits PendingSet, PendingTransfer {
+    }
+
+    private record PendingSet(String key, String value, long timeoutInSeconds,
+                              CompletableFuture<Void> done) implements Write {
+    }
+
+    private record TransferCall(PendingTransfer transfer, long amount) {
+    }
+
+    private record PendingTransfer(String fromKey, long fromInitialValue, String toKey, long toInitialValue,
+                                   long amount, long timeoutInSeconds,
+                                   CompletableFuture<TransferResult> result) implements Write {
+
+        List<Object> mergeKey() {
+            return List.of(fromKey, fromInitialValue, toKey, toInitialValue, timeoutInSeconds);
+        }
+    }
+
+    private final RedisTemplate<String, String> redisTemplate;
+    private final byte[] transferScript;
+    private final String transferScriptSha;
+    private final BlockingQueue<Write> queue;
+    private final int maxBatch;
+    private final Duration window;
+    private final boolean acknowledgeAfterFlush;
+    private final Duration ackTimeout;
+    private final DistributionSummary batchSizes;
+    private volatile boolean running;
+    private volatile Thread flusher;
+    // The batch being flushed, for close() to fail if the flusher doesn't finish it
+    private volatile List<Write> inFlight = List.of();
+
+    @SuppressWarnings("rawtypes")
+    public TreasureWriteBuffer(RedisTemplate<String, String> redisTemplate, RedisScript<List> transferScript,
+                               int queueCapacity, int maxBatch, Duration window, boolean acknowledgeAfterFlush,
+                               Duration ackTimeout, MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.transferScript = transferScript.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        this.transferScriptSha = transferScript.getSha1();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatch = maxBatch;
+        this.window = window;
+        this.acknowledgeAfterFlush = acknowledgeAfterFlush;
+        this.ackTimeout = ackTimeout;
+        this.batchSizes = DistributionSummary.builder("cave.redis.write-behind.batch")
+                .description("Writes flushed to Redis per pipelined batch")
+                .register(meterRegistry);
+        Gauge.builder("cave.redis.write-behind.queued", queue, Collection::size)
+                .description("Writes waiting to be flushed to Redis")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        running = true;
+        flusher = Thread.ofPlatform().name("redis-write-behind").daemon().start(this::flushLoop);
+    }
+
+    public void initialize(String key, long value, long timeoutInSeconds) {
+        PendingSet write = new PendingSet(key, Long.toString(value), timeoutInSeconds, new CompletableFuture<>());
+        enqueue(write);
+        if (acknowledgeAfterFlush) {
+            await(write.done());
+        }
+    }
+
+    public TransferResult transfer(String fromKey, long fromInitialValue, String toKey, long toInitialValue,
+                                   long amount, long timeoutInSeconds) {
+        PendingTransfer write = new PendingTransfer(fromKey, fromInitialValue, toKey, toInitialValue,
+                amount, timeoutInSeconds, new CompletableFuture<>());
+        enqueue(write);
+        return await(write.result());
+    }
+
+    private void enqueue(Write write) {
+        try {
+            if (!running || !queue.offer(write, ENQUEUE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Treasure writes are backed up");
+            }
+            // Raced with shutdown: no flusher is left to take it
+            if (flusherStopped() && queue.remove(write)) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Treasure writes are stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while queueing a write");
+        }
+    }
+
+    private boolean flusherStopped() {
+        Thread thread = flusher;
+        return thread == null || !thread.isAlive();
+    }
+
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(ackTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Timed out waiting for a write flush");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting for a write");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private void flushLoop() {
+        List<Write> batch = new ArrayList<>(maxBatch);
+        try {
+            runFlushLoop(batch);
+        } finally {
+            // Interrupted or failed on the way out: nothing left behind may stay pending
+            failRemaining(batch);
+        }
+    }
+
+    private void runFlushLoop(List<Write> batch) {
+        while (running || !queue.isEmpty()) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                if (!window.isZero()) {
+                    long deadline = System.nanoTime() + window.toNanos();
+                    long remaining;
+                    while (batch.size() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                        Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch, maxBatch - batch.size());
+                inFlight = List.copyOf(batch);
+                flush(batch);
+                inFlight = List.of();
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Write-behind flush of {} writes failed", batch.size(), e);
+                for (Write write : batch) {
+                    fail(write, e);
+                }
+                inFlight = List.of();
+                batch.clear();
+            }
+        }
+    }
+
+    private void failRemaining(List<Write> batch) {
+        queue.drainTo(batch);
+        if (batch.isEmpty()) {
+            return;
+        }
+        log.warn("Write-behind stopped with {} writes not flushed", batch.size());
+        ResponseStatusException stopped =
+                new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Treasure writes were not flushed");
+        for (Write write : batch) {
+            fail(write, stopped);
+        }
+        batch.clear();
+    }
+
+    private void flush(List<Write> batch) {
+        batchSizes.record(batch.size());
+
+        Map<String, PendingSet> sets = new LinkedHashMap<>();
+        Map<List<Object>, List<PendingTransfer>> transfers = new LinkedHashMap<>();
+        for (Write write : batch) {
+            if (write instanceof PendingSet set) {
+                PendingSet replaced = sets.put(set.key(), set);
+                if (replaced != null) {
+                    replaced.done().complete(null);
+                }
+            } else if (write instanceof PendingTransfer transfer) {
+                transfers.computeIfAbsent(transfer.mergeKey(), key -> new ArrayList<>()).add(transfer);
+            }
+        }
+
+        List<PendingSet> setList = new ArrayList<>(sets.values());
+        List<List<PendingTransfer>> merged = new ArrayList<>(transfers.values());
+        List<TransferCall> calls = merged.stream()
+                .map(group -> new TransferCall(group.get(0),
+                        group.stream().mapToLong(PendingTransfer::amount).sum()))
+                .toList();
+        List<Object> replies = pipeline(setList, calls);
+
+        for (int i = 0; i < setList.size(); i++) {
+            if (replies.get(i) instanceof Throwable error) {
+                setList.get(i).done().completeExceptionally(error);
+            } else {
+                setList.get(i).done().complete(null);
+            }
+        }
+
+        List<PendingTransfer> retry = new ArrayList<>();
+        for (int i = 0; i < merged.size(); i++) {
+            List<PendingTransfer> group = merged.get(i);
+            Object reply = replies.get(setList.size() + i);
+            if (reply instanceof Throwable error) {
+                if (group.size() == 1) {
+                    group.get(0).result().completeExceptionally(error);
+                } else {
+                    // The summed amount may be what failed, e.g. past 2^53 - 1
+                    retry.addAll(group);
+                }
+            } else if (number(reply, 0) == 1) {
+                // Hand each caller the balances right after its own share, in queue order
+                long from = number(reply, 1);
+                long to = number(reply, 2);
+                for (int j = group.size() - 1; j >= 0; j--) {
+                    PendingTransfer transfer = group.get(j);
+                    transfer.result().complete(new TransferResult(true, from, to));
+                    from += transfer.amount();
+                    to -= transfer.amount();
+                }
+            } else if (group.size() == 1) {
+                group.get(0).result().complete(new TransferResult(false, number(reply, 1), number(reply, 2)));
+            } else {
+                retry.addAll(group);
+            }
+        }
+
+        if (!retry.isEmpty()) {
+            List<Object> retried = pipeline(List.of(),
+                    retry.stream().map(transfer -> new TransferCall(transfer, transfer.amount())).toList());
+            for (int i = 0; i < retry.size(); i++) {
+                if (retried.get(i) instanceof Throwable error) {
+                    retry.get(i).result().completeExceptionally(error);
+                } else {
+                    retry.get(i).result().complete(new TransferResult(
+                            number(retried.get(i), 0) == 1, number(retried.get(i), 1), number(retried.get(i), 2)));
+                }
+            }
+        }
+    }
+
+    // One reply per command, sets first: the reply, or the error of a command that failed
+    private List<Object> pipeline(List<PendingSet> sets, List<TransferCall> calls) {
+        List<Object> replies = new ArrayList<>(pipelined(connection -> {
+            for (PendingSet set : sets) {
+                connection.stringCommands().set(bytes(set.key()), bytes(set.value()),
+                        Expiration.seconds(set.timeoutInSeconds()), RedisStringCommands.SetOption.ifAbsent());
+            }
+            for (TransferCall call : calls) {
+                evalTransfer(connection, call, true);
+            }
+            return null;
+        }));
+
+        List<Integer> noScript = new ArrayList<>();
+        for (int i = 0; i < calls.size(); i++) {
+            if (replies.get(sets.size() + i) instanceof Throwable error
+                    && error.getMessage() != null && error.getMessage().startsWith("NOSCRIPT")) {
+                noScript.add(i);
+            }
+        }
+        if (!noScript.isEmpty()) {
+            List<Object> resent = pipelined(connection -> {
+                for (int i : noScript) {
+                    evalTransfer(connection, calls.get(i), false);
+                }
+                return null;
+            });
+            for (int j = 0; j < noScript.size(); j++) {
+                replies.set(sets.size() + noScript.get(j), resent.get(j));
+            }
+        }
+        return replies;
+    }
+
+    // A failed command doesn't fail the whole pipeline: its error takes the place of its reply
+    private List<Object> pipelined(RedisCallback<Object> commands) {
+        try {
+            return redisTemplate.executePipelined(commands);
+        } catch (RedisPipelineException e) {
+            return e.getPipelineResult();
+        }
+    }
+
+    private void evalTransfer(RedisConnection connection, TransferCall call, boolean bySha) {
+        PendingTransfer transfer = call.transfer();
+        byte[][] keysAndArgs = {
+                bytes(transfer.fromKey()), bytes(transfer.toKey()),
+                bytes(Long.toString(call.amount())),
+                bytes(Long.toString(transfer.fromInitialValue())),
+                bytes(Long.toString(transfer.toInitialValue())),
+                bytes(Long.toString(transfer.timeoutInSeconds()))};
+        if (bySha) {
+            connection.scriptingCommands().evalSha(transferScriptSha, ReturnType.MULTI, 2, keysAndArgs);
+        } else {
+            connection.scriptingCommands().eval(transferScript, ReturnType.MULTI, 2, keysAndArgs);
+        }
+    }
+
+    private static void fail(Write write, Throwable e) {
+        switch (write) {
+            case PendingSet set -> set.done().completeExceptionally(e);
+            case PendingTransfer transfer -> transfer.result().completeExceptionally(e);
+        }
+    }
+
+    private static long number(Object reply, int index) {
+        return ((Number) ((List<?>) reply).get(index)).longValue();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        // Stop taking writes, flush what is queued, then stop
+        running = false;
+        Thread thread = flusher;
+        if (thread != null) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        // The flusher is stuck (or never started): fail what it won't get to. Completing a future twice is a no-op,
+        // so a batch the flusher still finishes keeps its first answer.
+        if (thread == null || thread.isAlive()) {
+            failRemaining(new ArrayList<>(inFlight));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+-- Atomically moves treasure between two owners of a cave, each a field of its bucket hash.
+-- KEYS[1] source bucket, KEYS[2] destination bucket (the same key when both owners share a bucket)
+-- ARGV[1] source owner, ARGV[2] destination owner, ARGV[3] amount
+-- Returns {transferred (1/0), source balance, destination balance}, an owner without a field has 0
+-- Balances are written back with %.0f, see transfer.lua.
+local amount = tonumber(ARGV[3])
+local source = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+local destination = tonumber(redis.call('HGET', KEYS[2], ARGV[2]) or '0')
+
+if source < amount then
+    return {0, source, destination}
+end
+if destination + amount > 9007199254740991 then
+    return redis.error_reply('ERR treasure balance would exceed 2^53 - 1')
+end
+
+source = source - amount
+destination = destination + amount
+redis.call('HSET', KEYS[1], ARGV[1], string.format('%.0f', source))
+redis.call('HSET', KEYS[2], ARGV[2], string.format('%.0f', destination))
+return {1, source, destination}
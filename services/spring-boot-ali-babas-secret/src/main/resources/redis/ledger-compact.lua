@@ -0,0 +1,11 @@
+-- Moves the ledger snapshot forward and trims the entries it now covers.
+-- KEYS[1] snapshot hash, KEYS[2] ledger stream
+-- ARGV[1] snapshot id the new balances were folded from ('0-0' for none), ARGV[2] last entry folded in,
+-- ARGV[3..] owner, balance pairs
+-- Returns the number of trimmed entries, or -1 when another compaction moved the snapshot meanwhile.
+-- XTRIM MINID keeps ARGV[2] itself, replays start after it.
+if (redis.call('HGET', KEYS[1], 'id') or '0-0') ~= ARGV[1] then
+    return -1
+end
+redis.call('HSET', KEYS[1], 'id', ARGV[2], unpack(ARGV, 3))
+return redis.call('XTRIM', KEYS[2], 'MINID', ARGV[2])
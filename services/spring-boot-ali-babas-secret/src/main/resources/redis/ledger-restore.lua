@@ -0,0 +1,23 @@
+-- Writes missing balances from a replay of the ledger, unless the ledger changed since the replay:
+-- an entry was appended, or a compaction moved the snapshot and trimmed entries the replay may have missed.
+-- KEYS[1] ledger stream, KEYS[2] snapshot hash, KEYS[3..] balances
+-- ARGV[1] snapshot id the replay started from, ARGV[2] last entry it folded in ('0-0' for none),
+-- ARGV[3..] balance of each of KEYS[3..]
+-- Returns 1 when the balances are in place, 0 when the replay is outdated
+local snapshot = redis.call('HGET', KEYS[2], 'id') or '0-0'
+if snapshot ~= ARGV[1] then
+    return 0
+end
+local last = redis.call('XREVRANGE', KEYS[1], '+', '-', 'COUNT', 1)
+local id = snapshot
+if #last > 0 then
+    id = last[1][1]
+end
+if id ~= ARGV[2] then
+    return 0
+end
+
+for i = 3, #KEYS do
+    redis.call('SET', KEYS[i], ARGV[i], 'NX')
+end
+return 1
@@ -0,0 +1,29 @@
+-- transfer.lua for the ledger: the move and its ledger entry are one atomic step, and balances don't expire.
+-- KEYS[1] source balance, KEYS[2] destination balance, KEYS[3] ledger stream
+-- ARGV[1] amount
+-- Returns {transferred (1/0, -1 when a balance is missing and has to be restored from the ledger first),
+-- source balance, destination balance}
+-- The entry holds from, to, amount and the resulting balance of both owners under their key names.
+local source = redis.call('GET', KEYS[1])
+local destination = redis.call('GET', KEYS[2])
+if not source or not destination then
+    return {-1, 0, 0}
+end
+
+local amount = tonumber(ARGV[1])
+source = tonumber(source)
+destination = tonumber(destination)
+if source < amount then
+    return {0, source, destination}
+end
+if destination + amount > 9007199254740991 then
+    return redis.error_reply('ERR treasure balance would exceed 2^53 - 1')
+end
+
+source = string.format('%.0f', source - amount)
+destination = string.format('%.0f', destination + amount)
+redis.call('SET', KEYS[1], source)
+redis.call('SET', KEYS[2], destination)
+redis.call('XADD', KEYS[3], '*', 'from', KEYS[1], 'to', KEYS[2], 'amount', ARGV[1],
+        KEYS[1], source, KEYS[2], destination)
+return {1, tonumber(source), tonumber(destination)}
@@ -0,0 +1,22 @@
+-- GCRA rate limit: one bucket of ARGV[2] tokens refilled every ARGV[1] microseconds.
+-- KEYS[1] bucket, holding its theoretical arrival time in microseconds of the Redis clock
+-- ARGV[1] emission interval in microseconds, ARGV[2] burst
+-- Returns 0 when the request is allowed, otherwise the microseconds until a retry can succeed
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+local interval = tonumber(ARGV[1])
+local capacity = interval * tonumber(ARGV[2])
+
+local arrival = tonumber(redis.call('GET', KEYS[1]) or now)
+if arrival < now then
+    arrival = now
+end
+local next = arrival + interval
+local wait = next - now - capacity
+if wait > 0 then
+    return math.ceil(wait)
+end
+
+-- Expires once the bucket is full again
+redis.call('SET', KEYS[1], string.format('%.0f', next), 'PX', math.ceil((next - now) / 1000) + 1)
+return 0
@@ -0,0 +1,27 @@
+-- Moves up to the requested amount between two stripes that share a hash slot.
+-- KEYS[1] source stripe, KEYS[2] destination stripe
+-- ARGV[1] amount, ARGV[2] expiry in seconds
+-- Returns the amount actually moved, never more than the source stripe holds,
+-- or -1 without moving anything when either stripe is missing. Only the caller can see the other stripes of a
+-- balance, so it decides whether a missing stripe starts over or comes back empty (see StripedRedisService).
+-- Stripes are exact up to 2^53 - 1 and written back with %.0f (see transfer.lua)
+local amount = tonumber(ARGV[1])
+local source = redis.call('GET', KEYS[1])
+local destination = redis.call('GET', KEYS[2])
+if not source or not destination then
+    return -1
+end
+source = tonumber(source)
+destination = tonumber(destination)
+
+local moved = math.min(amount, source)
+if moved <= 0 then
+    return 0
+end
+if destination + moved > 9007199254740991 then
+    return redis.error_reply('ERR treasure balance would exceed 2^53 - 1')
+end
+
+redis.call('SET', KEYS[1], string.format('%.0f', source - moved), 'EX', ARGV[2])
+redis.call('SET', KEYS[2], string.format('%.0f', destination + moved), 'EX', ARGV[2])
+return moved
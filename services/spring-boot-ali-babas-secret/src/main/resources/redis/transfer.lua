@@ -0,0 +1,22 @@
+-- Atomically moves treasure from one balance to another.
+-- KEYS[1] source balance, KEYS[2] destination balance
+-- ARGV[1] amount, ARGV[2] source initial value, ARGV[3] destination initial value, ARGV[4] expiry in seconds
+-- Returns {transferred (1/0), source balance, destination balance}
+-- Lua numbers are doubles: balances are exact up to 2^53 - 1, and are written back with %.0f because
+-- tostring() switches to exponent notation past 14 digits.
+local amount = tonumber(ARGV[1])
+local source = tonumber(redis.call('GET', KEYS[1]) or ARGV[2])
+local destination = tonumber(redis.call('GET', KEYS[2]) or ARGV[3])
+
+if source < amount then
+    return {0, source, destination}
+end
+if destination + amount > 9007199254740991 then
+    return redis.error_reply('ERR treasure balance would exceed 2^53 - 1')
+end
+
+source = source - amount
+destination = destination + amount
+redis.call('SET', KEYS[1], string.format('%.0f', source), 'EX', ARGV[4])
+redis.call('SET', KEYS[2], string.format('%.0f', destination), 'EX', ARGV[4])
+return {1, source, destination}
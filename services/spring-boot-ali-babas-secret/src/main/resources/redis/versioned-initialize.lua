@@ -0,0 +1,15 @@
+-- SET NX of a versioned balance, bumping its version (see versioned-transfer.lua) when the balance is created.
+-- KEYS[1] balance, KEYS[2] version
+-- ARGV[1] initial value, ARGV[2] expiry in seconds
+-- Returns 1 when the balance was created, 0 when it already existed
+if not redis.call('SET', KEYS[1], ARGV[1], 'NX', 'EX', ARGV[2]) then
+    return 0
+end
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+local version = tonumber(redis.call('GET', KEYS[2]) or '0') + 1
+if version < now then
+    version = now
+end
+redis.call('SET', KEYS[2], string.format('%.0f', version), 'EX', ARGV[2])
+return 1
@@ -0,0 +1,39 @@
+-- transfer.lua for versioned balances: every write also bumps the balance's version.
+-- KEYS[1] source balance, KEYS[2] destination balance, KEYS[3] source version, KEYS[4] destination version
+-- ARGV[1] amount, ARGV[2] source initial value, ARGV[3] destination initial value, ARGV[4] expiry in seconds,
+-- ARGV[5] expected source version, 0 for any
+-- Returns {transferred (1/0, -1 when the source version isn't the expected one), source balance, destination balance}
+-- A new version is the Redis time in microseconds, or the old version + 1 when that's larger. Versions expire
+-- with their balance, and keep increasing when an expired balance starts over.
+local function bump(key)
+    local time = redis.call('TIME')
+    local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+    local version = tonumber(redis.call('GET', key) or '0') + 1
+    if version < now then
+        version = now
+    end
+    redis.call('SET', key, string.format('%.0f', version), 'EX', ARGV[4])
+end
+
+local amount = tonumber(ARGV[1])
+local source = tonumber(redis.call('GET', KEYS[1]) or ARGV[2])
+local destination = tonumber(redis.call('GET', KEYS[2]) or ARGV[3])
+
+local expected = tonumber(ARGV[5])
+if expected ~= 0 and tonumber(redis.call('GET', KEYS[3]) or '0') ~= expected then
+    return {-1, source, destination}
+end
+if source < amount then
+    return {0, source, destination}
+end
+if destination + amount > 9007199254740991 then
+    return redis.error_reply('ERR treasure balance would exceed 2^53 - 1')
+end
+
+source = source - amount
+destination = destination + amount
+redis.call('SET', KEYS[1], string.format('%.0f', source), 'EX', ARGV[4])
+redis.call('SET', KEYS[2], string.format('%.0f', destination), 'EX', ARGV[4])
+bump(KEYS[3])
+bump(KEYS[4])
+return {1, source, destination}
@@ -0,0 +1,116 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureNearCache;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.types.RedisClientInfo;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The near-cache with keyspace notification invalidation, against a server that starts without
+ * notify-keyspace-events: the cache stays inactive until the setting is there and the subscription reconnects.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.near-cache.enabled=true",
+        "app.config.server.cave.near-cache.invalidation=keyspace",
+        "app.config.server.cave.near-cache.keyspace.configure-server=false"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing the near-cache with keyspace notifications")
+public class KeyspaceNearCacheE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private CaveService caveService;
+
+    @Autowired
+    private TreasureNearCache nearCache;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private RedisConnectionFactory connectionFactory;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+        redisTemplate.delete(List.of(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Without notify-keyspace-events the near-cache stays inactive")
+    void inactiveWithoutNotifications() {
+        redisTemplate.opsForValue().set(THIEVES_TREASURE, "700", 60, TimeUnit.SECONDS);
+
+        assertEquals(700, caveService.getTreasure(THIEVES_TREASURE, 1000).amount());
+        assertNull(nearCache.getIfPresent(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("After a reconnect the setting is checked again and the near-cache activates")
+    void activatesAfterReconnect() throws Exception {
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.serverCommands().setConfig("notify-keyspace-events", "K$gx");
+            // CLIENT KILL TYPE answers with an integer, which execute() can't read, so kill them by address
+            for (RedisClientInfo client : connection.serverCommands().getClientList()) {
+                if (client.getFlags().contains("P")) {
+                    String address = client.getAddressPort();
+                    int port = address.lastIndexOf(':');
+                    connection.serverCommands().killClient(address.substring(0, port),
+                            Integer.parseInt(address.substring(port + 1)));
+                }
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            caveService.getTreasure(THIEVES_TREASURE, 1000);
+            if (nearCache.getIfPresent(THIEVES_TREASURE) != null) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(700, nearCache.getIfPresent(THIEVES_TREASURE));
+
+        redisTemplate.opsForValue().set(THIEVES_TREASURE, "650", 60, TimeUnit.SECONDS);
+        deadline = System.currentTimeMillis() + 5000;
+        while (nearCache.getIfPresent(THIEVES_TREASURE) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(nearCache.getIfPresent(THIEVES_TREASURE));
+        assertEquals(650, caveService.getTreasure(THIEVES_TREASURE, 1000).amount());
+    }
+}
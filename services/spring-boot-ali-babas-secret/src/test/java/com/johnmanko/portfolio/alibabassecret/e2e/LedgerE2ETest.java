@@ -0,0 +1,122 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.LedgerRedisService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureLedger;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the ledger scripts against a real Redis: a transfer and its entry are written together, lost balances
+ * are restored from the ledger, and compaction trims the stream without changing what a restore finds.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.ledger.enabled=true",
+        "app.config.server.cave.ledger.retention=0s",
+        "app.config.server.cave.ledger.page-size=7"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing the transfer ledger")
+public class LedgerE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final int INITIAL_TREASURE = 1000;
+    static final int TRANSFERS = 50;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private LedgerRedisService redisService;
+
+    @Autowired
+    private TreasureLedger ledger;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+        redisTemplate.delete(List.of(THIEVES_TREASURE, ALIBABA_TREASURE, TreasureLedger.STREAM, TreasureLedger.SNAPSHOT));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Each transfer appends one entry, and balances don't expire")
+    void transfersAppend() {
+        assertEquals(List.of(OptionalLong.of(INITIAL_TREASURE), OptionalLong.of(0)),
+                redisService.getFromRedis(List.of(THIEVES_TREASURE, ALIBABA_TREASURE)));
+
+        for (int i = 0; i < TRANSFERS; i++) {
+            assertTrue(redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 10, 60)
+                    .transferred());
+        }
+        TransferResult refused = redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0,
+                INITIAL_TREASURE, 60);
+        assertFalse(refused.transferred());
+
+        assertEquals(TRANSFERS, redisTemplate.opsForStream().size(TreasureLedger.STREAM));
+        assertEquals(-1, redisTemplate.getExpire(THIEVES_TREASURE));
+        TreasureLedger.Materialized replayed = ledger.materialize();
+        assertEquals(TRANSFERS, replayed.replayed());
+        assertEquals(Map.of(THIEVES_TREASURE, 500L, ALIBABA_TREASURE, 500L), replayed.balances());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Lost balances are restored from the ledger")
+    void restore() {
+        redisTemplate.delete(List.of(THIEVES_TREASURE, ALIBABA_TREASURE));
+
+        assertEquals(OptionalLong.of(500), redisService.getFromRedis(ALIBABA_TREASURE));
+        assertEquals("500", redisTemplate.opsForValue().get(THIEVES_TREASURE));
+
+        // A transfer that finds its balances missing restores them first
+        redisTemplate.delete(THIEVES_TREASURE);
+        TransferResult result = redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 10, 60);
+        assertEquals(new TransferResult(true, 490, 510), result);
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Compaction folds the entries into the snapshot and trims the stream")
+    void compaction() {
+        assertEquals(TRANSFERS + 1, ledger.compact());
+        // XTRIM MINID keeps the last entry folded in
+        assertEquals(1, redisTemplate.opsForStream().size(TreasureLedger.STREAM));
+        assertEquals(Map.of(THIEVES_TREASURE, "490", ALIBABA_TREASURE, "510"),
+                Map.of(THIEVES_TREASURE, redisTemplate.opsForHash().get(TreasureLedger.SNAPSHOT, THIEVES_TREASURE),
+                        ALIBABA_TREASURE, redisTemplate.opsForHash().get(TreasureLedger.SNAPSHOT, ALIBABA_TREASURE)));
+
+        redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 90, 60);
+        redisTemplate.delete(List.of(THIEVES_TREASURE, ALIBABA_TREASURE));
+        assertEquals(List.of(OptionalLong.of(400), OptionalLong.of(600)),
+                redisService.getFromRedis(List.of(THIEVES_TREASURE, ALIBABA_TREASURE)));
+    }
+}
@@ -0,0 +1,95 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.CaveHashStore;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the multi-cave layout against a real Redis: owners land in their bucket hashes, which keep the compact
+ * encoding, and cave-transfer.lua moves treasure between owners of different buckets.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.multi-cave.enabled=true",
+        "app.config.server.cave.multi-cave.buckets=16"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing multi-cave bucket hashes")
+public class MultiCaveE2ETest {
+    static final String CAVE = "sesame";
+    static final int OWNERS = 1000;
+    static final int BUCKETS = 16;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private CaveHashStore store;
+
+    @Autowired
+    private RedisConnectionFactory connectionFactory;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Owners are fields of compact bucket hashes")
+    void compactBuckets() {
+        for (int i = 0; i < OWNERS; i++) {
+            store.set(CAVE, "hunter-" + i, i);
+        }
+        assertEquals(OptionalLong.of(999), store.get(CAVE, "hunter-999"));
+        assertEquals(OptionalLong.empty(), store.get(CAVE, "hunter-" + OWNERS));
+
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            // Nothing but the buckets, about 62 owners each
+            assertEquals(BUCKETS, connection.serverCommands().dbSize());
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                byte[] key = ("cave:{" + CAVE + "}:" + bucket).getBytes(StandardCharsets.UTF_8);
+                assertThat(connection.keyCommands().encodingOf(key).raw()).isIn("ziplist", "listpack");
+                assertEquals(-1, connection.keyCommands().ttl(key));
+            }
+        }
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Transfers between owners of different buckets")
+    void transfer() {
+        String from = "hunter-500";
+        String to = "hunter-" + OWNERS;
+        assertNotEquals(CaveHashStore.bucketKey(CAVE, from, BUCKETS), CaveHashStore.bucketKey(CAVE, to, BUCKETS));
+
+        assertEquals(new TransferResult(true, 300, 200), store.transfer(CAVE, from, to, 200));
+        assertEquals(new TransferResult(false, 300, 200), store.transfer(CAVE, from, to, 301));
+        assertEquals(OptionalLong.of(200), store.get(CAVE, to));
+    }
+}
@@ -0,0 +1,92 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureNearCache;
+import com.redis.testcontainers.RedisContainer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.near-cache.enabled=true",
+        "app.config.server.cave.near-cache.invalidation=tracking"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing the treasure near-cache")
+public class NearCacheE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private CaveService caveService;
+
+    @Autowired
+    private TreasureNearCache nearCache;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+        redisTemplate.delete(List.of(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Repeated reads are served from the near-cache")
+    void readsAreCached() {
+        redisTemplate.opsForValue().set(THIEVES_TREASURE, "700", 60, TimeUnit.SECONDS);
+
+        assertEquals(700, caveService.getTreasure(THIEVES_TREASURE, 1000).amount());
+        assertEquals(700, nearCache.getIfPresent(THIEVES_TREASURE));
+        assertEquals(700, caveService.getTreasure(THIEVES_TREASURE, 1000).amount());
+
+        double hits = meterRegistry.get("cache.gets").tag("cache", "treasure.near-cache").tag("result", "hit")
+                .functionCounter().count();
+        assertThat(hits).isGreaterThanOrEqualTo(2);
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A write by another client invalidates the near-cache")
+    void writesInvalidate() throws Exception {
+        redisTemplate.opsForValue().set(THIEVES_TREASURE, "650", 60, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (nearCache.getIfPresent(THIEVES_TREASURE) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(nearCache.getIfPresent(THIEVES_TREASURE));
+        assertEquals(650, caveService.getTreasure(THIEVES_TREASURE, 1000).amount());
+    }
+}
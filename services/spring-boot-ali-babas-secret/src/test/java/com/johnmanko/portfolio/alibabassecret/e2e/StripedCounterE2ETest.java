@@ -0,0 +1,160 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.StripedRedisService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureStore;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs parallel transfers against striped balances and checks that the stripe totals are conserved,
+ * that no stripe goes negative, and that an oversized transfer is rolled back.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.striping.enabled=true",
+        "app.config.server.cave.striping.stripes=" + StripedCounterE2ETest.STRIPES
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing striped treasure counters")
+public class StripedCounterE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final int INITIAL_TREASURE = 1000;
+    static final int STRIPES = 4;
+    static final int TRANSFERS = 2000;
+    static final int THREADS = 32;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private TreasureStore treasureStore;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+        assertInstanceOf(StripedRedisService.class, treasureStore);
+    }
+
+    @BeforeEach
+    void setUpEach() {
+        List<String> keys = new ArrayList<>();
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            keys.add(StripedRedisService.stripeKey(THIEVES_TREASURE, stripe));
+            keys.add(StripedRedisService.stripeKey(ALIBABA_TREASURE, stripe));
+        }
+        redisTemplate.delete(keys);
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Concurrent transfers in both directions conserve the total")
+    void conservesTotal() throws Exception {
+        AtomicInteger toAlibaba = new AtomicInteger();
+        AtomicInteger toThieves = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(TRANSFERS);
+            for (int i = 0; i < TRANSFERS; i++) {
+                boolean forward = i % 3 != 0;
+                futures.add(executor.submit(() -> {
+                    TransferResult result = forward
+                            ? treasureStore.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 7, 60)
+                            : treasureStore.transfer(ALIBABA_TREASURE, 0, THIEVES_TREASURE, INITIAL_TREASURE, 5, 60);
+                    if (result.transferred()) {
+                        (forward ? toAlibaba : toThieves).addAndGet(forward ? 7 : 5);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long thieves = treasureStore.getFromRedis(THIEVES_TREASURE).orElseThrow();
+        long alibaba = treasureStore.getFromRedis(ALIBABA_TREASURE).orElseThrow();
+
+        assertEquals(INITIAL_TREASURE, thieves + alibaba);
+        assertEquals(toAlibaba.get() - toThieves.get(), alibaba);
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            assertThat(stripeValue(THIEVES_TREASURE, stripe)).isGreaterThanOrEqualTo(0);
+            assertThat(stripeValue(ALIBABA_TREASURE, stripe)).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A transfer larger than all stripes together is rolled back")
+    void rollsBackShortTransfer() {
+        treasureStore.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 600, 60);
+        treasureStore.transfer(ALIBABA_TREASURE, 0, THIEVES_TREASURE, INITIAL_TREASURE, 100, 60);
+
+        TransferResult result = treasureStore.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 501, 60);
+
+        assertFalse(result.transferred());
+        assertEquals(500, result.fromAmount());
+        assertEquals(500, result.toAmount());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A balance starts split across the stripes and an expired stripe comes back empty")
+    void expiredStripeComesBackEmpty() {
+        treasureStore.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 1, 60);
+        long thieves = treasureStore.getFromRedis(THIEVES_TREASURE).orElseThrow();
+        long total = thieves + treasureStore.getFromRedis(ALIBABA_TREASURE).orElseThrow();
+        assertEquals(INITIAL_TREASURE, total);
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            assertThat(stripeValue(THIEVES_TREASURE, stripe))
+                    .isBetween(INITIAL_TREASURE / STRIPES - 1, INITIAL_TREASURE / STRIPES);
+        }
+
+        // Let one stripe of thieves-treasure expire while the others are still there
+        int expired = stripeValue(THIEVES_TREASURE, 0);
+        redisTemplate.delete(StripedRedisService.stripeKey(THIEVES_TREASURE, 0));
+        for (int i = 0; i < STRIPES * 4; i++) {
+            treasureStore.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 1, 60);
+        }
+
+        assertEquals(total - expired, treasureStore.getFromRedis(THIEVES_TREASURE).orElseThrow()
+                + treasureStore.getFromRedis(ALIBABA_TREASURE).orElseThrow());
+    }
+
+    private int stripeValue(String key, int stripe) {
+        String value = redisTemplate.opsForValue().get(StripedRedisService.stripeKey(key, stripe));
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,111 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs thousands of parallel transfers against a real Redis and checks that no treasure is lost or created.
+ * Latency against the old read-check-write path is compared by TransferPathBenchmark.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@DisplayName("E2E Testing concurrent treasure transfers")
+public class TransferConcurrencyE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final int INITIAL_TREASURE = 1000;
+    static final int TRANSFERS = 5000;
+    static final int THREADS = 64;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+    }
+
+    @BeforeEach
+    void setUpEach() {
+        redisTemplate.delete(List.of(THIEVES_TREASURE, ALIBABA_TREASURE));
+    }
+
+    @Test
+    @DisplayName("Atomic transfers never lose or overdraw treasure")
+    void atomicTransfers() throws Exception {
+        AtomicInteger succeeded = new AtomicInteger();
+
+        runConcurrently(() -> {
+            TransferResult result = redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 1, 60);
+            if (result.transferred()) {
+                succeeded.incrementAndGet();
+            }
+        });
+
+        int thieves = Integer.parseInt(redisTemplate.opsForValue().get(THIEVES_TREASURE));
+        int alibaba = Integer.parseInt(redisTemplate.opsForValue().get(ALIBABA_TREASURE));
+
+        assertEquals(INITIAL_TREASURE, succeeded.get());
+        assertEquals(0, thieves);
+        assertEquals(INITIAL_TREASURE, alibaba);
+        assertEquals(INITIAL_TREASURE, thieves + alibaba);
+    }
+
+    /**
+     * Runs {@link #TRANSFERS} calls on {@link #THREADS} threads, all released at once.
+     */
+    private void runConcurrently(Runnable transfer) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(TRANSFERS);
+            for (int i = 0; i < TRANSFERS; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    transfer.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
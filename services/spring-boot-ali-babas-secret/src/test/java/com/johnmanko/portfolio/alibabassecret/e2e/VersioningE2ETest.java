@@ -0,0 +1,124 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.models.VersionedBalance;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.List;
+import java.util.OptionalLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the versioned scripts against a real Redis: every write bumps the versions, a compare-and-set with an
+ * outdated version moves nothing, and a balance that expires and starts over gets a larger version.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.versioning.enabled=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing versioned balances")
+public class VersioningE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final int INITIAL_TREASURE = 1000;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+        redisTemplate.delete(keys());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Transfers bump both versions")
+    void transfersBumpVersions() {
+        assertEquals(new VersionedBalance(OptionalLong.empty(), 0), redisService.getVersioned(THIEVES_TREASURE));
+
+        TransferResult first = redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 20, 60);
+        assertTrue(first.transferred());
+        VersionedBalance thieves = redisService.getVersioned(THIEVES_TREASURE);
+        assertEquals(980, thieves.amount().getAsLong());
+        assertThat(thieves.version()).isPositive();
+        assertThat(redisService.getVersion(ALIBABA_TREASURE)).isPositive();
+
+        redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 20, 60);
+        assertThat(redisService.getVersion(THIEVES_TREASURE)).isGreaterThan(thieves.version());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A compare-and-set with an outdated version moves nothing")
+    void compareAndSet() {
+        long version = redisService.getVersion(THIEVES_TREASURE);
+
+        TransferResult conflict = redisService.transferIfVersion(
+                THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 20, 60, version - 1);
+        assertTrue(conflict.conflict());
+        assertFalse(conflict.transferred());
+        assertEquals(new VersionedBalance(OptionalLong.of(960), version),
+                redisService.getVersioned(THIEVES_TREASURE));
+
+        TransferResult applied = redisService.transferIfVersion(
+                THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 20, 60, version);
+        assertTrue(applied.transferred());
+        assertEquals(940, applied.fromAmount());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A balance that starts over gets a larger version")
+    void versionsIncreaseAcrossExpiry() throws InterruptedException {
+        long version = redisService.getVersion(THIEVES_TREASURE);
+        // As if both keys had expired
+        redisTemplate.delete(keys());
+
+        redisService.initializeInRedis(THIEVES_TREASURE, INITIAL_TREASURE, 60);
+        for (int i = 0; i < 100 && redisService.getVersion(THIEVES_TREASURE) == 0; i++) {
+            Thread.sleep(10);
+        }
+        VersionedBalance restarted = redisService.getVersioned(THIEVES_TREASURE);
+        assertEquals(INITIAL_TREASURE, restarted.amount().getAsLong());
+        assertThat(restarted.version()).isGreaterThan(version);
+
+        // SET NX leaves the balance and its version alone
+        redisService.initializeInRedis(THIEVES_TREASURE, 0, 60);
+        Thread.sleep(100);
+        assertEquals(restarted, redisService.getVersioned(THIEVES_TREASURE));
+    }
+
+    private static List<String> keys() {
+        return List.of(THIEVES_TREASURE, ALIBABA_TREASURE,
+                RedisService.versionKey(THIEVES_TREASURE), RedisService.versionKey(ALIBABA_TREASURE));
+    }
+}
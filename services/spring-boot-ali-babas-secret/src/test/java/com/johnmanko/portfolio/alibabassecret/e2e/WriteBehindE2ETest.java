@@ -0,0 +1,174 @@
+package com.johnmanko.portfolio.alibabassecret.e2e;
+
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
+import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureWriteBuffer;
+import com.redis.testcontainers.RedisContainer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.data.redis.RedisConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.server.ResponseStatusException;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs concurrent transfers and lazy-init writes through the write-behind buffer against a real Redis:
+ * merged transfers must not overdraw, every caller gets its own answer, and writes are actually batched.
+ * A stalled Redis (CLIENT PAUSE) must answer callers 503 after ack-timeout instead of leaving them waiting.
+ */
+@SpringBootTest
+@Testcontainers
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.write-behind.enabled=true",
+        "app.config.server.cave.write-behind.window=2ms"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("E2E Testing write-behind batching")
+public class WriteBehindE2ETest {
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final int INITIAL_TREASURE = 1000;
+    static final int TRANSFERS = 3000;
+    static final int THREADS = 64;
+
+    @Container
+    @ServiceConnection(type = RedisConnectionDetails.class)
+    static RedisContainer redisContainer = new RedisContainer(DockerImageName.parse("redis:6.2.6"));
+
+    @Autowired
+    private RedisService redisService;
+
+    @Autowired
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private TreasureWriteBuffer writeBuffer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    @SuppressWarnings("rawtypes")
+    private RedisScript<List> transferScript;
+
+    @BeforeAll
+    void setUpAll() {
+        assertThat(redisContainer.isCreated()).isTrue();
+        assertThat(redisContainer.isRunning()).isTrue();
+    }
+
+    @BeforeEach
+    void setUpEach() {
+        redisTemplate.delete(List.of(THIEVES_TREASURE, ALIBABA_TREASURE));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Merged transfers never overdraw and each caller sees a consistent balance")
+    void mergedTransfers() throws Exception {
+        AtomicInteger succeeded = new AtomicInteger();
+        List<TransferResult> results = new CopyOnWriteArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(TRANSFERS);
+            for (int i = 0; i < TRANSFERS; i++) {
+                futures.add(executor.submit(() -> {
+                    TransferResult result = redisService.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 1, 60);
+                    results.add(result);
+                    if (result.transferred()) {
+                        succeeded.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(INITIAL_TREASURE, succeeded.get());
+        assertEquals("0", redisTemplate.opsForValue().get(THIEVES_TREASURE));
+        assertEquals(Integer.toString(INITIAL_TREASURE), redisTemplate.opsForValue().get(ALIBABA_TREASURE));
+        // Every successful caller saw a distinct point of the sequence of balances
+        assertThat(results.stream().filter(TransferResult::transferred).map(TransferResult::toAmount).distinct().count())
+                .isEqualTo(INITIAL_TREASURE);
+        results.forEach(result -> assertEquals(INITIAL_TREASURE, result.fromAmount() + result.toAmount()));
+
+        DistributionSummary batches = meterRegistry.get("cave.redis.write-behind.batch").summary();
+        assertThat(batches.mean()).isGreaterThan(1);
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("An initialization is in Redis once it is acknowledged")
+    void initializationIsFlushedBeforeAcknowledge() {
+        // RedisService.initializeInRedis is @Async, so go straight to the buffer to observe the acknowledgement
+        for (int i = 0; i < 100; i++) {
+            redisTemplate.delete(THIEVES_TREASURE);
+            writeBuffer.initialize(THIEVES_TREASURE, i, 60);
+            assertEquals(Integer.toString(i), redisTemplate.opsForValue().get(THIEVES_TREASURE));
+        }
+        // SET NX leaves an existing balance alone
+        writeBuffer.initialize(THIEVES_TREASURE, 1000, 60);
+        assertEquals("99", redisTemplate.opsForValue().get(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A caller whose flush stalls gets a 503 after ack-timeout, and a closed buffer refuses writes")
+    void stalledFlushTimesOut() throws Exception {
+        TreasureWriteBuffer stalled = new TreasureWriteBuffer(redisTemplate, transferScript, 16, 16, Duration.ZERO,
+                true, Duration.ofMillis(200), new SimpleMeterRegistry());
+        stalled.start();
+        try {
+            redisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.execute("CLIENT", bytes("PAUSE"), bytes("1500")));
+
+            long started = System.nanoTime();
+            ResponseStatusException e = assertThrows(ResponseStatusException.class, () ->
+                    stalled.transfer(THIEVES_TREASURE, INITIAL_TREASURE, ALIBABA_TREASURE, 0, 1, 60));
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+            assertThat(Duration.ofNanos(System.nanoTime() - started)).isLessThan(Duration.ofMillis(1500));
+        } finally {
+            stalled.close();
+        }
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () ->
+                stalled.initialize(THIEVES_TREASURE, INITIAL_TREASURE, 60));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
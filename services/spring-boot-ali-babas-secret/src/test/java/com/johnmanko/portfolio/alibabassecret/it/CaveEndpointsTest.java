@@ -2,16 +2,17 @@ package com.johnmanko.portfolio.alibabassecret.it;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TransferResult;
 import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
-import com.johnmanko.portfolio.alibabassecret.services.RedisService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureStore;
 import org.junit.jupiter.api.*;
-import org.mockito.InjectMocks;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.http.MediaType;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
@@ -20,6 +21,7 @@ import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +55,7 @@ public class CaveEndpointsTest {
     static final String ALIBABA_TREASURE = "alibaba-treasure";
     static final String TAKE_TREASURE = "take-treasure";
     static final String AUTHORITIES = "authorities";
+    static final String TREASURES = "treasures";
     static final int TAKE_AMOUNT = 20;
 
     @MockitoBean
@@ -64,15 +67,15 @@ public class CaveEndpointsTest {
     @MockitoBean
     private RedisTemplate<String, String> redisTemplate;
 
-    @InjectMocks
-    private RedisService redisService;
-
     @Autowired
     private MockMvc mvc;
 
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private TreasureStore store;
+
     private HashMap<String, String> treasures = new HashMap<>();
 
     private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
@@ -110,6 +113,25 @@ public class CaveEndpointsTest {
             return treasures.get(key);
         }).when(valueOperations).get(anyString());
 
+        doAnswer(invocation -> {
+            Collection<String> keys = invocation.getArgument(0);
+            return keys.stream().map(treasures::get).toList();
+        }).when(valueOperations).multiGet(anyCollection());
+
+        // Simulates the atomic transfer script against the local HashMap
+        doAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            int amount = Integer.parseInt(invocation.getArgument(2));
+            int from = Integer.parseInt(treasures.getOrDefault(keys.get(0), invocation.getArgument(3)));
+            int to = Integer.parseInt(treasures.getOrDefault(keys.get(1), invocation.getArgument(4)));
+            if (from < amount) {
+                return List.of(0L, (long) from, (long) to);
+            }
+            treasures.put(keys.get(0), Integer.toString(from - amount));
+            treasures.put(keys.get(1), Integer.toString(to + amount));
+            return List.of(1L, (long) (from - amount), (long) (to + amount));
+        }).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+
     }
 
     /**
@@ -247,6 +269,73 @@ public class CaveEndpointsTest {
 
     }
 
+    @Test
+    @Order(8)
+    @DisplayName("GET /api/cave/" + TREASURES + " (Authorized)")
+    void getTreasuresAuthorized() throws Exception {
+
+        treasures.put(THIEVES_TREASURE, "900");
+
+        MvcResult mvcResult = mvc.perform(
+                        get("/api/cave/" + TREASURES)
+                                .param("owners", THIEVES_TREASURE + "," + ALIBABA_TREASURE)
+                                .accept(MediaType.APPLICATION_JSON)
+                                .with(jwt))
+                .andDo(print())
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String jsonResponse = mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        Map<String, Integer> result = objectMapper.readValue(jsonResponse, new TypeReference<>() {});
+        assertEquals(2, result.size());
+        assertEquals(900, result.get(THIEVES_TREASURE));
+        assertEquals(0, result.get(ALIBABA_TREASURE));
+        // One MGET for both, and one re-read of the missing alibaba-treasure before it is initialized
+        verify(valueOperations, times(1)).multiGet(List.of(THIEVES_TREASURE, ALIBABA_TREASURE));
+        verify(valueOperations, times(1)).multiGet(List.of(ALIBABA_TREASURE));
+    }
+
+    @Test
+    @Order(9)
+    @DisplayName("GET /api/cave/" + TREASURES + " (Forbidden)")
+    void getTreasuresForbidden() throws Exception {
+        mvc.perform(get("/api/cave/" + TREASURES)
+                        .param("owners", THIEVES_TREASURE + "," + ALIBABA_TREASURE)
+                        .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_treasure-hunter"))))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @Order(10)
+    @DisplayName("GET /api/cave/" + TREASURES + " (Unknown owner)")
+    void getTreasuresUnknownOwner() throws Exception {
+        mvc.perform(get("/api/cave/" + TREASURES)
+                        .param("owners", "forty-thieves")
+                        .with(jwt))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(11)
+    @DisplayName("Compare-and-set transfer without versioning")
+    void transferIfVersionUnversioned() {
+        // Balances without versions are at version 0, any other expected version is a conflict
+        TransferResult conflict = store.transferIfVersion(THIEVES_TREASURE, 1000, ALIBABA_TREASURE, 0, TAKE_AMOUNT, 60, 7);
+        assertTrue(conflict.conflict());
+        assertFalse(conflict.transferred());
+        assertTrue(treasures.isEmpty());
+
+        TransferResult applied = store.transferIfVersion(THIEVES_TREASURE, 1000, ALIBABA_TREASURE, 0, TAKE_AMOUNT, 60, 0);
+        assertTrue(applied.transferred());
+        assertEquals(1000 - TAKE_AMOUNT, applied.fromAmount());
+        assertEquals(TAKE_AMOUNT, applied.toAmount());
+    }
+
     private Map<String, Integer> postTakeTreasure() throws Exception {
 
         TreasureModel mt = new TreasureModel(ALIBABA_TREASURE, TAKE_AMOUNT);
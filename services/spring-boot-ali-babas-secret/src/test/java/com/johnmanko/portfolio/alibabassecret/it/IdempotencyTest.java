@@ -0,0 +1,254 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultMatcher;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Retries of POST /api/cave/take-treasure with an Idempotency-Key must not move treasure twice.
+ * Redis is a map behind mocked ValueOperations, as in CaveEndpointsTest.
+ * Records are written with the varint codec; records left in decimal by earlier versions must still replay.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.idempotency.enabled=true",
+        "app.config.server.cave.codec.idempotency=varint"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing Idempotency-Key on '/api/cave/take-treasure'")
+public class IdempotencyTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    static final String IDEMPOTENCY_PREFIX = "idempotency:";
+    static final int TAKE_AMOUNT = 20;
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @MockitoBean
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, byte[]> binaryValueOperations = mock(ValueOperations.class);
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Map<String, String> redis = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> records = new ConcurrentHashMap<>();
+    private int transfers;
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure")
+    );
+
+    @BeforeEach
+    void setUp() {
+        redis.clear();
+        records.clear();
+        transfers = 0;
+
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+        doReturn(binaryValueOperations).when(binaryRedisTemplate).opsForValue();
+
+        doAnswer(invocation -> redis.get(invocation.<String>getArgument(0)))
+                .when(valueOperations).get(anyString());
+
+        doAnswer(invocation -> records.get(invocation.<String>getArgument(0)))
+                .when(binaryValueOperations).get(anyString());
+
+        doAnswer(invocation -> records.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null)
+                .when(binaryValueOperations).setIfAbsent(anyString(), any(byte[].class), any(Duration.class));
+
+        doAnswer(invocation -> records.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(binaryValueOperations).set(anyString(), any(byte[].class), any(Duration.class));
+
+        doAnswer(invocation -> records.remove(invocation.<String>getArgument(0)) != null)
+                .when(binaryRedisTemplate).delete(anyString());
+
+        // The atomic transfer script against the local map
+        doAnswer(invocation -> {
+            transfers++;
+            List<String> keys = invocation.getArgument(1);
+            int amount = Integer.parseInt(invocation.getArgument(2));
+            int from = Integer.parseInt(redis.getOrDefault(keys.get(0), invocation.getArgument(3)));
+            int to = Integer.parseInt(redis.getOrDefault(keys.get(1), invocation.getArgument(4)));
+            if (from < amount) {
+                return List.of(0L, (long) from, (long) to);
+            }
+            redis.put(keys.get(0), Integer.toString(from - amount));
+            redis.put(keys.get(1), Integer.toString(to + amount));
+            return List.of(1L, (long) (from - amount), (long) (to + amount));
+        }).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("A retry with the same key gets the first result and moves no treasure")
+    void retryIsReplayed() throws Exception {
+        Map<String, Integer> first = takeTreasure("retry-1", TAKE_AMOUNT, status().isOk());
+        Map<String, Integer> retry = takeTreasure("retry-1", TAKE_AMOUNT, status().isOk());
+
+        assertEquals(first, retry);
+        assertEquals(1, transfers);
+        assertEquals(TAKE_AMOUNT, first.get(ALIBABA_TREASURE));
+        assertEquals(1000 - TAKE_AMOUNT, first.get(THIEVES_TREASURE));
+        assertEquals(Integer.toString(TAKE_AMOUNT), redis.get(ALIBABA_TREASURE));
+        // varint: tag byte, then amount, alibaba and thieves
+        assertArrayEquals(new byte[]{1, 40, 40, (byte) 0xA8, 0x0F}, records.get(record("test-user", "retry-1")));
+        // The claim only outlives a crashed request by the pending TTL, the result is kept for the full TTL
+        verify(binaryValueOperations).setIfAbsent(eq(record("test-user", "retry-1")), any(byte[].class),
+                eq(Duration.ofSeconds(30)));
+        verify(binaryValueOperations).set(eq(record("test-user", "retry-1")), any(byte[].class),
+                eq(Duration.ofHours(24)));
+
+        // A new key is a new request
+        Map<String, Integer> next = takeTreasure("retry-2", TAKE_AMOUNT, status().isOk());
+        assertEquals(2, transfers);
+        assertEquals(TAKE_AMOUNT * 2, next.get(ALIBABA_TREASURE));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("Reusing a key for a different amount is rejected")
+    void differentAmountIsRejected() throws Exception {
+        takeTreasure("amount-1", TAKE_AMOUNT, status().isOk());
+        takeTreasure("amount-1", TAKE_AMOUNT + 1, status().isUnprocessableEntity());
+
+        assertEquals(1, transfers);
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A retry while the first request is still running gets 409")
+    void inFlightIsConflict() throws Exception {
+        // Another instance claimed the key and hasn't stored its result yet
+        records.put(record("test-user", "in-flight-1"), Integer.toString(TAKE_AMOUNT).getBytes(StandardCharsets.US_ASCII));
+
+        takeTreasure("in-flight-1", TAKE_AMOUNT, status().isConflict());
+        assertEquals(0, transfers);
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("A failed request releases its key")
+    void failureReleasesKey() throws Exception {
+        redis.put(THIEVES_TREASURE, Integer.toString(TAKE_AMOUNT - 1));
+
+        MvcResult mvcResult = mvc.perform(takeTreasureRequest("failed-1", TAKE_AMOUNT))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        assertThrows(Exception.class, () -> mvc.perform(asyncDispatch(mvcResult)));
+        assertTrue(records.isEmpty());
+
+        redis.put(THIEVES_TREASURE, Integer.toString(TAKE_AMOUNT));
+        Map<String, Integer> retry = takeTreasure("failed-1", TAKE_AMOUNT, status().isOk());
+        assertEquals(0, retry.get(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("A record left in decimal by an earlier version is still replayed")
+    void decimalRecordIsReplayed() throws Exception {
+        records.put(record("test-user", "decimal-1"),
+                ("" + TAKE_AMOUNT + ":" + TAKE_AMOUNT + ":" + (1000 - TAKE_AMOUNT)).getBytes(StandardCharsets.US_ASCII));
+
+        Map<String, Integer> replay = takeTreasure("decimal-1", TAKE_AMOUNT, status().isOk());
+        assertEquals(TAKE_AMOUNT, replay.get(ALIBABA_TREASURE));
+        assertEquals(1000 - TAKE_AMOUNT, replay.get(THIEVES_TREASURE));
+        assertEquals(0, transfers);
+    }
+
+    private Map<String, Integer> takeTreasure(String idempotencyKey, int amount, ResultMatcher expectedStatus)
+            throws Exception {
+        MvcResult mvcResult = mvc.perform(takeTreasureRequest(idempotencyKey, amount))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String jsonResponse = mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(expectedStatus)
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        if (jsonResponse.isEmpty()) {
+            return Map.of();
+        }
+        return objectMapper.readValue(jsonResponse, new TypeReference<>() {});
+    }
+
+    private RequestBuilder takeTreasureRequest(String idempotencyKey, int amount)
+            throws Exception {
+        return post("/api/cave/take-treasure")
+                .header(IDEMPOTENCY_KEY, idempotencyKey)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, amount)))
+                .accept(MediaType.APPLICATION_JSON)
+                .with(jwt);
+    }
+
+    // Redis key of an idempotency record: SHA-256 of the token subject and the header value
+    private static String record(String subject, String idempotencyKey) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(subject.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(idempotencyKey.getBytes(StandardCharsets.UTF_8));
+        return IDEMPOTENCY_PREFIX + HexFormat.of().formatHex(digest.digest());
+    }
+}
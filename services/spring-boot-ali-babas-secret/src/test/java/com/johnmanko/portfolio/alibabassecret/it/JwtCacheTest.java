@@ -0,0 +1,119 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Sends real bearer tokens through the resource server and checks that a repeated token is
+ * decoded once, keeps its authorities, and that an expired token is never served from the cache.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.auth.jwt-cache.enabled=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing the JWT validation cache")
+public class JwtCacheTest {
+
+    static final AtomicInteger decodes = new AtomicInteger();
+
+    @TestConfiguration
+    static class CountingDecoderConfig {
+
+        // Stands in for the issuer's JWKS: "valid-*" tokens expire in an hour, "expired-*" tokens are rejected
+        @Bean
+        JwtDecoder jwtDecoder() {
+            return token -> {
+                decodes.incrementAndGet();
+                if (token.startsWith("expired-")) {
+                    throw new BadJwtException("Jwt expired");
+                }
+                return Jwt.withTokenValue(token)
+                        .header("alg", "RS256")
+                        .subject(token)
+                        .issuedAt(Instant.now())
+                        .expiresAt(Instant.now().plusSeconds(3600))
+                        .claim("custom.jwt.namespace/roles", List.of("treasure-hunter"))
+                        .claim("permissions", List.of("see:thieves-treasure"))
+                        .build();
+            };
+        }
+    }
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        decodes.set(0);
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("A repeated token is decoded once and keeps its authorities")
+    void repeatedTokenIsDecodedOnce() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mvc.perform(get("/api/cave/authorities").header(HttpHeaders.AUTHORIZATION, "Bearer valid-1"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.name").value("valid-1"))
+                    .andExpect(jsonPath("$.authorities[0]").value("ROLE_treasure-hunter"))
+                    .andExpect(jsonPath("$.authorities[1]").value("SCOPE_see:thieves-treasure"));
+        }
+
+        assertEquals(1, decodes.get());
+        assertEquals(2.0, meterRegistry.get("cache.gets").tag("cache", "jwt").tag("result", "hit")
+                .functionCounter().count());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A different token is decoded on its own")
+    void differentTokenIsDecoded() throws Exception {
+        mvc.perform(get("/api/cave/authorities").header(HttpHeaders.AUTHORIZATION, "Bearer valid-2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("valid-2"));
+
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A rejected token is not cached")
+    void rejectedTokenIsNotCached() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            mvc.perform(get("/api/cave/authorities").header(HttpHeaders.AUTHORIZATION, "Bearer expired-1"))
+                    .andExpect(status().isUnauthorized());
+        }
+
+        assertEquals(2, decodes.get());
+    }
+}
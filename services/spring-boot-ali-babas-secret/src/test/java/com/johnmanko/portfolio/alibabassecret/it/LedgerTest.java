@@ -0,0 +1,257 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureLedger;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Ledger mode: transfers append to the ledger, missing balances are restored from the snapshot and the entries
+ * after it instead of starting over, and compaction folds old entries into the snapshot.
+ * Redis is maps behind mocked operations, the ledger scripts are played by the maps.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.ledger.enabled=true",
+        "app.config.server.cave.ledger.retention=1m",
+        "app.config.server.cave.ledger.page-size=2"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing '/api/cave/*' API with the transfer ledger")
+public class LedgerTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String TAKE_TREASURE = "take-treasure";
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TreasureLedger ledger;
+
+    @SuppressWarnings("unchecked")
+    private final HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, String, String> streamOperations = mock(StreamOperations.class);
+
+    // Balance keys are empty, as if they were lost: the snapshot folded the first entry, the second came after
+    private final Map<String, String> redis = new ConcurrentHashMap<>();
+    private final Map<Object, Object> snapshot = new ConcurrentHashMap<>(Map.of(
+            "id", "1000-0", THIEVES_TREASURE, "900", ALIBABA_TREASURE, "100"));
+    private final List<MapRecord<String, String, String>> stream = new CopyOnWriteArrayList<>(List.of(
+            entry("1000-0", 900, 100),
+            entry("2000-0", 850, 150)));
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+        doReturn(hashOperations).when(redisTemplate).opsForHash();
+        doReturn(streamOperations).when(redisTemplate).opsForStream();
+        doAnswer(invocation -> redis.get(invocation.<String>getArgument(0)))
+                .when(valueOperations).get(anyString());
+        doAnswer(invocation -> invocation.<List<String>>getArgument(0).stream().map(redis::get).toList())
+                .when(valueOperations).multiGet(anyList());
+        doAnswer(invocation -> new HashMap<>(snapshot)).when(hashOperations).entries(TreasureLedger.SNAPSHOT);
+        doAnswer(invocation -> xrange(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(streamOperations).range(eq(TreasureLedger.STREAM), any(Range.class), any(Limit.class));
+        doAnswer(invocation -> runScript(invocation.getArgument(1),
+                Arrays.copyOfRange(invocation.getArguments(), 2, invocation.getArguments().length)))
+                .when(redisTemplate).execute(any(RedisScript.class), anyList(), any(Object[].class));
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (restored from the ledger)")
+    void restoreFromLedger() throws Exception {
+        String json = perform(get("/api/cave/" + THIEVES_TREASURE).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        // Not the initial 1000: the last entry after the snapshot
+        assertEquals(850, objectMapper.readValue(json, TreasureModel.class).amount());
+        assertEquals(Map.of(THIEVES_TREASURE, "850", ALIBABA_TREASURE, "150"), redis);
+        assertEquals(1, meterRegistry.get("cave.ledger.replayed").counter().count());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " (appends to the ledger)")
+    void transferAppends() throws Exception {
+        perform(post("/api/cave/" + TAKE_TREASURE)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, 50))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$." + THIEVES_TREASURE).value(800))
+                .andExpect(jsonPath("$." + ALIBABA_TREASURE).value(200));
+
+        assertEquals(3, stream.size());
+        assertEquals(Map.of("from", THIEVES_TREASURE, "to", ALIBABA_TREASURE, "amount", "50",
+                THIEVES_TREASURE, "800", ALIBABA_TREASURE, "200"), stream.get(2).getValue());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Compaction folds entries older than the retention into the snapshot")
+    void compaction() throws Exception {
+        // Only 2000-0 is older than a minute, the transfer just appended stays
+        assertEquals(1, ledger.compact());
+        assertEquals(Map.of("id", "2000-0", THIEVES_TREASURE, "850", ALIBABA_TREASURE, "150"), snapshot);
+        assertEquals(List.of("2000-0", stream.get(1).getId().getValue()),
+                stream.stream().map(entry -> entry.getId().getValue()).toList());
+        assertEquals(0, ledger.compact());
+
+        redis.clear();
+        perform(get("/api/cave/" + ALIBABA_TREASURE).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.amount").value(200));
+    }
+
+    private Object runScript(List<String> keys, Object[] args) {
+        if (keys.get(0).equals(TreasureLedger.STREAM)) {
+            // ledger-restore.lua
+            String last = stream.isEmpty() ? (String) snapshot.getOrDefault("id", "0-0")
+                    : stream.get(stream.size() - 1).getId().getValue();
+            if (!args[0].equals(snapshot.getOrDefault("id", "0-0")) || !args[1].equals(last)) {
+                return 0L;
+            }
+            for (int i = 2; i < keys.size(); i++) {
+                redis.putIfAbsent(keys.get(i), (String) args[i]);
+            }
+            return 1L;
+        }
+        if (keys.get(0).equals(TreasureLedger.SNAPSHOT)) {
+            // ledger-compact.lua
+            if (!args[0].equals(snapshot.getOrDefault("id", "0-0"))) {
+                return -1L;
+            }
+            snapshot.put("id", args[1]);
+            for (int i = 2; i < args.length; i += 2) {
+                snapshot.put(args[i], args[i + 1]);
+            }
+            long before = stream.size();
+            stream.removeIf(entry -> compare(entry.getId().getValue(), (String) args[1]) < 0);
+            return before - stream.size();
+        }
+        // ledger-transfer.lua
+        long amount = Long.parseLong((String) args[0]);
+        long source = Long.parseLong(redis.get(keys.get(0)));
+        long destination = Long.parseLong(redis.get(keys.get(1)));
+        if (source < amount) {
+            return List.of(0L, source, destination);
+        }
+        redis.put(keys.get(0), Long.toString(source - amount));
+        redis.put(keys.get(1), Long.toString(destination + amount));
+        stream.add(StreamRecords.newRecord().in(TreasureLedger.STREAM)
+                .withId(RecordId.of(System.currentTimeMillis() + "-0"))
+                .ofMap(Map.of("from", keys.get(0), "to", keys.get(1), "amount", (String) args[0],
+                        keys.get(0), Long.toString(source - amount), keys.get(1), Long.toString(destination + amount))));
+        return List.of(1L, source - amount, destination + amount);
+    }
+
+    private List<MapRecord<String, String, String>> xrange(Range<String> range, Limit limit) {
+        return stream.stream()
+                .filter(entry -> range.getLowerBound().getValue()
+                        .map(lower -> compare(entry.getId().getValue(), lower) > 0).orElse(true))
+                .filter(entry -> range.getUpperBound().getValue()
+                        .map(upper -> compare(entry.getId().getValue(), upper) <= 0).orElse(true))
+                .limit(limit.getCount())
+                .toList();
+    }
+
+    // Entry ids, an id without sequence ("2000") standing for the last entry of that millisecond
+    private static int compare(String id, String other) {
+        return Comparator.<long[]>comparingLong(parts -> parts[0]).thenComparingLong(parts -> parts[1])
+                .compare(parse(id), parse(other));
+    }
+
+    private static long[] parse(String id) {
+        int dash = id.indexOf('-');
+        return dash < 0 ? new long[]{Long.parseLong(id), Long.MAX_VALUE}
+                : new long[]{Long.parseLong(id.substring(0, dash)), Long.parseLong(id.substring(dash + 1))};
+    }
+
+    private static MapRecord<String, String, String> entry(String id, long thieves, long alibaba) {
+        return StreamRecords.newRecord().in(TreasureLedger.STREAM).withId(RecordId.of(id))
+                .ofMap(Map.of("from", THIEVES_TREASURE, "to", ALIBABA_TREASURE, "amount", "50",
+                        THIEVES_TREASURE, Long.toString(thieves), ALIBABA_TREASURE, Long.toString(alibaba)));
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult mvcResult = mvc.perform(request.with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(mvcResult));
+    }
+}
@@ -0,0 +1,165 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.johnmanko.portfolio.alibabassecret.services.LocalJwksKeySource;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.PathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Verifies real RS256 tokens in offline mode against a local stand-in issuer, whose public key
+ * is the only entry of the JWKS snapshot. Nothing is fetched over the network.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.auth.jwks.enabled=true",
+        "app.config.server.auth.jwks.offline=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing token verification against a local JWKS snapshot")
+public class LocalJwksTest {
+
+    static final String ISSUER = "https://localhost/";
+    static final RSAKey ISSUER_KEY = generateKey("stand-in-issuer");
+    static final RSAKey UNKNOWN_KEY = generateKey("unknown");
+
+    @DynamicPropertySource
+    static void jwksSnapshot(DynamicPropertyRegistry registry) throws IOException {
+        Path snapshot = Files.createTempFile("jwks", ".json");
+        snapshot.toFile().deleteOnExit();
+        Files.writeString(snapshot, new JWKSet(ISSUER_KEY.toPublicJWK()).toString());
+        registry.add("app.config.server.auth.jwks.snapshot", () -> snapshot.toUri().toString());
+    }
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Test
+    @Order(1)
+    @DisplayName("A token signed by the snapshot key is accepted")
+    void acceptsSnapshotKey() throws Exception {
+        mvc.perform(get("/api/cave/authorities")
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + sign(ISSUER_KEY, ISSUER)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("auth0|stand-in"))
+                .andExpect(jsonPath("$.authorities[0]").value("ROLE_treasure-hunter"));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A token signed by an unknown key is rejected without waiting on the network")
+    void rejectsUnknownKey() throws Exception {
+        mvc.perform(get("/api/cave/authorities")
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + sign(UNKNOWN_KEY, ISSUER)))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("A token from another issuer is rejected")
+    void rejectsOtherIssuer() throws Exception {
+        mvc.perform(get("/api/cave/authorities")
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + sign(ISSUER_KEY, "https://elsewhere/")))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("A key rotated right after startup triggers an early refresh")
+    void unknownKeyRefreshesRightAfterStart() throws Exception {
+        RSAKey rotated = generateKey("rotated");
+        byte[] jwks = new JWKSet(List.of(ISSUER_KEY.toPublicJWK(), rotated.toPublicJWK())).toString()
+                .getBytes(StandardCharsets.UTF_8);
+        HttpServer issuer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        issuer.createContext("/.well-known/jwks.json", exchange -> {
+            exchange.sendResponseHeaders(200, jwks.length);
+            exchange.getResponseBody().write(jwks);
+            exchange.close();
+        });
+        issuer.start();
+
+        Path snapshot = Files.createTempFile("jwks", ".json");
+        Files.writeString(snapshot, new JWKSet(ISSUER_KEY.toPublicJWK()).toString());
+        URI jwksUri = URI.create("http://localhost:" + issuer.getAddress().getPort() + "/.well-known/jwks.json");
+        // The periodic refresh is an hour away, only the unknown "kid" can bring the rotated key in
+        LocalJwksKeySource keySource = new LocalJwksKeySource(new PathResource(snapshot), jwksUri.toURL(),
+                Duration.ofHours(1), Duration.ofMinutes(1));
+        try {
+            keySource.start();
+            JWKSelector selector = new JWKSelector(new JWKMatcher.Builder().keyID(rotated.getKeyID()).build());
+            assertTrue(keySource.get(selector, null).isEmpty());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (keySource.get(selector, null).isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, keySource.get(selector, null).size());
+        } finally {
+            keySource.close();
+            issuer.stop(0);
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    private static String sign(RSAKey key, String issuer) throws JOSEException {
+        SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+                new JWTClaimsSet.Builder()
+                        .issuer(issuer)
+                        .subject("auth0|stand-in")
+                        .issueTime(new Date())
+                        .expirationTime(Date.from(Instant.now().plus(Duration.ofMinutes(5))))
+                        .claim("custom.jwt.namespace/roles", List.of("treasure-hunter"))
+                        .build());
+        jwt.sign(new RSASSASigner(key));
+        return jwt.serialize();
+    }
+
+    private static RSAKey generateKey(String keyId) {
+        try {
+            return new RSAKeyGenerator(2048).keyID(keyId).generate();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
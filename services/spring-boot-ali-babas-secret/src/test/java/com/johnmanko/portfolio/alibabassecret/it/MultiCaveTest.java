@@ -0,0 +1,226 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveHashStore;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Multi-cave endpoints: owners are fields of bucket hashes, and take-treasure moves treasure between two of them.
+ * Redis is a map of hashes behind mocked HashOperations, cave-transfer.lua is played by the map.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.multi-cave.enabled=true",
+        "app.config.server.cave.multi-cave.buckets=16"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing '/api/cave/{caveId}/treasure/*' API")
+public class MultiCaveTest {
+
+    static final String CAVE = "sesame";
+    static final String CASSIM = "cassim";
+    static final String MORGIANA = "morgiana";
+    static final int BUCKETS = 16;
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @SuppressWarnings("unchecked")
+    private final HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+
+    private final Map<String, Map<Object, Object>> redis = new ConcurrentHashMap<>();
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor morgiana = jwt().jwt(jwt -> {
+        jwt.subject(MORGIANA);
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor admin = jwt().jwt(jwt -> {
+        jwt.subject("test-admin");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_admin:treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    void setUp() {
+        doReturn(hashOperations).when(redisTemplate).opsForHash();
+        doAnswer(invocation -> redis.getOrDefault(invocation.<String>getArgument(0), Map.of())
+                .get(invocation.getArgument(1)))
+                .when(hashOperations).get(anyString(), any());
+        doAnswer(invocation -> redis.computeIfAbsent(invocation.getArgument(0), key -> new ConcurrentHashMap<>())
+                .put(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(hashOperations).put(anyString(), any(), any());
+
+        // cave-transfer.lua
+        doAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            String from = invocation.getArgument(2);
+            String to = invocation.getArgument(3);
+            long amount = Long.parseLong(invocation.getArgument(4));
+            Map<Object, Object> source = redis.computeIfAbsent(keys.get(0), key -> new ConcurrentHashMap<>());
+            Map<Object, Object> destination = redis.computeIfAbsent(keys.get(1), key -> new ConcurrentHashMap<>());
+            long fromAmount = Long.parseLong((String) source.getOrDefault(from, "0"));
+            long toAmount = Long.parseLong((String) destination.getOrDefault(to, "0"));
+            if (fromAmount < amount) {
+                return List.of(0L, fromAmount, toAmount);
+            }
+            source.put(from, Long.toString(fromAmount - amount));
+            destination.put(to, Long.toString(toAmount + amount));
+            return List.of(1L, fromAmount - amount, toAmount + amount);
+        }).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + CAVE + "/treasure/" + CASSIM + " (Not found)")
+    void unknownOwner() throws Exception {
+        perform(get("/api/cave/" + CAVE + "/treasure/" + CASSIM).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("PUT /api/cave/" + CAVE + "/treasure/" + CASSIM)
+    void putTreasure() throws Exception {
+        // Setting a balance isn't a take, the take scope isn't enough
+        mvc.perform(put("/api/cave/" + CAVE + "/treasure/" + CASSIM)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new TreasureModel(CASSIM, 1000)))
+                        .with(jwt))
+                .andExpect(status().isForbidden());
+        assertEquals(Map.of(), redis);
+
+        perform(put("/api/cave/" + CAVE + "/treasure/" + CASSIM)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(CASSIM, 1000))), admin)
+                .andExpect(status().isOk());
+
+        // A field of the owner's bucket hash, not a key of its own
+        String bucket = CaveHashStore.bucketKey(CAVE, CASSIM, BUCKETS);
+        assertTrue(bucket.matches("cave:\\{" + CAVE + "}:([0-9]|1[0-5])"), bucket);
+        assertEquals(Map.of(bucket, Map.of(CASSIM, "1000")), redis);
+
+        String json = perform(get("/api/cave/" + CAVE + "/treasure/" + CASSIM).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        assertEquals(new TreasureModel(CASSIM, 1000), objectMapper.readValue(json, TreasureModel.class));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("POST /api/cave/" + CAVE + "/treasure/" + CASSIM + "/take-treasure")
+    void takeTreasure() throws Exception {
+        // The take scope only takes for the caller
+        mvc.perform(post("/api/cave/" + CAVE + "/treasure/" + CASSIM + "/take-treasure")
+                        .with(jwt)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new TreasureModel(MORGIANA, 40))))
+                .andExpect(status().isForbidden());
+        assertEquals("1000", redis.get(CaveHashStore.bucketKey(CAVE, CASSIM, BUCKETS)).get(CASSIM));
+
+        perform(post("/api/cave/" + CAVE + "/treasure/" + CASSIM + "/take-treasure")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(MORGIANA, 40))), morgiana)
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$." + CASSIM).value(960))
+                .andExpect(jsonPath("$." + MORGIANA).value(40));
+
+        // The admin scope moves treasure between any owners
+        perform(post("/api/cave/" + CAVE + "/treasure/" + MORGIANA + "/take-treasure")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(CASSIM, 41))), admin)
+                .andExpect(status().isBadRequest());
+        perform(post("/api/cave/" + CAVE + "/treasure/" + MORGIANA + "/take-treasure")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(CASSIM, 10))), admin)
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$." + CASSIM).value(970))
+                .andExpect(jsonPath("$." + MORGIANA).value(30));
+        assertEquals("30", redis.get(CaveHashStore.bucketKey(CAVE, MORGIANA, BUCKETS)).get(MORGIANA));
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("Invalid cave and owner names")
+    void invalidNames() throws Exception {
+        mvc.perform(get("/api/cave/" + CAVE + "/treasure/" + "x".repeat(65)).with(jwt))
+                .andExpect(status().isBadRequest());
+        mvc.perform(get("/api/cave/{caveId}/treasure/" + CASSIM, "open{sesame}").with(jwt))
+                .andExpect(status().isBadRequest());
+        mvc.perform(post("/api/cave/" + CAVE + "/treasure/" + CASSIM + "/take-treasure")
+                        .with(jwt)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new TreasureModel(CASSIM, 1))))
+                .andExpect(status().isBadRequest());
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder request) throws Exception {
+        return perform(request, jwt);
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder request,
+                                  SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor token) throws Exception {
+        MvcResult mvcResult = mvc.perform(request.with(token))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(mvcResult));
+    }
+}
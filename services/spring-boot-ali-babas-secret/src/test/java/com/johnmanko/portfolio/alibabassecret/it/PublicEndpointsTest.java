@@ -4,20 +4,28 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.johnmanko.portfolio.alibabassecret.models.AppConfigModel;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @AutoConfigureMockMvc
+@AutoConfigureObservability(tracing = false)
 @TestPropertySource(properties = {
         "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
         "app.config.client.auth.auth0.domain=test.us.auth0.com",
@@ -56,4 +64,52 @@ public class PublicEndpointsTest {
         assertEquals("test.us.auth0.com", config.authAuth0Domain());
     }
 
+    @Test
+    @Order(2)
+    @DisplayName("GET /public/config.json (If-None-Match)")
+    void getConfigJSONNotModified() throws Exception {
+        MockHttpServletResponse response = mockMvc.perform(get("/public/config.json")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=60, public"))
+                // Two short fields don't get smaller gzipped
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andReturn()
+                .getResponse();
+        String etag = response.getHeader(HttpHeaders.ETAG);
+        assertThat(etag).matches("\"[0-9a-f]{32}\"");
+
+        mockMvc.perform(get("/public/config.json").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(content().bytes(new byte[0]));
+
+        mockMvc.perform(get("/public/config.json").header(HttpHeaders.IF_NONE_MATCH, "\"stale\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, etag));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("GET /actuator/prometheus")
+    void getPrometheusMetrics() throws Exception {
+        mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/actuator/prometheus").with(jwt()))
+                .andExpect(status().isForbidden());
+
+        String metrics = mockMvc.perform(get("/actuator/prometheus")
+                        .with(jwt().authorities(new SimpleGrantedAuthority("SCOPE_read:metrics"))))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertThat(metrics)
+                .contains("executor_queued_tasks{name=\"caveExecutor\"")
+                .contains("executor_queue_wait_seconds_bucket{name=\"redisExecutor\"")
+                .contains("cave_transfer_failed_total{reason=\"insufficient\"")
+                .contains("cave_jwt_conversion_seconds_bucket");
+    }
+
 }
@@ -0,0 +1,129 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Each caller gets its own bucket per endpoint. With one request every 10 seconds and a burst of 2,
+ * the third request in a row is answered 429 before it reaches the controller.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.rate-limit.enabled=true",
+        "app.config.server.rate-limit.read.rate=0.1",
+        "app.config.server.rate-limit.read.burst=2"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing '/api/cave/*' API rate limits")
+public class RateLimitTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+        doReturn("1000").when(valueOperations).get(anyString());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Too Many Requests)")
+    void burstThenRejected() throws Exception {
+        getTreasure("hunter-1", THIEVES_TREASURE);
+        getTreasure("hunter-1", THIEVES_TREASURE);
+
+        String retryAfter = mvc.perform(get("/api/cave/" + THIEVES_TREASURE).with(hunter("hunter-1")))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(request().asyncNotStarted())
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.RETRY_AFTER);
+        assertNotNull(retryAfter);
+        assertTrue(Long.parseLong(retryAfter) >= 1 && Long.parseLong(retryAfter) <= 10, retryAfter);
+
+        assertEquals(1, meterRegistry.get("cave.rate-limit").tag("limit", "read").tag("result", "rejected")
+                .counter().count());
+        verify(valueOperations, times(2)).get(anyString());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (other caller, other endpoint)")
+    void bucketsArePerCallerAndEndpoint() throws Exception {
+        getTreasure("hunter-2", THIEVES_TREASURE);
+        getTreasure("hunter-1", ALIBABA_TREASURE);
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Unauthorized)")
+    void unauthenticatedIsNotLimited() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mvc.perform(get("/api/cave/" + THIEVES_TREASURE))
+                    .andExpect(status().isUnauthorized());
+        }
+    }
+
+    private void getTreasure(String subject, String owner) throws Exception {
+        MvcResult mvcResult = mvc.perform(get("/api/cave/" + owner)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .with(hunter(subject)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk());
+    }
+
+    private static SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor hunter(String subject) {
+        return jwt().jwt(jwt -> jwt.subject(subject)).authorities(
+                new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+                new SimpleGrantedAuthority("ROLE_treasure-hunter"));
+    }
+}
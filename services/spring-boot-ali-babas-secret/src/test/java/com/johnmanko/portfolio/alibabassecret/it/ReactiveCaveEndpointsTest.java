@@ -0,0 +1,275 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveMetrics;
+import com.johnmanko.portfolio.alibabassecret.services.IdempotencyCache;
+import com.johnmanko.portfolio.alibabassecret.services.ReactiveRedisService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.reactive.enabled=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing reactive '/api/cave/*' API")
+public class ReactiveCaveEndpointsTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String TAKE_TREASURE = "take-treasure";
+    static final int TAKE_AMOUNT = 20;
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @MockitoBean
+    ReactiveValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    @MockitoBean
+    private ReactiveRedisTemplate<String, byte[]> reactiveBinaryRedisTemplate;
+
+    @SuppressWarnings("unchecked")
+    private final ReactiveValueOperations<String, byte[]> binaryValueOperations = mock(ReactiveValueOperations.class);
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private HashMap<String, String> treasures = new HashMap<>();
+
+    private HashMap<String, byte[]> records = new HashMap<>();
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_see:thieves-treasure"),
+            new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    void setUp() {
+
+        treasures.clear();
+        records.clear();
+
+        doReturn(valueOperations).when(reactiveRedisTemplate).opsForValue();
+        doReturn(binaryValueOperations).when(reactiveBinaryRedisTemplate).opsForValue();
+
+        // Idempotency-Key records
+        doAnswer(invocation -> Mono.just(records.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null))
+                .when(binaryValueOperations).setIfAbsent(anyString(), any(byte[].class), any(Duration.class));
+        doAnswer(invocation -> Mono.justOrEmpty(records.get((String) invocation.getArgument(0))))
+                .when(binaryValueOperations).get(anyString());
+        doAnswer(invocation -> {
+            records.put(invocation.getArgument(0), invocation.getArgument(1));
+            return Mono.just(true);
+        }).when(binaryValueOperations).set(anyString(), any(byte[].class), any(Duration.class));
+        doAnswer(invocation -> Mono.just(records.remove((String) invocation.getArgument(0)) == null ? 0L : 1L))
+                .when(reactiveBinaryRedisTemplate).delete(anyString());
+
+        doAnswer(invocation -> Mono.just(treasures.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null))
+                .when(valueOperations).setIfAbsent(anyString(), anyString(), any(Duration.class));
+
+        doAnswer(invocation -> Mono.justOrEmpty(treasures.get((String) invocation.getArgument(0))))
+                .when(valueOperations).get(anyString());
+
+        doAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(0);
+            return Mono.just(keys.stream().map(treasures::get).toList());
+        }).when(valueOperations).multiGet(anyList());
+
+        // Simulates the atomic transfer script against the local HashMap
+        doAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            List<String> args = invocation.getArgument(2);
+            int amount = Integer.parseInt(args.get(0));
+            int from = Integer.parseInt(treasures.getOrDefault(keys.get(0), args.get(1)));
+            int to = Integer.parseInt(treasures.getOrDefault(keys.get(1), args.get(2)));
+            if (from < amount) {
+                return Flux.just(0L, (long) from, (long) to);
+            }
+            treasures.put(keys.get(0), Integer.toString(from - amount));
+            treasures.put(keys.get(1), Integer.toString(to + amount));
+            return Flux.just(1L, (long) (from - amount), (long) (to + amount));
+        }).when(reactiveRedisTemplate).execute(any(RedisScript.class), anyList(), anyList());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Unauthorized)")
+    void getThievesTreasureUnauthorized() throws Exception {
+        mvc.perform(get("/api/cave/" + THIEVES_TREASURE))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Authorized)")
+    void getThievesTreasureAuthorized() throws Exception {
+        TreasureModel treasure = objectMapper.readValue(performAsync(
+                get("/api/cave/" + THIEVES_TREASURE).accept(MediaType.APPLICATION_JSON).with(jwt)), TreasureModel.class);
+        assertEquals(THIEVES_TREASURE, treasure.owner());
+        assertEquals(1000, treasure.amount());
+        assertEquals("1000", treasures.get(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("GET /api/cave/" + ALIBABA_TREASURE + " (Authorized)")
+    void getAliBabaTreasureAuthorized() throws Exception {
+        TreasureModel treasure = objectMapper.readValue(performAsync(
+                get("/api/cave/" + ALIBABA_TREASURE).accept(MediaType.APPLICATION_JSON).with(jwt)), TreasureModel.class);
+        assertEquals(ALIBABA_TREASURE, treasure.owner());
+        assertEquals(0, treasure.amount());
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " (Authorized)")
+    void getTakeTreasureAuthorized() throws Exception {
+        TreasureModel mt = new TreasureModel(ALIBABA_TREASURE, TAKE_AMOUNT);
+        TypeReference<Map<String, Integer>> typeRef = new TypeReference<>() {};
+
+        for (int i = 1; i <= 2; i++) {
+            Map<String, Integer> result = objectMapper.readValue(performAsync(
+                    post("/api/cave/" + TAKE_TREASURE)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(mt))
+                            .accept(MediaType.APPLICATION_JSON)
+                            .with(jwt)), typeRef);
+            assertEquals(2, result.size());
+            assertEquals(TAKE_AMOUNT * i, result.get(ALIBABA_TREASURE));
+            assertEquals(1000 - (TAKE_AMOUNT * i), result.get(THIEVES_TREASURE));
+        }
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("GET /api/cave/treasures (Authorized)")
+    void getTreasuresAuthorized() throws Exception {
+        treasures.put(THIEVES_TREASURE, "900");
+        Map<String, Integer> result = objectMapper.readValue(performAsync(
+                get("/api/cave/treasures")
+                        .param("owners", THIEVES_TREASURE + "," + ALIBABA_TREASURE)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .with(jwt)), new TypeReference<>() {});
+        assertEquals(2, result.size());
+        assertEquals(900, result.get(THIEVES_TREASURE));
+        assertEquals(0, result.get(ALIBABA_TREASURE));
+    }
+
+    @Test
+    @Order(6)
+    @DisplayName("Modes the reactive path doesn't implement refuse to start")
+    void unsupportedModes() {
+        CaveMetrics metrics = new CaveMetrics(new SimpleMeterRegistry());
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> new ReactiveRedisService(
+                reactiveRedisTemplate, RedisScript.of("return 0", List.class), metrics,
+                true, false, false, true, false));
+        assertTrue(e.getMessage().contains("versioning, near-cache"), e.getMessage());
+    }
+
+    @Test
+    @Order(7)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " with an Idempotency-Key takes once")
+    void takeTreasureOnce() throws Exception {
+        TreasureModel mt = new TreasureModel(ALIBABA_TREASURE, TAKE_AMOUNT);
+        TypeReference<Map<String, Integer>> typeRef = new TypeReference<>() {};
+
+        for (int i = 1; i <= 2; i++) {
+            Map<String, Integer> result = objectMapper.readValue(performAsync(
+                    post("/api/cave/" + TAKE_TREASURE)
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(mt))
+                            .header(IdempotencyCache.HEADER, "reactive-retry")
+                            .accept(MediaType.APPLICATION_JSON)
+                            .with(jwt)), typeRef);
+            assertEquals(TAKE_AMOUNT, result.get(ALIBABA_TREASURE));
+            assertEquals(1000 - TAKE_AMOUNT, result.get(THIEVES_TREASURE));
+        }
+        assertEquals(Integer.toString(1000 - TAKE_AMOUNT), treasures.get(THIEVES_TREASURE));
+        assertEquals(1, records.size());
+        // Claimed for the pending TTL, stored for the full TTL
+        verify(binaryValueOperations).setIfAbsent(anyString(), any(byte[].class), eq(Duration.ofSeconds(30)));
+        verify(binaryValueOperations).set(anyString(), any(byte[].class), eq(Duration.ofHours(24)));
+
+        // A failed take releases its claim
+        treasures.put(THIEVES_TREASURE, "0");
+        MvcResult mvcResult = mvc.perform(post("/api/cave/" + TAKE_TREASURE)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(mt))
+                        .header(IdempotencyCache.HEADER, "reactive-empty")
+                        .accept(MediaType.APPLICATION_JSON)
+                        .with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        assertThrows(Exception.class, () -> mvc.perform(asyncDispatch(mvcResult)));
+        assertEquals(1, records.size());
+    }
+
+    private String performAsync(org.springframework.test.web.servlet.RequestBuilder request) throws Exception {
+        MvcResult mvcResult = mvc.perform(request)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        return mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+    }
+
+}
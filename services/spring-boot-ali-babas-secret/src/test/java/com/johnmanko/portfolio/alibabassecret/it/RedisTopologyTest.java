@@ -0,0 +1,110 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.johnmanko.portfolio.alibabassecret.config.NearCacheConfig;
+import com.johnmanko.portfolio.alibabassecret.config.RedisConfig;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureNearCache;
+import io.lettuce.core.ReadFrom;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Redis topologies from Spring Boot's own properties: read-from reaches the Lettuce client, and the combinations
+ * that can't work (Cluster without striping or with the reactive mode, Cluster with the near-cache) fail at startup.
+ * Connections are created lazily, so no Redis is needed.
+ */
+@DisplayName("Testing Redis topology configuration")
+public class RedisTopologyTest {
+
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(RedisAutoConfiguration.class))
+            .withUserConfiguration(RedisConfig.class)
+            .withBean(MeterRegistry.class, SimpleMeterRegistry::new);
+
+    @Test
+    @DisplayName("Reads stay on the primary by default")
+    void readFromPrimaryByDefault() {
+        contextRunner.withPropertyValues("spring.data.redis.host=primary")
+                .run(context -> {
+                    assertThat(context).hasNotFailed();
+                    assertThat(readFrom(context.getBean(LettuceConnectionFactory.class))).isEmpty();
+                });
+    }
+
+    @Test
+    @DisplayName("read-from is applied to the Lettuce client")
+    void readFromReplicaPreferred() {
+        contextRunner.withPropertyValues(
+                        "spring.data.redis.host=primary",
+                        "app.config.server.redis.read-from=replicaPreferred")
+                .run(context -> {
+                    assertThat(context).hasNotFailed();
+                    assertThat(readFrom(context.getBean(LettuceConnectionFactory.class)))
+                            .contains(ReadFrom.REPLICA_PREFERRED);
+                });
+    }
+
+    @Test
+    @DisplayName("Cluster with striping starts, with read-from applied")
+    void clusterWithStriping() {
+        contextRunner.withPropertyValues(
+                        "spring.data.redis.cluster.nodes=node-1:6379,node-2:6379",
+                        "app.config.server.cave.striping.enabled=true",
+                        "app.config.server.redis.read-from=replica")
+                .run(context -> {
+                    assertThat(context).hasNotFailed();
+                    LettuceConnectionFactory connectionFactory = context.getBean(LettuceConnectionFactory.class);
+                    assertThat(connectionFactory.isClusterAware()).isTrue();
+                    assertThat(readFrom(connectionFactory)).contains(ReadFrom.REPLICA);
+                });
+    }
+
+    @Test
+    @DisplayName("Cluster without striping is refused")
+    void clusterWithoutStripingRefused() {
+        contextRunner.withPropertyValues("spring.data.redis.cluster.nodes=node-1:6379,node-2:6379")
+                .run(context -> assertThat(context).getFailure()
+                        .rootCause()
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("app.config.server.cave.striping.enabled=true"));
+    }
+
+    @Test
+    @DisplayName("Cluster with the reactive mode is refused")
+    void clusterWithReactiveRefused() {
+        contextRunner.withPropertyValues(
+                        "spring.data.redis.cluster.nodes=node-1:6379,node-2:6379",
+                        "app.config.server.cave.striping.enabled=true",
+                        "app.config.server.cave.reactive.enabled=true")
+                .run(context -> assertThat(context).getFailure()
+                        .rootCause()
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("app.config.server.cave.reactive.enabled=false"));
+    }
+
+    @Test
+    @DisplayName("Cluster with the near-cache is refused")
+    void clusterWithNearCacheRefused() {
+        contextRunner.withUserConfiguration(TreasureNearCache.class, NearCacheConfig.class)
+                .withPropertyValues(
+                        "spring.data.redis.cluster.nodes=node-1:6379,node-2:6379",
+                        "app.config.server.cave.striping.enabled=true",
+                        "app.config.server.cave.near-cache.enabled=true")
+                .run(context -> assertThat(context).getFailure()
+                        .rootCause()
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("app.config.server.cave.near-cache.enabled=true"));
+    }
+
+    private static Optional<ReadFrom> readFrom(LettuceConnectionFactory connectionFactory) {
+        return connectionFactory.getClientConfiguration().getReadFrom();
+    }
+}
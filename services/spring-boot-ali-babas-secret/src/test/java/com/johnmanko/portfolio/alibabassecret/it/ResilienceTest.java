@@ -0,0 +1,239 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.RedisResilience;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * The cave keeps answering reads from its snapshot when Redis stalls, and stops calling Redis once the circuit opens.
+ * Redis is a map behind mocked ValueOperations. Stalled reads fail like Lettuce's command timeout does once the
+ * read timeout has passed, stalled transfers sleep far longer than theirs.
+ * Idempotency records, the shared rate limiter and multi-cave balances go through the same circuit.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.resilience.enabled=true",
+        "app.config.server.cave.resilience.timeout.get=100ms",
+        "app.config.server.cave.resilience.timeout.transfer=100ms",
+        "app.config.server.cave.resilience.circuit.window=4",
+        "app.config.server.cave.resilience.circuit.open-duration=1h",
+        "app.config.server.cave.multi-cave.enabled=true",
+        "app.config.server.rate-limit.enabled=true",
+        "app.config.server.rate-limit.mode=redis"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing '/api/cave/*' API with Redis stalled")
+public class ResilienceTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String TAKE_TREASURE = "take-treasure";
+    static final int OPEN = 2;
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @MockitoBean
+    private RedisTemplate<String, byte[]> binaryRedisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, String> treasures = new ConcurrentHashMap<>(Map.of(THIEVES_TREASURE, "980"));
+    private volatile boolean stalled;
+    private volatile Duration readCommandTimeout;
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    void setUp() {
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+
+        doAnswer(invocation -> {
+            // What Lettuce would be told for this command
+            readCommandTimeout = RedisResilience.commandTimeout();
+            if (stalled) {
+                Thread.sleep(100);
+                throw new QueryTimeoutException("Redis command timed out");
+            }
+            return treasures.get(invocation.<String>getArgument(0));
+        }).when(valueOperations).get(anyString());
+
+        doAnswer(invocation -> {
+            Thread.sleep(10_000);
+            return null;
+        }).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Redis healthy)")
+    void readWhileHealthy() throws Exception {
+        assertEquals(980, getTreasure(THIEVES_TREASURE).amount());
+        // Read on the calling thread, with the get timeout as Lettuce's command timeout
+        assertEquals(Duration.ofMillis(100), readCommandTimeout);
+        assertNull(RedisResilience.commandTimeout());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (Redis stalled, served stale)")
+    void readWhileStalled() throws Exception {
+        stalled = true;
+        treasures.put(THIEVES_TREASURE, "960");
+
+        long started = System.nanoTime();
+        assertEquals(980, getTreasure(THIEVES_TREASURE).amount());
+        assertTrue(System.nanoTime() - started < 5_000_000_000L, "Waited for the stalled call");
+
+        assertEquals(1, meterRegistry.get("cave.redis.resilience.fallback")
+                .tag("operation", "get").tag("result", "stale").counter().count());
+        assertEquals(1, meterRegistry.get("cave.redis.resilience.calls")
+                .tag("operation", "get").tag("outcome", "timeout").counter().count());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (circuit open)")
+    void circuitOpens() throws Exception {
+        for (int i = 0; i < 4 && circuitState() != OPEN; i++) {
+            getTreasure(THIEVES_TREASURE);
+        }
+        assertEquals(OPEN, circuitState());
+
+        // Answered without calling Redis
+        clearInvocations(valueOperations);
+        assertEquals(980, getTreasure(THIEVES_TREASURE).amount());
+        verify(valueOperations, never()).get(anyString());
+        assertTrue(meterRegistry.get("cave.redis.resilience.calls")
+                .tag("operation", "get").tag("outcome", "short-circuited").counter().count() >= 1);
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("GET /api/cave/" + ALIBABA_TREASURE + " (no snapshot)")
+    void readWithoutSnapshot() throws Exception {
+        perform(get("/api/cave/" + ALIBABA_TREASURE).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    @Order(5)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " (circuit open)")
+    void takeTreasureWhileOpen() throws Exception {
+        perform(post("/api/cave/" + TAKE_TREASURE)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, 20))))
+                .andExpect(status().isServiceUnavailable());
+        verify(redisTemplate, never()).execute(any(RedisScript.class), anyList(), any(), any(), any(), any());
+    }
+
+    @Test
+    @Order(6)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " with Idempotency-Key (circuit open)")
+    void idempotentTakeWhileOpen() throws Exception {
+        perform(post("/api/cave/" + TAKE_TREASURE)
+                .header("Idempotency-Key", "retry-1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, 20))))
+                .andExpect(status().isServiceUnavailable());
+        verify(binaryRedisTemplate, never()).opsForValue();
+        assertTrue(meterRegistry.get("cave.redis.resilience.calls")
+                .tag("operation", "idempotency-claim").tag("outcome", "short-circuited").counter().count() >= 1);
+    }
+
+    @Test
+    @Order(7)
+    @DisplayName("GET /api/cave/sesame/treasure/cassim (circuit open)")
+    void multiCaveReadWhileOpen() throws Exception {
+        perform(get("/api/cave/sesame/treasure/cassim").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isServiceUnavailable());
+        verify(redisTemplate, never()).opsForHash();
+    }
+
+    @Test
+    @Order(8)
+    @DisplayName("Rate limit checks are let through while the circuit is open")
+    void rateLimitWhileOpen() {
+        assertTrue(meterRegistry.get("cave.redis.resilience.calls")
+                .tag("operation", "rate-limit").tag("outcome", "short-circuited").counter().count() >= 1);
+    }
+
+    private TreasureModel getTreasure(String owner) throws Exception {
+        String json = perform(get("/api/cave/" + owner).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readValue(json, TreasureModel.class);
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult mvcResult = mvc.perform(request.with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(mvcResult));
+    }
+
+    private int circuitState() {
+        return (int) meterRegistry.get("cave.redis.resilience.circuit.state").gauge().value();
+    }
+}
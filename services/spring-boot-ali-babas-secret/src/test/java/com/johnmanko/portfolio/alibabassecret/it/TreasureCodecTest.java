@@ -0,0 +1,85 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.johnmanko.portfolio.alibabassecret.services.TreasureCodec;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.MAX_TREASURE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Every codec round-trips the edges of its encoding (0, negatives, the one/two byte varint boundary,
+ * MAX_TREASURE and the long range), and every codec reads the values written by the others.
+ */
+@DisplayName("Testing treasure value codecs")
+public class TreasureCodecTest {
+
+    static final long[] VALUES = {
+            0, 1, -1, 63, 64, -64, -65, 20, 980, MAX_TREASURE, -MAX_TREASURE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+    static final List<TreasureCodec> CODECS = List.of(TreasureCodec.DECIMAL, TreasureCodec.VARINT, TreasureCodec.FIXED64);
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"decimal", "varint", "fixed64"})
+    @DisplayName("Single values round-trip")
+    void singleValuesRoundTrip(String name) {
+        TreasureCodec codec = TreasureCodec.named(name);
+        for (long value : VALUES) {
+            assertArrayEquals(new long[]{value}, codec.decode(codec.encode(value)), name + " " + value);
+        }
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"decimal", "varint", "fixed64"})
+    @DisplayName("Several values round-trip in one value")
+    void severalValuesRoundTrip(String name) {
+        TreasureCodec codec = TreasureCodec.named(name);
+        assertArrayEquals(VALUES, codec.decode(codec.encode(VALUES)), name);
+        assertArrayEquals(new long[]{1, 980, 20}, codec.decode(codec.encode(1, 980, 20)), name);
+    }
+
+    @Test
+    @DisplayName("Each codec reads the others' values")
+    void crossFormatDecode() {
+        for (TreasureCodec writer : CODECS) {
+            byte[] encoded = writer.encode(VALUES);
+            for (TreasureCodec reader : CODECS) {
+                assertArrayEquals(VALUES, reader.decode(encoded),
+                        writer.getClass().getSimpleName() + " read by " + reader.getClass().getSimpleName());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Encodings have the documented layout")
+    void encodedLayout() {
+        assertEquals("20:980:20", new String(TreasureCodec.DECIMAL.encode(20, 980, 20), StandardCharsets.US_ASCII));
+        assertEquals("-9223372036854775808",
+                new String(TreasureCodec.DECIMAL.encode(Long.MIN_VALUE), StandardCharsets.US_ASCII));
+
+        // Tag byte, then a zigzag varint: one byte up to 63 and down to -64, ten at most
+        assertArrayEquals(new byte[]{TreasureCodec.VARINT_TAG, 0}, TreasureCodec.VARINT.encode(0));
+        assertEquals(2, TreasureCodec.VARINT.encode(63).length);
+        assertEquals(3, TreasureCodec.VARINT.encode(64).length);
+        assertEquals(2, TreasureCodec.VARINT.encode(-64).length);
+        assertEquals(3, TreasureCodec.VARINT.encode(-65).length);
+        assertEquals(11, TreasureCodec.VARINT.encode(Long.MAX_VALUE).length);
+        assertEquals(11, TreasureCodec.VARINT.encode(Long.MIN_VALUE).length);
+
+        // Tag byte, then 8 big-endian bytes per value
+        assertArrayEquals(new byte[]{TreasureCodec.FIXED64_TAG, 0, 0, 0, 0, 0, 0, 1, 0},
+                TreasureCodec.FIXED64.encode(256));
+        assertEquals(1 + 3 * Long.BYTES, TreasureCodec.FIXED64.encode(1, 2, 3).length);
+    }
+
+    @Test
+    @DisplayName("Unknown codec names are refused")
+    void unknownCodec() {
+        assertThrows(IllegalArgumentException.class, () -> TreasureCodec.named("base64"));
+    }
+}
@@ -0,0 +1,165 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import com.johnmanko.portfolio.alibabassecret.services.CaveService;
+import com.johnmanko.portfolio.alibabassecret.services.TreasureSeeder;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.johnmanko.portfolio.alibabassecret.services.CaveService.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Missing balances are created with SET NX, concurrent misses share one re-read and one initialization, and the seeder creates both
+ * balances up front. Redis is a map behind mocked ValueOperations.
+ */
+@SpringBootTest
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.seed.enabled=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing treasure initialization and seeding")
+public class TreasureSeedingTest {
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private CaveService cave;
+
+    @Autowired
+    private TreasureSeeder seeder;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, String> treasures = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        treasures.clear();
+
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+
+        doAnswer(invocation -> treasures.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null)
+                .when(valueOperations).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+
+        doAnswer(invocation -> treasures.get(invocation.<String>getArgument(0)))
+                .when(valueOperations).get(anyString());
+
+        doAnswer(invocation -> {
+            Collection<String> keys = invocation.getArgument(0);
+            return keys.stream().map(treasures::get).toList();
+        }).when(valueOperations).multiGet(anyCollection());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("Seeding creates missing balances and keeps existing ones")
+    void seedCreatesMissingBalances() {
+        treasures.put(THIEVES_TREASURE, "980");
+
+        seeder.seed();
+
+        verify(valueOperations, timeout(5000))
+                .setIfAbsent(ALIBABA_TREASURE, "0", TREASURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        verify(valueOperations, never()).setIfAbsent(eq(THIEVES_TREASURE), anyString(), anyLong(), any(TimeUnit.class));
+        assertEquals(Map.of(THIEVES_TREASURE, "980", ALIBABA_TREASURE, "0"), treasures);
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("A late initialization doesn't overwrite a transfer")
+    void initializationKeepsExistingBalance() {
+        // The read misses, then a transfer creates the key before the initialization lands
+        doAnswer(invocation -> {
+            treasures.put(THIEVES_TREASURE, "950");
+            return null;
+        }).when(valueOperations).get(THIEVES_TREASURE);
+
+        assertEquals(THIEVES_INITIAL_TREASURE, cave.getTreasure(THIEVES_TREASURE, THIEVES_INITIAL_TREASURE).amount());
+
+        verify(valueOperations, timeout(5000))
+                .setIfAbsent(THIEVES_TREASURE, "1000", TREASURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        verify(valueOperations, never()).set(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+        assertEquals("950", treasures.get(THIEVES_TREASURE));
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("Concurrent misses share one re-read and one initialization")
+    void concurrentMissesShareOneRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger gets = new AtomicInteger();
+        // Each reader's own GET misses right away, the first reader's re-read (the second GET) is held
+        doAnswer(invocation -> {
+            if (gets.incrementAndGet() == 2) {
+                reading.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        }).when(valueOperations).get(THIEVES_TREASURE);
+        double coalesced = meterRegistry.get("cave.read.coalesced").counter().count();
+
+        int readers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<TreasureModel>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cave.getTreasure(THIEVES_TREASURE, THIEVES_INITIAL_TREASURE)));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < readers; i++) {
+                results.add(executor.submit(() -> cave.getTreasure(THIEVES_TREASURE, THIEVES_INITIAL_TREASURE)));
+            }
+            // Every other reader is waiting on the first one's re-read
+            long deadline = System.currentTimeMillis() + 5000;
+            while (meterRegistry.get("cave.read.coalesced").counter().count() < coalesced + readers - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<TreasureModel> result : results) {
+                assertEquals(THIEVES_INITIAL_TREASURE, result.get(5, TimeUnit.SECONDS).amount());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // One GET per reader, plus the single shared re-read
+        verify(valueOperations, times(readers + 1)).get(THIEVES_TREASURE);
+        verify(valueOperations, timeout(5000).times(1))
+                .setIfAbsent(THIEVES_TREASURE, "1000", TREASURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(coalesced + readers - 1, meterRegistry.get("cave.read.coalesced").counter().count());
+    }
+}
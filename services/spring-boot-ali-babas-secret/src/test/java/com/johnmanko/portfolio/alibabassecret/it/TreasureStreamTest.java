@@ -0,0 +1,219 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.johnmanko.portfolio.alibabassecret.services.TreasureStream;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisServerCommands;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * /api/cave/treasure-stream sends the current balances, then one coalesced event per interval.
+ * Keyspace notifications are delivered by hand, Redis is a map behind mocked ValueOperations.
+ * Without notify-keyspace-events, the followed balances are polled every interval instead.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.stream.enabled=true",
+        "app.config.server.cave.stream.interval=100ms",
+        "app.config.server.cave.stream.heartbeat=100ms"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing '/api/cave/treasure-stream' API")
+public class TreasureStreamTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String TREASURE_STREAM = "treasure-stream";
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private TreasureStream stream;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, String> treasures = new ConcurrentHashMap<>();
+    private volatile String keyspaceEvents;
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    void setUp() {
+        treasures.clear();
+        treasures.put(THIEVES_TREASURE, "1000");
+        treasures.put(ALIBABA_TREASURE, "0");
+        keyspaceEvents = "K$gx";
+
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisServerCommands serverCommands = mock(RedisServerCommands.class);
+        doReturn(connection).when(redisConnectionFactory).getConnection();
+        doReturn(serverCommands).when(connection).serverCommands();
+        doAnswer(invocation -> {
+            Properties config = new Properties();
+            config.setProperty("notify-keyspace-events", keyspaceEvents);
+            return config;
+        }).when(serverCommands).getConfig("notify-keyspace-events");
+
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+
+        doAnswer(invocation -> {
+            Collection<String> keys = invocation.getArgument(0);
+            return keys.stream().map(treasures::get).toList();
+        }).when(valueOperations).multiGet(anyCollection());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + TREASURE_STREAM + " (Unauthorized)")
+    void streamUnauthorized() throws Exception {
+        mvc.perform(get("/api/cave/" + TREASURE_STREAM).param("owners", THIEVES_TREASURE))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("GET /api/cave/" + TREASURE_STREAM + " (Forbidden)")
+    void streamForbidden() throws Exception {
+        mvc.perform(get("/api/cave/" + TREASURE_STREAM)
+                        .param("owners", THIEVES_TREASURE + "," + ALIBABA_TREASURE)
+                        .with(jwt().authorities(new SimpleGrantedAuthority("ROLE_treasure-hunter"))))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("GET /api/cave/" + TREASURE_STREAM + " (Authorized)")
+    void streamAuthorized() throws Exception {
+        MockHttpServletResponse response = mvc.perform(get("/api/cave/" + TREASURE_STREAM)
+                        .param("owners", THIEVES_TREASURE)
+                        .with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn()
+                .getResponse();
+
+        awaitPolling(false);
+        assertEquals("event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":1000}\n\n", events(response));
+
+        // A burst of transfers is pushed as a single event with the latest balance
+        treasures.put(THIEVES_TREASURE, "950");
+        treasures.put(ALIBABA_TREASURE, "50");
+        for (int i = 0; i < 5; i++) {
+            notifyChanged(THIEVES_TREASURE);
+            notifyChanged(ALIBABA_TREASURE);
+        }
+        String expected = "event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":950}\n\n";
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!events(response).endsWith(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(300);
+
+        // Only the owner this subscriber follows, only once
+        assertEquals("event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":1000}\n\n" + expected, events(response));
+
+        // Without a notification, nothing is read or pushed
+        treasures.put(THIEVES_TREASURE, "900");
+        Thread.sleep(300);
+        assertEquals("event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":1000}\n\n" + expected, events(response));
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("GET /api/cave/" + TREASURE_STREAM + " (Polling without keyspace notifications)")
+    void streamPollsWithoutNotifications() throws Exception {
+        keyspaceEvents = "";
+        awaitPolling(true);
+
+        MockHttpServletResponse response = mvc.perform(get("/api/cave/" + TREASURE_STREAM)
+                        .param("owners", THIEVES_TREASURE)
+                        .with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn()
+                .getResponse();
+
+        // The balance changes without any notification
+        treasures.put(THIEVES_TREASURE, "900");
+        String expected = "event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":1000}\n\n"
+                + "event:treasure\ndata:{\"" + THIEVES_TREASURE + "\":900}\n\n";
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!events(response).equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(300);
+
+        // Pushed once, unchanged balances aren't pushed again
+        assertEquals(expected, events(response));
+    }
+
+    private void awaitPolling(boolean polling) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((meterRegistry.get("cave.stream.polling").gauge().value() == 1) != polling
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(polling ? 1 : 0, meterRegistry.get("cave.stream.polling").gauge().value());
+    }
+
+    // The events, without the heartbeat comments
+    private static String events(MockHttpServletResponse response) throws Exception {
+        return response.getContentAsString().replace(":heartbeat\n\n", "");
+    }
+
+    private void notifyChanged(String key) {
+        stream.onMessage(new DefaultMessage(
+                ("__keyspace@0__:" + key).getBytes(StandardCharsets.UTF_8),
+                "set".getBytes(StandardCharsets.UTF_8)), null);
+    }
+}
@@ -0,0 +1,194 @@
+package com.johnmanko.portfolio.alibabassecret.it;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.johnmanko.portfolio.alibabassecret.models.TreasureModel;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Versioned balances: reads carry the version as an ETag, If-None-Match is answered 304 from the version key
+ * alone, and If-Match turns take-treasure into a compare-and-set.
+ * Redis is a map behind mocked ValueOperations, the versioned transfer script is played by the map.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "spring.autoconfigure.exclude=org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisRepositoriesAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisReactiveAutoConfiguration," +
+        "org.springframework.boot.autoconfigure.data.redis.RedisKeyValueAdapterAutoConfiguration",
+        "spring.security.oauth2.resourceserver.jwt.issuer-uri=https://localhost/",
+        "app.config.client.auth.auth0.domain=test.us.auth0.com",
+        "app.config.client.auth.auth0.client-id=ASDF1234",
+        "app.config.server.auth.auth0.custom-jwt-namespace=custom.jwt.namespace/roles",
+        "app.config.server.cave.versioning.enabled=true"
+})
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+@DisplayName("Testing versioned '/api/cave/*' API")
+public class VersioningTest {
+
+    static final String THIEVES_TREASURE = "thieves-treasure";
+    static final String ALIBABA_TREASURE = "alibaba-treasure";
+    static final String TAKE_TREASURE = "take-treasure";
+    static final String VERSION = ":version";
+
+    @MockitoBean
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @MockitoBean
+    ValueOperations<String, String> valueOperations;
+
+    @MockitoBean
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, String> redis = new ConcurrentHashMap<>(Map.of(
+            THIEVES_TREASURE, "980", THIEVES_TREASURE + VERSION, "1000",
+            ALIBABA_TREASURE, "20", ALIBABA_TREASURE + VERSION, "1000"));
+
+    private SecurityMockMvcRequestPostProcessors.JwtRequestPostProcessor jwt = jwt().jwt(jwt -> {
+        jwt.subject("test-user");
+    }).authorities(
+            new SimpleGrantedAuthority("SCOPE_see:alibaba-treasure"),
+            new SimpleGrantedAuthority("SCOPE_take:thieves-treasure"),
+            new SimpleGrantedAuthority("ROLE_treasure-hunter")
+    );
+
+    @BeforeEach
+    void setUp() {
+        doReturn(valueOperations).when(redisTemplate).opsForValue();
+        doAnswer(invocation -> redis.get(invocation.<String>getArgument(0)))
+                .when(valueOperations).get(anyString());
+        doAnswer(invocation -> invocation.<List<String>>getArgument(0).stream().map(redis::get).toList())
+                .when(valueOperations).multiGet(anyList());
+
+        // versioned-transfer.lua
+        doAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            long amount = Long.parseLong(invocation.getArgument(2));
+            long expected = Long.parseLong(invocation.getArgument(6));
+            long source = Long.parseLong(redis.get(keys.get(0)));
+            long destination = Long.parseLong(redis.get(keys.get(1)));
+            if (expected != 0 && expected != Long.parseLong(redis.get(keys.get(2)))) {
+                return List.of(-1L, source, destination);
+            }
+            if (source < amount) {
+                return List.of(0L, source, destination);
+            }
+            redis.put(keys.get(0), Long.toString(source - amount));
+            redis.put(keys.get(1), Long.toString(destination + amount));
+            redis.merge(keys.get(2), "1", (version, one) -> Long.toString(Long.parseLong(version) + 1));
+            redis.merge(keys.get(3), "1", (version, one) -> Long.toString(Long.parseLong(version) + 1));
+            return List.of(1L, source - amount, destination + amount);
+        }).when(redisTemplate).execute(any(RedisScript.class), anyList(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    @Order(1)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (ETag)")
+    void readWithETag() throws Exception {
+        String json = perform(get("/api/cave/" + THIEVES_TREASURE).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"1000\""))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        assertEquals(980, objectMapper.readValue(json, TreasureModel.class).amount());
+        verify(valueOperations).multiGet(List.of(THIEVES_TREASURE, THIEVES_TREASURE + VERSION));
+    }
+
+    @Test
+    @Order(2)
+    @DisplayName("GET /api/cave/" + THIEVES_TREASURE + " (If-None-Match, unchanged)")
+    void notModified() throws Exception {
+        clearInvocations(valueOperations);
+        perform(get("/api/cave/" + THIEVES_TREASURE)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"1000\"")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"1000\""))
+                .andExpect(content().string(""));
+        // Answered from the version key alone
+        verify(valueOperations).get(THIEVES_TREASURE + VERSION);
+        verify(valueOperations, never()).multiGet(anyList());
+    }
+
+    @Test
+    @Order(3)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " (If-Match, outdated)")
+    void takeTreasureConflict() throws Exception {
+        perform(post("/api/cave/" + TAKE_TREASURE)
+                .header(HttpHeaders.IF_MATCH, "\"999\"")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, 20))))
+                .andExpect(status().isPreconditionFailed());
+
+        assertEquals("980", redis.get(THIEVES_TREASURE));
+        assertEquals(1, meterRegistry.get("cave.transfer.failed").tag("reason", "conflict").counter().count());
+    }
+
+    @Test
+    @Order(4)
+    @DisplayName("POST /api/cave/" + TAKE_TREASURE + " (If-Match, current)")
+    void takeTreasure() throws Exception {
+        perform(post("/api/cave/" + TAKE_TREASURE)
+                .header(HttpHeaders.IF_MATCH, "\"1000\"")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new TreasureModel(ALIBABA_TREASURE, 20))))
+                .andExpect(status().isOk());
+
+        // The poller's version is outdated now, so it gets the new balance and version
+        String json = perform(get("/api/cave/" + THIEVES_TREASURE)
+                .header(HttpHeaders.IF_NONE_MATCH, "\"1000\"")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"1001\""))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        assertEquals(960, objectMapper.readValue(json, TreasureModel.class).amount());
+    }
+
+    private ResultActions perform(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult mvcResult = mvc.perform(request.with(jwt))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(mvcResult));
+    }
+}